@@ -17,6 +17,8 @@
 
 package de.fhg.igd.mongomvcc;
 
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -45,6 +47,22 @@ public interface VCollection {
 	 */
 	void insert(Map<String, Object> obj);
 	
+	/**
+	 * Inserts multiple new objects to the collection. This is much faster
+	 * than calling {@link #insert(Map)} for each object. Objects without
+	 * a UID will get a new one (see {@link #insert(Map)}).
+	 * @param objs the objects to add to the collection
+	 */
+	void insertAll(Iterable<? extends Map<String, Object>> objs);
+	
+	/**
+	 * Inserts multiple new objects to the collection. Works like
+	 * {@link #insertAll(Iterable)} but consumes the objects while they
+	 * are inserted, so they do not have to be held in memory all at once.
+	 * @param objs an iterator providing the objects to add to the collection
+	 */
+	void insertAll(Iterator<? extends Map<String, Object>> objs);
+	
 	/**
 	 * Deletes the object with the given UID from the collection (if it exists)
 	 * @param uid the UID of the object to delete
@@ -79,6 +97,32 @@ public interface VCollection {
 	 */
 	VCursor find(Map<String, Object> example, String... fields);
 	
+	/**
+	 * Counts the objects that match the given example. This is much
+	 * faster than iterating over the results of {@link #find(Map)},
+	 * because the objects do not have to be loaded.
+	 * @param example the example object (may be empty if all objects
+	 * should be counted)
+	 * @return the number of matching objects
+	 */
+	long count(Map<String, Object> example);
+	
+	/**
+	 * Gets the object with the given UID. This is much faster than
+	 * finding the object by example.
+	 * @param uid the object's UID
+	 * @return the object or null if there is no such object
+	 */
+	Map<String, Object> get(long uid);
+	
+	/**
+	 * Gets multiple objects by their UIDs
+	 * @param uids the UIDs of the objects to get
+	 * @return the objects in the order of the given UIDs. The list
+	 * contains <code>null</code> for each UID that does not exist.
+	 */
+	List<Map<String, Object>> getAll(long[] uids);
+	
 	/**
 	 * Finds an object that matches the given example
 	 * @param example the example object
@@ -27,4 +27,13 @@ public interface VCounter {
 	 * @return a unique id
 	 */
 	public long getNextId();
+	
+	/**
+	 * A thread safe method to reserve a block of consecutive unique IDs.
+	 * This is much faster than calling {@link #getNextId()} for each ID.
+	 * @param count the number of IDs to reserve (must be greater than 0)
+	 * @return the first ID of the block. The block contains all IDs from
+	 * this one (inclusive) to this one plus <code>count</code> (exclusive).
+	 */
+	public long reserveIds(int count);
 }
@@ -73,6 +73,20 @@ public abstract class AbstractIdHashCollection implements IdCollection {
 	 */
 	protected int _capacity = 0;
 	
+	/**
+	 * Makes this collection an exact copy of another one. The other
+	 * collection's table will be cloned, so both collections can be
+	 * modified independently afterwards.
+	 * @param other the collection to copy
+	 */
+	protected void copyFrom(AbstractIdHashCollection other) {
+		_size = other._size;
+		_deleted = other._deleted;
+		_overloadFactor = other._overloadFactor;
+		_capacity = other._capacity;
+		_table = other._table.clone();
+	}
+	
 	/**
 	 * Clears the given array--i.e. fills it with {@link #FREE} values
 	 * @param arr the array to clear
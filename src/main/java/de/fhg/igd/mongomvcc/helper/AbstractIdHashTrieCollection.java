@@ -0,0 +1,593 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Abstract base class for ID collections based on a persistent hash
+ * array mapped trie (HAMT). Each trie node consumes 5 bits of a key, so
+ * the trie has at most 13 levels. Since IDs are unique and all of their
+ * bits are consumed, there are no hash collisions.</p>
+ * <p>Copies of a collection share all trie nodes with the original.
+ * A modification only copies the nodes on the path from the root to the
+ * modified entry (path copying). Nodes that have already been copied by
+ * a collection are owned by it and can be modified in place, so a series
+ * of modifications does not copy the same path again and again.</p>
+ * <p>Lookups do not modify the collection, so a collection that is not
+ * modified anymore may be read by multiple threads concurrently.</p>
+ * @author Michel Kraemer
+ */
+public abstract class AbstractIdHashTrieCollection implements IdCollection {
+	/**
+	 * The number of key bits consumed by each trie level
+	 */
+	private static final int BITS = 5;
+
+	/**
+	 * A mask to extract {@link #BITS} bits from a key
+	 */
+	private static final int MASK = (1 << BITS) - 1;
+
+	/**
+	 * The maximum depth of the trie (including the root)
+	 */
+	private static final int MAX_DEPTH = 64 / BITS + 2;
+
+	/**
+	 * A token identifying the nodes owned by a collection
+	 */
+	private static final class Owner {
+		/**
+		 * True if the collection has been copied. Nodes owned by this token
+		 * are shared with the copy then and must not be modified in place
+		 * anymore. This flag is never reset.
+		 */
+		private volatile boolean _shared;
+	}
+
+	/**
+	 * A node of the trie. Contains data entries and child nodes.
+	 */
+	protected static final class Node {
+		/**
+		 * A bitmap denoting the positions with data entries
+		 */
+		private int _dataMap;
+
+		/**
+		 * A bitmap denoting the positions with child nodes
+		 */
+		private int _nodeMap;
+
+		/**
+		 * The data entries (keys followed by values if the
+		 * collection's stride is 2)
+		 */
+		private long[] _data;
+
+		/**
+		 * The child nodes
+		 */
+		private Node[] _nodes;
+
+		/**
+		 * The collection owning this node (may be null). Only the
+		 * owner may modify the node in place.
+		 */
+		private Owner _owner;
+
+		/**
+		 * Constructs a new node
+		 * @param dataMap a bitmap denoting the positions with data entries
+		 * @param nodeMap a bitmap denoting the positions with child nodes
+		 * @param data the data entries
+		 * @param nodes the child nodes
+		 * @param owner the collection owning this node (may be null)
+		 */
+		Node(int dataMap, int nodeMap, long[] data, Node[] nodes, Owner owner) {
+			_dataMap = dataMap;
+			_nodeMap = nodeMap;
+			_data = data;
+			_nodes = nodes;
+			_owner = owner;
+		}
+	}
+
+	/**
+	 * An empty node that is never modified
+	 */
+	private static final Node EMPTY = new Node(0, 0, new long[0], new Node[0], null);
+
+	/**
+	 * The number of longs per data entry (1 for sets, 2 for maps)
+	 */
+	private final int _stride;
+
+	/**
+	 * The root node
+	 */
+	protected Node _root = EMPTY;
+
+	/**
+	 * The number of elements in this collection
+	 */
+	protected int _size = 0;
+
+	/**
+	 * A token identifying the nodes owned by this collection
+	 */
+	private Owner _owner = new Owner();
+
+	/**
+	 * True if the last call to {@link #putInternal(long, long)} or
+	 * {@link #removeInternal(long)} found the given key
+	 */
+	protected boolean _found;
+
+	/**
+	 * The value the last call to {@link #putInternal(long, long)} or
+	 * {@link #removeInternal(long)} replaced or removed
+	 */
+	protected long _oldValue;
+
+	/**
+	 * Constructs a new empty collection
+	 * @param stride the number of longs per data entry (1 for
+	 * sets, 2 for maps)
+	 */
+	protected AbstractIdHashTrieCollection(int stride) {
+		_stride = stride;
+	}
+
+	/**
+	 * Constructs a collection that shares all nodes with the given one.
+	 * This operation takes constant time. Both collections can be modified
+	 * independently afterwards.
+	 * @param other the collection to copy
+	 */
+	protected AbstractIdHashTrieCollection(AbstractIdHashTrieCollection other) {
+		_stride = other._stride;
+		_root = other._root;
+		_size = other._size;
+
+		//the nodes are shared now, so the other collection must not
+		//modify them in place anymore. the other collection's fields are
+		//left untouched, it will pick a new token on its next modification.
+		other._owner._shared = true;
+	}
+
+	/**
+	 * Calculates the position of a key within a node
+	 * @param key the key
+	 * @param shift the number of key bits consumed by the levels above
+	 * @return the position's bit
+	 */
+	private static int bit(long key, int shift) {
+		return 1 << ((int)(key >>> shift) & MASK);
+	}
+
+	/**
+	 * Calculates the index of an entry in a node's arrays
+	 * @param map the bitmap
+	 * @param bit the entry's position bit
+	 * @return the index
+	 */
+	private static int index(int map, int bit) {
+		return Integer.bitCount(map & (bit - 1));
+	}
+
+	/**
+	 * Looks up the data entry for a given key. Does not modify any state,
+	 * so it can be called by multiple threads concurrently.
+	 * @param key the key
+	 * @param value true if the entry's value should be returned, false
+	 * if its key should be returned (only applicable to maps)
+	 * @param notFound the value to return if the key is not in the collection
+	 * @return the entry's key or value or <code>notFound</code>
+	 */
+	private long lookup(long key, boolean value, long notFound) {
+		Node n = _root;
+		int shift = 0;
+		while (true) {
+			int bit = bit(key, shift);
+			if ((n._dataMap & bit) != 0) {
+				int i = index(n._dataMap, bit) * _stride;
+				long[] data = n._data;
+				if (data[i] == key) {
+					return value ? data[i + 1] : key;
+				}
+				return notFound;
+			}
+			if ((n._nodeMap & bit) == 0) {
+				return notFound;
+			}
+			n = n._nodes[index(n._nodeMap, bit)];
+			shift += BITS;
+		}
+	}
+
+	/**
+	 * Checks if the collection contains a given key
+	 * @param key the key
+	 * @return true if the collection contains the key
+	 */
+	protected boolean containsInternal(long key) {
+		//use a marker that differs from the key
+		long notFound = ~key;
+		return lookup(key, false, notFound) != notFound;
+	}
+
+	/**
+	 * Retrieves the value for a given key (only applicable to maps)
+	 * @param key the key
+	 * @return the value or 0 if the key is not in the collection
+	 */
+	protected long getInternal(long key) {
+		return lookup(key, true, 0);
+	}
+
+	/**
+	 * Puts a key (and a value if this collection is a map) into the
+	 * collection. Sets {@link #_found} and {@link #_oldValue}.
+	 * @param key the key
+	 * @param value the value (ignored for sets)
+	 */
+	protected void putInternal(long key, long value) {
+		_found = false;
+		_oldValue = 0;
+		_root = put(_root, key, value, 0);
+		if (!_found) {
+			++_size;
+		}
+	}
+
+	/**
+	 * Removes a key from the collection. Sets {@link #_found}
+	 * and {@link #_oldValue}.
+	 * @param key the key
+	 */
+	protected void removeInternal(long key) {
+		_found = false;
+		_oldValue = 0;
+		_root = remove(_root, key, 0);
+		if (_found) {
+			--_size;
+		}
+	}
+
+	/**
+	 * Checks if a node may be modified in place by this collection. If
+	 * this collection has been copied in the meantime, it takes a new
+	 * token, so all nodes created from now on are owned by it again.
+	 * @param n the node
+	 * @return true if the node is owned by this collection
+	 */
+	private boolean owns(Node n) {
+		if (_owner._shared) {
+			_owner = new Owner();
+			return false;
+		}
+		return n._owner == _owner;
+	}
+
+	/**
+	 * Returns a node that may be modified in place by this collection.
+	 * Copies the given node if it is not owned by this collection.
+	 * @param n the node
+	 * @return the given node or its copy
+	 */
+	private Node editable(Node n) {
+		if (owns(n)) {
+			return n;
+		}
+		return new Node(n._dataMap, n._nodeMap, n._data.clone(),
+				n._nodes.clone(), _owner);
+	}
+
+	/**
+	 * Replaces the contents of the given node or creates a new one if
+	 * the given node is not owned by this collection
+	 */
+	private Node update(Node n, int dataMap, int nodeMap, long[] data, Node[] nodes) {
+		if (owns(n)) {
+			n._dataMap = dataMap;
+			n._nodeMap = nodeMap;
+			n._data = data;
+			n._nodes = nodes;
+			return n;
+		}
+		//never share arrays with a node that is not owned by this collection
+		return new Node(dataMap, nodeMap, data == n._data ? data.clone() : data,
+				nodes == n._nodes ? nodes.clone() : nodes, _owner);
+	}
+
+	/**
+	 * Inserts a data entry into an array of data entries
+	 */
+	private long[] insertData(long[] data, int i, long key, long value) {
+		long[] r = new long[data.length + _stride];
+		System.arraycopy(data, 0, r, 0, i);
+		r[i] = key;
+		if (_stride == 2) {
+			r[i + 1] = value;
+		}
+		System.arraycopy(data, i, r, i + _stride, data.length - i);
+		return r;
+	}
+
+	/**
+	 * Removes a data entry from an array of data entries
+	 */
+	private long[] removeData(long[] data, int i) {
+		long[] r = new long[data.length - _stride];
+		System.arraycopy(data, 0, r, 0, i);
+		System.arraycopy(data, i + _stride, r, i, data.length - i - _stride);
+		return r;
+	}
+
+	/**
+	 * Inserts a child node into an array of child nodes
+	 */
+	private static Node[] insertNode(Node[] nodes, int j, Node n) {
+		Node[] r = new Node[nodes.length + 1];
+		System.arraycopy(nodes, 0, r, 0, j);
+		r[j] = n;
+		System.arraycopy(nodes, j, r, j + 1, nodes.length - j);
+		return r;
+	}
+
+	/**
+	 * Removes a child node from an array of child nodes
+	 */
+	private static Node[] removeNode(Node[] nodes, int j) {
+		Node[] r = new Node[nodes.length - 1];
+		System.arraycopy(nodes, 0, r, 0, j);
+		System.arraycopy(nodes, j + 1, r, j, nodes.length - j - 1);
+		return r;
+	}
+
+	/**
+	 * Creates a new node containing two data entries
+	 */
+	private Node merge(long key1, long value1, long key2, long value2, int shift) {
+		int bit1 = bit(key1, shift);
+		int bit2 = bit(key2, shift);
+		if (bit1 == bit2) {
+			//both keys have the same position on this level. go one level deeper.
+			Node child = merge(key1, value1, key2, value2, shift + BITS);
+			return new Node(0, bit1, new long[0], new Node[] { child }, _owner);
+		}
+		long[] data = new long[_stride * 2];
+		int i1 = (bit1 & (bit2 - 1)) == bit1 ? 0 : _stride;
+		int i2 = _stride - i1;
+		data[i1] = key1;
+		data[i2] = key2;
+		if (_stride == 2) {
+			data[i1 + 1] = value1;
+			data[i2 + 1] = value2;
+		}
+		return new Node(bit1 | bit2, 0, data, new Node[0], _owner);
+	}
+
+	/**
+	 * Recursively puts a key into the trie
+	 * @return the new node (may be the given one)
+	 */
+	private Node put(Node n, long key, long value, int shift) {
+		int bit = bit(key, shift);
+		if ((n._dataMap & bit) != 0) {
+			int i = index(n._dataMap, bit) * _stride;
+			long k = n._data[i];
+			if (k == key) {
+				_found = true;
+				if (_stride == 1) {
+					return n;
+				}
+				_oldValue = n._data[i + 1];
+				if (_oldValue == value) {
+					return n;
+				}
+				Node r = editable(n);
+				r._data[i + 1] = value;
+				return r;
+			}
+
+			//replace data entry by a child node containing both entries
+			Node child = merge(k, _stride == 2 ? n._data[i + 1] : 0,
+					key, value, shift + BITS);
+			int j = index(n._nodeMap, bit);
+			return update(n, n._dataMap ^ bit, n._nodeMap | bit,
+					removeData(n._data, i), insertNode(n._nodes, j, child));
+		}
+
+		if ((n._nodeMap & bit) != 0) {
+			int j = index(n._nodeMap, bit);
+			Node child = n._nodes[j];
+			Node newChild = put(child, key, value, shift + BITS);
+			if (newChild == child) {
+				return n;
+			}
+			Node r = editable(n);
+			r._nodes[j] = newChild;
+			return r;
+		}
+
+		//add new data entry
+		int i = index(n._dataMap, bit) * _stride;
+		return update(n, n._dataMap | bit, n._nodeMap,
+				insertData(n._data, i, key, value), n._nodes);
+	}
+
+	/**
+	 * Recursively removes a key from the trie
+	 * @return the new node (may be the given one)
+	 */
+	private Node remove(Node n, long key, int shift) {
+		int bit = bit(key, shift);
+		if ((n._dataMap & bit) != 0) {
+			int i = index(n._dataMap, bit) * _stride;
+			if (n._data[i] != key) {
+				return n;
+			}
+			_found = true;
+			if (_stride == 2) {
+				_oldValue = n._data[i + 1];
+			}
+			return update(n, n._dataMap ^ bit, n._nodeMap,
+					removeData(n._data, i), n._nodes);
+		}
+
+		if ((n._nodeMap & bit) != 0) {
+			int j = index(n._nodeMap, bit);
+			Node child = n._nodes[j];
+			Node newChild = remove(child, key, shift + BITS);
+			if (newChild == child) {
+				return n;
+			}
+			if (newChild._nodeMap == 0 && newChild._data.length == _stride) {
+				//the child only contains one data entry. inline it.
+				int i = index(n._dataMap, bit) * _stride;
+				return update(n, n._dataMap | bit, n._nodeMap ^ bit,
+						insertData(n._data, i, newChild._data[0],
+								_stride == 2 ? newChild._data[1] : 0),
+						removeNode(n._nodes, j));
+			}
+			Node r = editable(n);
+			r._nodes[j] = newChild;
+			return r;
+		}
+
+		return n;
+	}
+
+	/**
+	 * Iterates through all data entries of the trie (depth-first)
+	 */
+	protected class Cursor {
+		private final Node[] _stack = new Node[MAX_DEPTH];
+		private final int[] _dataPos = new int[MAX_DEPTH];
+		private final int[] _nodePos = new int[MAX_DEPTH];
+		private int _depth = 0;
+		private int _n = 0;
+
+		/**
+		 * The node containing the current data entry
+		 */
+		protected Node _current;
+
+		/**
+		 * The index of the current data entry in {@link #_current}'s data
+		 */
+		protected int _index = -1;
+
+		/**
+		 * Creates a new cursor
+		 */
+		protected Cursor() {
+			_stack[0] = _root;
+		}
+
+		/**
+		 * @return true if there is another data entry
+		 */
+		public boolean hasNext() {
+			return _n < _size;
+		}
+
+		/**
+		 * Advances to the next data entry
+		 * @throws NoSuchElementException if there is no more data entry
+		 */
+		public void advance() {
+			if (_n >= _size) {
+				throw new NoSuchElementException();
+			}
+			while (_depth >= 0) {
+				Node n = _stack[_depth];
+				if (_dataPos[_depth] < n._data.length) {
+					_current = n;
+					_index = _dataPos[_depth];
+					_dataPos[_depth] += _stride;
+					++_n;
+					return;
+				}
+				if (_nodePos[_depth] < n._nodes.length) {
+					Node child = n._nodes[_nodePos[_depth]++];
+					++_depth;
+					_stack[_depth] = child;
+					_dataPos[_depth] = 0;
+					_nodePos[_depth] = 0;
+				} else {
+					--_depth;
+				}
+			}
+			throw new NoSuchElementException();
+		}
+
+		/**
+		 * @return the current key
+		 * @throws NoSuchElementException if there is no current data entry
+		 */
+		protected long currentKey() {
+			if (_current == null) {
+				throw new NoSuchElementException();
+			}
+			return _current._data[_index];
+		}
+
+		/**
+		 * @return the current value
+		 * @throws NoSuchElementException if there is no current data entry
+		 */
+		protected long currentValue() {
+			if (_current == null) {
+				throw new NoSuchElementException();
+			}
+			return _current._data[_index + 1];
+		}
+	}
+
+	/**
+	 * Collects all keys or all values in an array
+	 * @param values true if values should be collected, false if
+	 * keys should be collected
+	 * @return the array
+	 */
+	protected long[] collect(boolean values) {
+		long[] result = new long[_size];
+		Cursor c = new Cursor();
+		int i = 0;
+		while (c.hasNext()) {
+			c.advance();
+			result[i++] = values ? c.currentValue() : c.currentKey();
+		}
+		return result;
+	}
+
+	@Override
+	public int size() {
+		return _size;
+	}
+
+	@Override
+	public void clear() {
+		_root = EMPTY;
+		_size = 0;
+	}
+}
@@ -0,0 +1,245 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Abstract base class for hash-based ID collections whose table is stored
+ * outside the Java heap. The table is either a direct buffer or a temporary
+ * memory-mapped file. Uses the same table layout and double hashing as
+ * {@link AbstractIdHashCollection}.</p>
+ * <p>Large tables do not have to be scanned by the garbage collector, which
+ * keeps GC pauses short. The memory is released as soon as the collection
+ * has been garbage collected.</p>
+ * @author Michel Kraemer
+ */
+public abstract class AbstractOffHeapIdHashCollection implements IdCollection {
+	/**
+	 * The default number of expected elements in this collection
+	 */
+	protected static final int DEFAULT_EXPECTED_SIZE = 20;
+	
+	/**
+	 * The default load factor
+	 */
+	protected static final float DEFAULT_LOAD_FACTOR = 0.5f;
+	
+	/**
+	 * The hash table's minimum capacity
+	 */
+	protected static final int MINIMUM_CAPACITY = 5;
+	
+	/**
+	 * A free table cell
+	 */
+	protected static final long FREE = Long.MAX_VALUE;
+	
+	/**
+	 * A deleted table cell
+	 */
+	protected static final long DELETED = Long.MIN_VALUE;
+	
+	/**
+	 * The maximum number of longs a table can hold
+	 */
+	private static final int MAX_TABLE_SIZE = Integer.MAX_VALUE / 8;
+	
+	/**
+	 * The number of longs per table cell (1 for sets, 2 for maps)
+	 */
+	private final int _stride;
+	
+	/**
+	 * The directory where memory-mapped table files will be created
+	 * (null if direct buffers should be used)
+	 */
+	private final File _directory;
+	
+	/**
+	 * The number of elements in this collection
+	 */
+	protected int _size = 0;
+	
+	/**
+	 * The number of cells marked as {@link #DELETED}
+	 */
+	protected int _deleted = 0;
+	
+	/**
+	 * A factor that will be multiplied with the expected number of
+	 * elements in order to calculate the capacity
+	 */
+	protected float _overloadFactor;
+	
+	/**
+	 * The actual table
+	 */
+	protected LongBuffer _table;
+	
+	/**
+	 * The {@link #_table}'s capacity (in cells)
+	 */
+	protected int _capacity = 0;
+	
+	/**
+	 * Constructs a new collection
+	 * @param stride the number of longs per table cell
+	 * @param overloadFactor a factor that will be multiplied with the
+	 * expected number of elements in order to calculate the capacity
+	 * @param directory the directory where memory-mapped table files will
+	 * be created (null if direct buffers should be used)
+	 */
+	protected AbstractOffHeapIdHashCollection(int stride, float overloadFactor,
+			File directory) {
+		_stride = stride;
+		_overloadFactor = overloadFactor;
+		_directory = directory;
+	}
+	
+	/**
+	 * Constructs a collection that is an exact copy of another one.
+	 * The other collection's table will be copied in bulk, so both
+	 * collections can be modified independently afterwards.
+	 * @param other the collection to copy
+	 */
+	protected AbstractOffHeapIdHashCollection(AbstractOffHeapIdHashCollection other) {
+		_stride = other._stride;
+		_directory = other._directory;
+		_size = other._size;
+		_deleted = other._deleted;
+		_overloadFactor = other._overloadFactor;
+		_capacity = other._capacity;
+		_table = allocate(other._table.capacity());
+		LongBuffer src = other._table.duplicate();
+		src.clear();
+		_table.put(src);
+		_table.clear();
+	}
+	
+	/**
+	 * Allocates a new table
+	 * @param longs the number of longs the table should hold
+	 * @return the new table
+	 */
+	private LongBuffer allocate(int longs) {
+		if (longs > MAX_TABLE_SIZE) {
+			throw new IllegalStateException("Off-heap table too large: " + longs);
+		}
+		if (_directory == null) {
+			return ByteBuffer.allocateDirect(longs * 8)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+		
+		try {
+			File f = File.createTempFile("mongomvcc", ".tbl", _directory);
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				//the mapping stays valid after the file has been closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, longs * 8L).order(ByteOrder.nativeOrder()).asLongBuffer();
+			} finally {
+				raf.close();
+				if (!f.delete()) {
+					f.deleteOnExit();
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not map table file", e);
+		}
+	}
+	
+	/**
+	 * Clears the given table--i.e. marks all cells as {@link #FREE}
+	 * @param table the table to clear
+	 */
+	protected void clearTable(LongBuffer table) {
+		int n = table.capacity();
+		for (int i = 0; i < n; i += _stride) {
+			table.put(i, FREE);
+		}
+	}
+	
+	/**
+	 * Ensures that the table can hold a given number of elements.
+	 * Resizes the table if needed.
+	 * @param elements the number of expected elements
+	 * @return the old table or null if nothing was changed
+	 */
+	protected LongBuffer ensureCapacity(int elements) {
+		int capacity = (int)(elements * _overloadFactor);
+		
+		if (capacity < _capacity) {
+			//already OK
+			return null;
+		}
+		
+		if (capacity < MINIMUM_CAPACITY) {
+			capacity = MINIMUM_CAPACITY;
+		}
+		int tld = _capacity << 1;
+		if (capacity < tld) {
+			capacity = tld;
+		}
+		
+		//capacity should ideally be a prime number
+		capacity = Primes.next(capacity);
+		_capacity = capacity;
+		
+		LongBuffer oldTable = _table;
+		makeTable(capacity);
+		return oldTable;
+	}
+	
+	/**
+	 * Creates a new, cleared hash table with the given capacity
+	 * @param capacity the capacity (in cells)
+	 */
+	protected void makeTable(int capacity) {
+		_table = allocate(capacity * _stride);
+		clearTable(_table);
+		_deleted = 0;
+	}
+	
+	/**
+	 * Calculates the hash for a given value
+	 * @param value the value
+	 * @return the hash
+	 */
+	protected int hash(long value) {
+		return (int)(value ^ (value >>> 32));
+	}
+	
+	@Override
+	public int size() {
+		return _size;
+	}
+
+	@Override
+	public void clear() {
+		_size = 0;
+		_deleted = 0;
+		clearTable(_table);
+	}
+}
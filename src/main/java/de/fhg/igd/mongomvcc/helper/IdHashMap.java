@@ -59,6 +59,16 @@ public class IdHashMap extends AbstractIdHashCollection implements IdMap {
 		ensureCapacity(expectedSize);
 	}
 	
+	/**
+	 * Constructs a new map that is an exact copy of the given one. This
+	 * is a lot faster than adding all elements one by one, because the
+	 * internal table is simply cloned.
+	 * @param map the map to copy
+	 */
+	public IdHashMap(IdHashMap map) {
+		copyFrom(map);
+	}
+	
 	private void copyValues(long[] oldTable) {
 		for (int i = 0; i < oldTable.length; i += 2) {
 			long l = oldTable[i];
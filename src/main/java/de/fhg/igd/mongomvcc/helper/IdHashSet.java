@@ -59,6 +59,16 @@ public class IdHashSet extends AbstractIdHashCollection implements IdSet {
 		ensureCapacity(expectedSize);
 	}
 	
+	/**
+	 * Constructs a new set that is an exact copy of the given one. This
+	 * is a lot faster than adding all elements one by one, because the
+	 * internal table is simply cloned.
+	 * @param set the set to copy
+	 */
+	public IdHashSet(IdHashSet set) {
+		copyFrom(set);
+	}
+	
 	private void copyValues(long[] oldTable) {
 		for (long l : oldTable) {
 			if (l != FREE && l != DELETED) {
@@ -0,0 +1,107 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdMap} based on a persistent
+ * hash array mapped trie. Copying this map takes constant time, because
+ * the copy shares the trie with the original. Afterwards, modifications
+ * of one of the maps only copy the modified paths of the trie.</p>
+ * <p>Lookups are a little bit slower than in {@link IdHashMap}, but
+ * this map does not reserve any values and derived maps only need
+ * memory for their modifications.</p>
+ * @author Michel Kraemer
+ */
+public class IdHashTrieMap extends AbstractIdHashTrieCollection implements IdMap {
+	/**
+	 * Constructs a new empty map
+	 */
+	public IdHashTrieMap() {
+		super(2);
+	}
+	
+	/**
+	 * Constructs a new map that contains the same elements as the given
+	 * one. This operation takes constant time, since the maps share their
+	 * contents until one of them is modified.
+	 * @param map the map to copy
+	 */
+	public IdHashTrieMap(IdHashTrieMap map) {
+		super(map);
+	}
+	
+	@Override
+	public long put(long key, long value) {
+		putInternal(key, value);
+		return _oldValue;
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		return containsInternal(key);
+	}
+
+	@Override
+	public long remove(long key) {
+		removeInternal(key);
+		return _oldValue;
+	}
+
+	@Override
+	public long get(long key) {
+		return getInternal(key);
+	}
+
+	@Override
+	public long[] keys() {
+		return collect(false);
+	}
+
+	@Override
+	public long[] values() {
+		return collect(true);
+	}
+
+	@Override
+	public IdMapIterator iterator() {
+		final Cursor c = new Cursor();
+		return new IdMapIterator() {
+			@Override
+			public boolean hasNext() {
+				return c.hasNext();
+			}
+
+			@Override
+			public void advance() throws NoSuchElementException {
+				c.advance();
+			}
+
+			@Override
+			public long key() throws NoSuchElementException {
+				return c.currentKey();
+			}
+
+			@Override
+			public long value() throws NoSuchElementException {
+				return c.currentValue();
+			}
+		};
+	}
+}
@@ -0,0 +1,85 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdSet} based on a persistent
+ * hash array mapped trie. Copying this set takes constant time, because
+ * the copy shares the trie with the original. Afterwards, modifications
+ * of one of the sets only copy the modified paths of the trie.</p>
+ * @author Michel Kraemer
+ */
+public class IdHashTrieSet extends AbstractIdHashTrieCollection implements IdSet {
+	/**
+	 * Constructs a new empty set
+	 */
+	public IdHashTrieSet() {
+		super(1);
+	}
+	
+	/**
+	 * Constructs a new set that contains the same elements as the given
+	 * one. This operation takes constant time, since the sets share their
+	 * contents until one of them is modified.
+	 * @param set the set to copy
+	 */
+	public IdHashTrieSet(IdHashTrieSet set) {
+		super(set);
+	}
+	
+	@Override
+	public boolean add(long value) {
+		putInternal(value, 0);
+		return !_found;
+	}
+
+	@Override
+	public boolean contains(long value) {
+		return containsInternal(value);
+	}
+
+	@Override
+	public boolean remove(long value) {
+		removeInternal(value);
+		return _found;
+	}
+
+	@Override
+	public long[] toArray() {
+		return collect(false);
+	}
+
+	@Override
+	public IdSetIterator iterator() {
+		final Cursor c = new Cursor();
+		return new IdSetIterator() {
+			@Override
+			public boolean hasNext() {
+				return c.hasNext();
+			}
+
+			@Override
+			public long next() throws NoSuchElementException {
+				c.advance();
+				return c.currentKey();
+			}
+		};
+	}
+}
@@ -0,0 +1,323 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdMap} based on a hash table
+ * stored outside the Java heap (see {@link AbstractOffHeapIdHashCollection}).
+ * Uses the same double hashing as {@link IdHashMap}.</p>
+ * <p>You MUST NOT try to add {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE}
+ * as keys to the map, because these value are reserved for unused table entries.</p>
+ * @author Michel Kraemer
+ */
+public class OffHeapIdHashMap extends AbstractOffHeapIdHashCollection implements IdMap {
+	/**
+	 * Constructs a new map backed by a direct buffer with the given
+	 * number of expected elements and the default load factor
+	 * (DEFAULT_LOAD_FACTOR)
+	 * @param expectedSize the number of expected elements
+	 */
+	public OffHeapIdHashMap(int expectedSize) {
+		this(expectedSize, DEFAULT_LOAD_FACTOR, null);
+	}
+	
+	/**
+	 * Constructs a new map with the given number of
+	 * expected elements and load factor
+	 * @param expectedSize the number of expected elements
+	 * @param loadFactor the load factor
+	 * @param directory the directory where memory-mapped table files
+	 * will be created (null if direct buffers should be used)
+	 */
+	public OffHeapIdHashMap(int expectedSize, float loadFactor, File directory) {
+		super(2, 1 + (1 - loadFactor), directory);
+		ensureCapacity(expectedSize);
+	}
+	
+	/**
+	 * Constructs a new map that is an exact copy of the given one. This
+	 * is a lot faster than adding all elements one by one, because the
+	 * internal table is simply copied.
+	 * @param map the map to copy
+	 */
+	public OffHeapIdHashMap(OffHeapIdHashMap map) {
+		super(map);
+	}
+	
+	/**
+	 * Constructs a new map backed by a direct buffer containing all
+	 * elements of the given map
+	 * @param map the map to copy
+	 */
+	public OffHeapIdHashMap(IdMap map) {
+		this(map.size());
+		IdMapIterator it = map.iterator();
+		while (it.hasNext()) {
+			it.advance();
+			put(it.key(), it.value());
+		}
+	}
+	
+	private void copyValues(LongBuffer oldTable) {
+		for (int i = 0; i < oldTable.capacity(); i += 2) {
+			long l = oldTable.get(i);
+			if (l != FREE && l != DELETED) {
+				putInternal(l, oldTable.get(i + 1));
+			}
+		}
+	}
+	
+	@Override
+	protected LongBuffer ensureCapacity(int elements) {
+		LongBuffer oldTable = super.ensureCapacity(elements);
+		if (oldTable != null) {
+			copyValues(oldTable);
+		}
+		return oldTable;
+	}
+	
+	/**
+	 * Puts a key-value pair into the table (without checks)
+	 * @param key the key
+	 * @param value the value
+	 * @return the old value or 0 if the key was not in the map
+	 */
+	private long putInternal(long key, long value) {
+		int h0 = hash(key);
+		int h = h0 % _capacity;
+		int i = h * 2;
+		if (_table.get(i) == key) {
+			long old = _table.get(i + 1);
+			_table.put(i + 1, value);
+			return old;
+		}
+		if (_table.get(i) != FREE && _table.get(i) != DELETED) {
+			int h1 = 1 + (h0 % (_capacity - 2));
+			do {
+				h -= h1;
+				if (h < 0) {
+					h += _capacity;
+				}
+				i = h * 2;
+				if (_table.get(i) == key) {
+					long old = _table.get(i + 1);
+					_table.put(i + 1, value);
+					return old;
+				}
+			} while (_table.get(i) != FREE && _table.get(i) != DELETED);
+		}
+		if (_table.get(i) == DELETED) {
+			--_deleted;
+		}
+		_table.put(i, key);
+		_table.put(i + 1, value);
+		return 0;
+	}
+
+	@Override
+	public long put(long key, long value) {
+		if (key == FREE) {
+			throw new IllegalArgumentException("Long.MAX_VALUE is not allowed in this map implementation");
+		}
+		if (key == DELETED) {
+			throw new IllegalArgumentException("Long.MIN_VALUE is not allowed in this map implementation");
+		}
+		long old = putInternal(key, value);
+		if (old == 0) {
+			++_size;
+			ensureCapacity(_size);
+		}
+		return old;
+	}
+
+	@Override
+	public boolean containsKey(long key) {
+		int h0 = hash(key);
+		int h = h0 % _capacity;
+		int i = h * 2;
+		if (_table.get(i) == key) {
+			return true;
+		} else if (_table.get(i) == FREE) {
+			return false;
+		}
+		
+		int h1 = 1 + (h0 % (_capacity - 2));
+		while (true) {
+			h -= h1;
+			if (h < 0) {
+				h += _capacity;
+			}
+			i = h * 2;
+			if (_table.get(i) == key) {
+				return true;
+			} else if (_table.get(i) == FREE) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public long remove(long key) {
+		long r = doRemove(key);
+		if (_deleted * 2 >= _capacity - _size) {
+			compact();
+		}
+		return r;
+	}
+	
+	private long doRemove(long key) {
+		int h0 = hash(key);
+		int h = h0 % _capacity;
+		int i = h * 2;
+		if (_table.get(i) == key) {
+			_table.put(i, DELETED);
+			--_size;
+			++_deleted;
+			return _table.get(i + 1);
+		} else if (_table.get(i) == FREE) {
+			return 0;
+		}
+		
+		int h1 = 1 + (h0 % (_capacity - 2));
+		while (true) {
+			h -= h1;
+			if (h < 0) {
+				h += _capacity;
+			}
+			i = h * 2;
+			if (_table.get(i) == key) {
+				_table.put(i, DELETED);
+				--_size;
+				++_deleted;
+				return _table.get(i + 1);
+			} else if (_table.get(i) == FREE) {
+				return 0;
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the whole table to eliminate all cells marked as DELETED
+	 */
+	private void compact() {
+		LongBuffer oldTable = _table;
+		makeTable(_capacity);
+		copyValues(oldTable);
+	}
+	
+	@Override
+	public long get(long key) {
+		int h0 = hash(key);
+		int h = h0 % _capacity;
+		int i = h * 2;
+		if (_table.get(i) == key) {
+			return _table.get(i + 1);
+		} else if (_table.get(i) == FREE) {
+			return 0;
+		}
+		
+		int h1 = 1 + (h0 % (_capacity - 2));
+		while (true) {
+			h -= h1;
+			if (h < 0) {
+				h += _capacity;
+			}
+			i = h * 2;
+			if (_table.get(i) == key) {
+				return _table.get(i + 1);
+			} else if (_table.get(i) == FREE) {
+				return 0;
+			}
+		}
+	}
+	
+	@Override
+	public long[] keys() {
+		long[] result = new long[_size];
+		int i = 0;
+		for (int j = 0; j < _table.capacity(); j += 2) {
+			long l = _table.get(j);
+			if (l != FREE && l != DELETED) {
+				result[i++] = l;
+			}
+			if (i == _size) {
+				break;
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public long[] values() {
+		long[] result = new long[_size];
+		int i = 0;
+		for (int j = 0; j < _table.capacity(); j += 2) {
+			long l = _table.get(j);
+			if (l != FREE && l != DELETED) {
+				result[i++] = _table.get(j + 1);
+			}
+			if (i == _size) {
+				break;
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public IdMapIterator iterator() {
+		return new IdMapIterator() {
+			private int _n = 0;
+			private int _i = -2;
+			
+			@Override
+			public boolean hasNext() {
+				return _n < _size;
+			}
+
+			@Override
+			public void advance() {
+				if (_n == _size) {
+					throw new NoSuchElementException();
+				}
+				_i += 2;
+				while (_table.get(_i) == FREE || _table.get(_i) == DELETED) _i += 2;
+				++_n;
+			}
+
+			@Override
+			public long key() throws NoSuchElementException {
+				if (_n > _size || _i < 0) {
+					throw new NoSuchElementException();
+				}
+				return _table.get(_i);
+			}
+
+			@Override
+			public long value() throws NoSuchElementException {
+				if (_n > _size || _i < 0) {
+					throw new NoSuchElementException();
+				}
+				return _table.get(_i + 1);
+			}
+		};
+	}
+}
@@ -0,0 +1,250 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.io.File;
+import java.nio.LongBuffer;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdSet} based on a hash table
+ * stored outside the Java heap (see {@link AbstractOffHeapIdHashCollection}).
+ * Uses the same double hashing as {@link IdHashSet}.</p>
+ * <p>You MUST NOT try to add {@link Long#MAX_VALUE} or {@link Long#MIN_VALUE} to the
+ * set, because these value are reserved for unused table entries.</p>
+ * @author Michel Kraemer
+ */
+public class OffHeapIdHashSet extends AbstractOffHeapIdHashCollection implements IdSet {
+	/**
+	 * Constructs a new set backed by a direct buffer with the given
+	 * number of expected elements and the default load factor
+	 * (DEFAULT_LOAD_FACTOR)
+	 * @param expectedSize the number of expected elements
+	 */
+	public OffHeapIdHashSet(int expectedSize) {
+		this(expectedSize, DEFAULT_LOAD_FACTOR, null);
+	}
+	
+	/**
+	 * Constructs a new set with the given number of
+	 * expected elements and load factor
+	 * @param expectedSize the number of expected elements
+	 * @param loadFactor the load factor
+	 * @param directory the directory where memory-mapped table files
+	 * will be created (null if direct buffers should be used)
+	 */
+	public OffHeapIdHashSet(int expectedSize, float loadFactor, File directory) {
+		super(1, 1 + (1 - loadFactor), directory);
+		ensureCapacity(expectedSize);
+	}
+	
+	/**
+	 * Constructs a new set that is an exact copy of the given one. This
+	 * is a lot faster than adding all elements one by one, because the
+	 * internal table is simply copied.
+	 * @param set the set to copy
+	 */
+	public OffHeapIdHashSet(OffHeapIdHashSet set) {
+		super(set);
+	}
+	
+	/**
+	 * Constructs a new set backed by a direct buffer containing all
+	 * elements of the given set
+	 * @param set the set to copy
+	 */
+	public OffHeapIdHashSet(IdSet set) {
+		this(set.size());
+		IdSetIterator it = set.iterator();
+		while (it.hasNext()) {
+			add(it.next());
+		}
+	}
+	
+	private void copyValues(LongBuffer oldTable) {
+		for (int i = 0; i < oldTable.capacity(); ++i) {
+			long l = oldTable.get(i);
+			if (l != FREE && l != DELETED) {
+				addInternal(l);
+			}
+		}
+	}
+	
+	@Override
+	protected LongBuffer ensureCapacity(int elements) {
+		LongBuffer oldTable = super.ensureCapacity(elements);
+		if (oldTable != null) {
+			copyValues(oldTable);
+		}
+		return oldTable;
+	}
+	
+	/**
+	 * Adds a value to the table (without checks)
+	 * @param value the value
+	 * @return true if the value has been added, false if it was already
+	 * in the table
+	 */
+	private boolean addInternal(long value) {
+		int h0 = hash(value);
+		int h = h0 % _capacity;
+		if (_table.get(h) == value) {
+			return false;
+		}
+		if (_table.get(h) != FREE && _table.get(h) != DELETED) {
+			int h1 = 1 + (h0 % (_capacity - 2));
+			do {
+				h -= h1;
+				if (h < 0) {
+					h += _capacity;
+				}
+				if (_table.get(h) == value) {
+					return false;
+				}
+			} while (_table.get(h) != FREE && _table.get(h) != DELETED);
+		}
+		if (_table.get(h) == DELETED) {
+			--_deleted;
+		}
+		_table.put(h, value);
+		return true;
+	}
+
+	@Override
+	public boolean add(long value) {
+		if (value == FREE) {
+			throw new IllegalArgumentException("Long.MAX_VALUE is not allowed in this set implementation");
+		}
+		if (value == DELETED) {
+			throw new IllegalArgumentException("Long.MIN_VALUE is not allowed in this set implementation");
+		}
+		if (addInternal(value)) {
+			++_size;
+			ensureCapacity(_size);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean contains(long value) {
+		int h0 = hash(value);
+		int h = h0 % _capacity;
+		if (_table.get(h) == value) {
+			return true;
+		} else if (_table.get(h) == FREE) {
+			return false;
+		}
+		
+		int h1 = 1 + (h0 % (_capacity - 2));
+		while (true) {
+			h -= h1;
+			if (h < 0) {
+				h += _capacity;
+			}
+			if (_table.get(h) == value) {
+				return true;
+			} else if (_table.get(h) == FREE) {
+				return false;
+			}
+		}
+	}
+
+	@Override
+	public boolean remove(long value) {
+		boolean r = doRemove(value);
+		if (_deleted * 2 >= _capacity - _size) {
+			compact();
+		}
+		return r;
+	}
+	
+	private boolean doRemove(long value) {
+		int h0 = hash(value);
+		int h = h0 % _capacity;
+		if (_table.get(h) == value) {
+			_table.put(h, DELETED);
+			--_size;
+			++_deleted;
+			return true;
+		} else if (_table.get(h) == FREE) {
+			return false;
+		}
+		
+		int h1 = 1 + (h0 % (_capacity - 2));
+		while (true) {
+			h -= h1;
+			if (h < 0) {
+				h += _capacity;
+			}
+			if (_table.get(h) == value) {
+				_table.put(h, DELETED);
+				--_size;
+				++_deleted;
+				return true;
+			} else if (_table.get(h) == FREE) {
+				return false;
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the whole table to eliminate all cells marked as DELETED
+	 */
+	private void compact() {
+		LongBuffer oldTable = _table;
+		makeTable(_capacity);
+		copyValues(oldTable);
+	}
+
+	@Override
+	public long[] toArray() {
+		long[] result = new long[_size];
+		int i = 0;
+		for (int j = 0; j < _table.capacity(); ++j) {
+			long l = _table.get(j);
+			if (l != FREE && l != DELETED) {
+				result[i++] = l;
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public IdSetIterator iterator() {
+		return new IdSetIterator() {
+			private int _n = 0;
+			private int _i = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return _n < _size;
+			}
+
+			@Override
+			public long next() throws NoSuchElementException {
+				if (_n == _size) {
+					throw new NoSuchElementException();
+				}
+				while (_table.get(_i) == FREE || _table.get(_i) == DELETED) ++_i;
+				++_n;
+				return _table.get(_i++);
+			}
+		};
+	}
+}
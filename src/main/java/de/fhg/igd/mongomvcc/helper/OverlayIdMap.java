@@ -0,0 +1,227 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdMap} that puts a small,
+ * modifiable overlay on top of a base map. The base map is never changed.
+ * Modifications are recorded in {@link IdHashMap}s and {@link IdHashSet}s
+ * on the heap instead.</p>
+ * <p>This is used to modify large maps stored outside the Java heap
+ * (see {@link OffHeapIdHashMap}) without copying them.</p>
+ * <p><strong>Thread-safety:</strong> The base map may be shared between
+ * threads as long as nobody modifies it. The overlay is NOT thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class OverlayIdMap implements IdMap {
+	/**
+	 * The base map (never modified)
+	 */
+	private IdMap _base;
+	
+	/**
+	 * Key-value pairs put into this map. Overrides the base map.
+	 */
+	private final IdHashMap _added;
+	
+	/**
+	 * Keys of the base map that have been removed from this map
+	 */
+	private final IdHashSet _removed;
+	
+	/**
+	 * The number of elements in this map
+	 */
+	private int _size;
+	
+	/**
+	 * Constructs a new map that initially contains the same elements
+	 * as the given base map. The base map will never be modified.
+	 * @param base the base map
+	 */
+	public OverlayIdMap(IdMap base) {
+		_base = base;
+		_added = new IdHashMap();
+		_removed = new IdHashSet();
+		_size = base.size();
+	}
+	
+	/**
+	 * Constructs a new map that is an exact copy of the given one. Only
+	 * the overlay is copied. The base map is shared.
+	 * @param map the map to copy
+	 */
+	public OverlayIdMap(OverlayIdMap map) {
+		_base = map._base;
+		_added = new IdHashMap(map._added);
+		_removed = new IdHashSet(map._removed);
+		_size = map._size;
+	}
+	
+	/**
+	 * @return the number of modifications recorded on top of the base map
+	 */
+	public int getOverlaySize() {
+		return _added.size() + _removed.size();
+	}
+	
+	@Override
+	public int size() {
+		return _size;
+	}
+	
+	@Override
+	public void clear() {
+		_base = new IdHashMap();
+		_added.clear();
+		_removed.clear();
+		_size = 0;
+	}
+	
+	@Override
+	public long put(long key, long value) {
+		if (_added.containsKey(key)) {
+			return _added.put(key, value);
+		}
+		long old = 0;
+		if (_removed.remove(key)) {
+			++_size;
+		} else if (_base.containsKey(key)) {
+			old = _base.get(key);
+		} else {
+			++_size;
+		}
+		_added.put(key, value);
+		return old;
+	}
+	
+	@Override
+	public boolean containsKey(long key) {
+		if (_added.containsKey(key)) {
+			return true;
+		}
+		return !_removed.contains(key) && _base.containsKey(key);
+	}
+	
+	@Override
+	public long remove(long key) {
+		if (_added.containsKey(key)) {
+			long old = _added.remove(key);
+			if (_base.containsKey(key)) {
+				_removed.add(key);
+			}
+			--_size;
+			return old;
+		}
+		if (!_removed.contains(key) && _base.containsKey(key)) {
+			_removed.add(key);
+			--_size;
+			return _base.get(key);
+		}
+		return 0;
+	}
+	
+	@Override
+	public long get(long key) {
+		if (_added.containsKey(key)) {
+			return _added.get(key);
+		}
+		if (_removed.contains(key)) {
+			return 0;
+		}
+		return _base.get(key);
+	}
+	
+	@Override
+	public long[] keys() {
+		long[] result = new long[_size];
+		IdMapIterator it = iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			it.advance();
+			result[i++] = it.key();
+		}
+		return result;
+	}
+	
+	@Override
+	public long[] values() {
+		long[] result = new long[_size];
+		IdMapIterator it = iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			it.advance();
+			result[i++] = it.value();
+		}
+		return result;
+	}
+	
+	@Override
+	public IdMapIterator iterator() {
+		final IdMapIterator baseIt = _base.iterator();
+		final IdMapIterator addedIt = _added.iterator();
+		return new IdMapIterator() {
+			private int _n = 0;
+			private IdMapIterator _current;
+			
+			@Override
+			public boolean hasNext() {
+				return _n < _size;
+			}
+			
+			@Override
+			public void advance() {
+				if (_n == _size) {
+					throw new NoSuchElementException();
+				}
+				_current = null;
+				while (baseIt.hasNext()) {
+					baseIt.advance();
+					long key = baseIt.key();
+					if (!_added.containsKey(key) && !_removed.contains(key)) {
+						_current = baseIt;
+						break;
+					}
+				}
+				if (_current == null) {
+					addedIt.advance();
+					_current = addedIt;
+				}
+				++_n;
+			}
+			
+			@Override
+			public long key() throws NoSuchElementException {
+				if (_current == null) {
+					throw new NoSuchElementException();
+				}
+				return _current.key();
+			}
+			
+			@Override
+			public long value() throws NoSuchElementException {
+				if (_current == null) {
+					throw new NoSuchElementException();
+				}
+				return _current.value();
+			}
+		};
+	}
+}
@@ -0,0 +1,163 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <p>Provides an implementation of {@link IdSet} that puts a small,
+ * modifiable overlay on top of a base set. The base set is never changed.
+ * Modifications are recorded in {@link IdHashSet}s on the heap instead.</p>
+ * <p>This is used to modify large sets stored outside the Java heap
+ * (see {@link OffHeapIdHashSet}) without copying them.</p>
+ * <p><strong>Thread-safety:</strong> The base set may be shared between
+ * threads as long as nobody modifies it. The overlay is NOT thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class OverlayIdSet implements IdSet {
+	/**
+	 * The base set (never modified)
+	 */
+	private IdSet _base;
+	
+	/**
+	 * Values added to this set that are not in the base set
+	 */
+	private final IdHashSet _added;
+	
+	/**
+	 * Values of the base set that have been removed from this set
+	 */
+	private final IdHashSet _removed;
+	
+	/**
+	 * The number of elements in this set
+	 */
+	private int _size;
+	
+	/**
+	 * Constructs a new set that initially contains the same elements
+	 * as the given base set. The base set will never be modified.
+	 * @param base the base set
+	 */
+	public OverlayIdSet(IdSet base) {
+		_base = base;
+		_added = new IdHashSet();
+		_removed = new IdHashSet();
+		_size = base.size();
+	}
+	
+	/**
+	 * Constructs a new set that is an exact copy of the given one. Only
+	 * the overlay is copied. The base set is shared.
+	 * @param set the set to copy
+	 */
+	public OverlayIdSet(OverlayIdSet set) {
+		_base = set._base;
+		_added = new IdHashSet(set._added);
+		_removed = new IdHashSet(set._removed);
+		_size = set._size;
+	}
+	
+	@Override
+	public int size() {
+		return _size;
+	}
+	
+	@Override
+	public void clear() {
+		_base = new IdHashSet();
+		_added.clear();
+		_removed.clear();
+		_size = 0;
+	}
+	
+	@Override
+	public boolean add(long value) {
+		if (_removed.remove(value)) {
+			++_size;
+			return true;
+		}
+		if (_base.contains(value) || !_added.add(value)) {
+			return false;
+		}
+		++_size;
+		return true;
+	}
+	
+	@Override
+	public boolean contains(long value) {
+		if (_added.contains(value)) {
+			return true;
+		}
+		return !_removed.contains(value) && _base.contains(value);
+	}
+	
+	@Override
+	public boolean remove(long value) {
+		if (_added.remove(value)) {
+			--_size;
+			return true;
+		}
+		if (_base.contains(value) && _removed.add(value)) {
+			--_size;
+			return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public long[] toArray() {
+		long[] result = new long[_size];
+		IdSetIterator it = iterator();
+		int i = 0;
+		while (it.hasNext()) {
+			result[i++] = it.next();
+		}
+		return result;
+	}
+	
+	@Override
+	public IdSetIterator iterator() {
+		final IdSetIterator baseIt = _base.iterator();
+		final IdSetIterator addedIt = _added.iterator();
+		return new IdSetIterator() {
+			private int _n = 0;
+			
+			@Override
+			public boolean hasNext() {
+				return _n < _size;
+			}
+			
+			@Override
+			public long next() throws NoSuchElementException {
+				if (_n == _size) {
+					throw new NoSuchElementException();
+				}
+				++_n;
+				while (baseIt.hasNext()) {
+					long value = baseIt.next();
+					if (!_removed.contains(value)) {
+						return value;
+					}
+				}
+				return addedIt.next();
+			}
+		};
+	}
+}
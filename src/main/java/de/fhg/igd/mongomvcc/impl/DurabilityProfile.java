@@ -0,0 +1,102 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+
+package de.fhg.igd.mongomvcc.impl;
+
+import com.mongodb.WriteConcern;
+
+/**
+ * Specifies how durable inserts and commits are and how long they
+ * have to wait for the database
+ * @author Michel Kraemer
+ */
+public enum DurabilityProfile {
+	/**
+	 * Documents are inserted with the collection's default write concern.
+	 * Each commit waits until the database has flushed all data to disk.
+	 * Concurrent commits share a single flush. This is the default.
+	 */
+	FSYNC(null, WriteConcern.ACKNOWLEDGED, true, false),
+	
+	/**
+	 * Documents are inserted with the collection's default write concern.
+	 * Each commit waits until the branch update has been written to the
+	 * journal, which also contains all writes made before.
+	 */
+	JOURNALED(null, WriteConcern.JOURNALED, false, false),
+	
+	/**
+	 * Each insert and each commit waits until the database has
+	 * acknowledged it, but not until it is durable on disk
+	 */
+	ACKNOWLEDGED(WriteConcern.ACKNOWLEDGED, WriteConcern.ACKNOWLEDGED, false, false),
+	
+	/**
+	 * Inserts do not wait for the database at all. The commit verifies
+	 * that all inserted documents have arrived in the database and fails
+	 * otherwise. Each thread sends its inserts and the verification over
+	 * the same connection between its first insert and the commit or
+	 * rollback. Useful for bulk imports.
+	 */
+	UNACKNOWLEDGED(WriteConcern.UNACKNOWLEDGED, WriteConcern.ACKNOWLEDGED, false, true);
+	
+	private final WriteConcern _insertWriteConcern;
+	private final WriteConcern _commitWriteConcern;
+	private final boolean _flushOnCommit;
+	private final boolean _verifyOnCommit;
+	
+	private DurabilityProfile(WriteConcern insertWriteConcern,
+			WriteConcern commitWriteConcern, boolean flushOnCommit,
+			boolean verifyOnCommit) {
+		_insertWriteConcern = insertWriteConcern;
+		_commitWriteConcern = commitWriteConcern;
+		_flushOnCommit = flushOnCommit;
+		_verifyOnCommit = verifyOnCommit;
+	}
+	
+	/**
+	 * @return the write concern used to insert documents (may be null if
+	 * the collection's default write concern should be used)
+	 */
+	public WriteConcern getInsertWriteConcern() {
+		return _insertWriteConcern;
+	}
+	
+	/**
+	 * @return the write concern used to update the head of a branch
+	 */
+	public WriteConcern getCommitWriteConcern() {
+		return _commitWriteConcern;
+	}
+	
+	/**
+	 * @return true if the database should be flushed to disk after
+	 * the head of a branch has been updated
+	 */
+	public boolean isFlushOnCommit() {
+		return _flushOnCommit;
+	}
+	
+	/**
+	 * @return true if a commit should check if all inserted documents
+	 * have arrived in the database
+	 */
+	public boolean isVerifyOnCommit() {
+		return _verifyOnCommit;
+	}
+}
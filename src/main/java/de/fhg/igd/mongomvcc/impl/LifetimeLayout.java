@@ -0,0 +1,40 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl;
+
+/**
+ * Specifies where the lifetime information of documents is stored. The
+ * layout must not be changed once objects have been committed.
+ * @author Michel Kraemer
+ */
+public enum LifetimeLayout {
+	/**
+	 * Lifetime information is saved in an attribute of each document.
+	 * Commits update the documents, so they grow with each branch they
+	 * are inserted or deleted in. This is the default.
+	 */
+	EMBEDDED,
+	
+	/**
+	 * Lifetime information is saved in a separate collection next to
+	 * each collection containing documents. Documents are never changed
+	 * after they have been inserted. Queries look up the objects deleted
+	 * in the current branch in the separate collection first.
+	 */
+	SIDE_COLLECTION
+}
@@ -17,14 +17,25 @@
 
 package de.fhg.igd.mongomvcc.impl;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import com.mongodb.gridfs.GridFS;
 
 import de.fhg.igd.mongomvcc.VBranch;
@@ -34,11 +45,13 @@ import de.fhg.igd.mongomvcc.VLargeCollection;
 import de.fhg.igd.mongomvcc.helper.IdMap;
 import de.fhg.igd.mongomvcc.helper.IdMapIterator;
 import de.fhg.igd.mongomvcc.helper.IdSet;
-import de.fhg.igd.mongomvcc.helper.IdSetIterator;
 import de.fhg.igd.mongomvcc.impl.internal.Commit;
 import de.fhg.igd.mongomvcc.impl.internal.CompatibilityHelper;
 import de.fhg.igd.mongomvcc.impl.internal.Index;
+import de.fhg.igd.mongomvcc.impl.internal.InsertBuffer;
+import de.fhg.igd.mongomvcc.impl.internal.LifetimeCollection;
 import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
+import de.fhg.igd.mongomvcc.impl.internal.QueryPlanner;
 import de.fhg.igd.mongomvcc.impl.internal.Tree;
 
 /**
@@ -52,6 +65,33 @@ import de.fhg.igd.mongomvcc.impl.internal.Tree;
  * @author Michel Kraemer
  */
 public class MongoDBVBranch implements VBranch {
+	/**
+	 * The maximum number of OIDs in one update of lifetime attributes.
+	 * Keeps the update query well below the maximum document size.
+	 */
+	private static final int MAX_MARKER_SLICE = 1000;
+	
+	/**
+	 * The maximum number of invisible objects excluded from queries if
+	 * lifetime information is stored in a separate collection. If there
+	 * are more, queries send the OIDs of the visible objects instead.
+	 * The <code>$nin</code> list is therefore never larger than one
+	 * slice of OIDs sent with the OID_IN plan.
+	 */
+	private static final int MAX_INVISIBLE = QueryPlanner.OID_IN_SLICE;
+	
+	/**
+	 * The encoded size of documents per collection buffered with
+	 * write-behind (see {@link #setWriteBehind(int)}) before they are
+	 * written to the database regardless of their number
+	 */
+	public static final long MAX_WRITE_BEHIND_BYTES = 8 * 1024 * 1024;
+	
+	/**
+	 * The maximum number of times a commit is rebased before it fails
+	 */
+	private static final int MAX_REBASE_ATTEMPTS = 10;
+	
 	/**
 	 * The head of this branch. A thread-local variable since objects of
 	 * this class can be shared between threads.
@@ -64,6 +104,19 @@ public class MongoDBVBranch implements VBranch {
 	 */
 	private final ThreadLocal<Index> _index = new ThreadLocal<Index>();
 	
+	/**
+	 * Documents inserted by the current thread but not written to the
+	 * database yet (only used if write-behind is enabled)
+	 */
+	private final ThreadLocal<InsertBuffer> _insertBuffer = new ThreadLocal<InsertBuffer>();
+	
+	/**
+	 * True if the current thread has bound itself to a single database
+	 * connection, so its unacknowledged inserts can be verified on commit
+	 * (see {@link #beginInsert()})
+	 */
+	private final ThreadLocal<Boolean> _inRequest = new ThreadLocal<Boolean>();
+	
 	/**
 	 * Holds the query object for the current head. A query object is used to
 	 * limit the number of objects transferred from the database.
@@ -71,6 +124,15 @@ public class MongoDBVBranch implements VBranch {
 	private final ThreadLocal<Map<String, Object>> _currentQueryObject =
 			new ThreadLocal<Map<String, Object>>();
 	
+	/**
+	 * Holds the query objects for the current head per collection if
+	 * lifetime information is stored in separate collections (see
+	 * {@link #getQueryObject(String)}). A collection is mapped to null
+	 * if it contains too many invisible objects.
+	 */
+	private final ThreadLocal<Map<String, Map<String, Object>>> _currentCollectionQueryObjects =
+			new ThreadLocal<Map<String, Map<String, Object>>>();
+	
 	/**
 	 * The branch's name (may be null)
 	 */
@@ -91,6 +153,24 @@ public class MongoDBVBranch implements VBranch {
 	 */
 	private final MongoDBVDatabase _db;
 	
+	/**
+	 * The number of documents per collection buffered before they are
+	 * written to the database (0 if documents should be written immediately)
+	 */
+	private volatile int _writeBehindSize;
+	
+	/**
+	 * True if commits should be rebased automatically onto the head of
+	 * the named branch if it has been updated in the meantime
+	 */
+	private volatile boolean _autoRebase;
+	
+	/**
+	 * Specifies how durable inserts and commits are (may be null if
+	 * the database's profile should be used)
+	 */
+	private volatile DurabilityProfile _durabilityProfile;
+	
 	/**
 	 * Constructs a new branch object (not the branch itself)
 	 * @param name the branch's name (may be null for unnamed branches)
@@ -121,6 +201,191 @@ public class MongoDBVBranch implements VBranch {
 		return r;
 	}
 	
+	/**
+	 * Creates a task per collection that sets the lifetime attributes
+	 * of deleted and inserted objects
+	 * @param deletedOids the OIDs of deleted objects per collection
+	 * @param dirtyObjects the inserted objects per collection
+	 * @param cid the CID to save in the lifetime attributes
+	 * @return the tasks
+	 */
+	private List<FutureTask<Void>> makeMarkerTasks(Map<String, IdSet> deletedOids,
+			Map<String, IdMap> dirtyObjects, final long cid) {
+		DB db = _db.getDB();
+		final String lifetimeAttr = MongoDBConstants.LIFETIME + "." + getRootCid();
+		final String instimeAttr = MongoDBConstants.LIFETIME + ".i" + getRootCid();
+		
+		final long root = getRootCid();
+		final boolean side = _db.getLifetimeLayout() == LifetimeLayout.SIDE_COLLECTION;
+		
+		//lifetime attributes must have been written before the branch head
+		//is updated, so always wait for the acknowledgement. this also makes
+		//sure errors are reported through the tasks.
+		final WriteConcern wc = getDurabilityProfile().getCommitWriteConcern();
+		
+		Set<String> collections = new HashSet<String>(deletedOids.keySet());
+		collections.addAll(dirtyObjects.keySet());
+		List<FutureTask<Void>> r = new ArrayList<FutureTask<Void>>(collections.size());
+		for (String name : collections) {
+			final DBCollection dbc = db.getCollection(name);
+			final LifetimeCollection lc = side ? new LifetimeCollection(db, name) : null;
+			
+			IdSet deleted = deletedOids.get(name);
+			final long[] doids = deleted != null ? deleted.toArray() : new long[0];
+			
+			//documents inserted and then deleted again are skipped, so
+			//their time of insertion is not saved
+			IdMap m = dirtyObjects.get(name);
+			final long[] ioids = m != null ? getInsertedOids(m) : new long[0];
+			
+			r.add(new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() {
+					if (lc != null) {
+						//save lifetime information without touching the documents
+						lc.markDeleted(root, doids, cid, wc);
+						lc.markInserted(root, ioids, cid, wc);
+						return null;
+					}
+					//save the CID of the commit where the objects have been deleted
+					markObjects(dbc, doids, lifetimeAttr, cid, wc);
+					//save the CID of the commit where the objects have been inserted
+					markObjects(dbc, ioids, instimeAttr, cid, wc);
+					return null;
+				}
+			}));
+		}
+		return r;
+	}
+	
+	/**
+	 * Waits for tasks created by {@link #makeMarkerTasks(Map, Map, long)}
+	 * @param tasks the tasks
+	 * @throws VException if one of the tasks failed
+	 */
+	private static void awaitMarkerTasks(List<FutureTask<Void>> tasks) {
+		for (FutureTask<Void> t : tasks) {
+			try {
+				t.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new VException("Interrupted while writing lifetime attributes", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)e.getCause();
+				}
+				throw new VException("Could not write lifetime attributes", e.getCause());
+			}
+		}
+	}
+	
+	/**
+	 * Must be called before the current thread inserts documents. If
+	 * inserts are not acknowledged but verified on commit, binds the
+	 * thread to a single database connection until the commit. The database
+	 * applies operations sent over one connection in order, so the commit
+	 * sees all documents inserted before.
+	 */
+	void beginInsert() {
+		if (_inRequest.get() == null && getDurabilityProfile().isVerifyOnCommit()) {
+			_db.getDB().requestStart();
+			_inRequest.set(Boolean.TRUE);
+		}
+	}
+	
+	/**
+	 * Releases the database connection bound by {@link #beginInsert()}
+	 */
+	private void endInserts() {
+		if (_inRequest.get() != null) {
+			_inRequest.remove();
+			_db.getDB().requestDone();
+		}
+	}
+	
+	/**
+	 * Checks if all inserted documents exist in the database. Must be
+	 * called on the connection the documents have been inserted with
+	 * (see {@link #beginInsert()}).
+	 * @param dirtyObjects the inserted objects per collection
+	 * @throws VException if documents are missing or if the last
+	 * insert failed
+	 */
+	private void verifyInserted(Map<String, IdMap> dirtyObjects) {
+		DB db = _db.getDB();
+		
+		//wait until all operations sent over this connection have been
+		//applied and check the last one
+		CommandResult r = db.getLastError();
+		if (r.getErrorMessage() != null || r.get("err") != null) {
+			throw new VException("Inserted documents could not be written: " +
+					(r.get("err") != null ? r.get("err") : r.getErrorMessage()));
+		}
+		
+		for (Map.Entry<String, IdMap> e : dirtyObjects.entrySet()) {
+			DBCollection dbc = db.getCollection(e.getKey());
+			long[] oids = getInsertedOids(e.getValue());
+			for (int i = 0; i < oids.length; i += MAX_MARKER_SLICE) {
+				int len = Math.min(MAX_MARKER_SLICE, oids.length - i);
+				long[] slice = new long[len];
+				System.arraycopy(oids, i, slice, 0, len);
+				long found = dbc.count(new BasicDBObject(MongoDBConstants.ID,
+						new BasicDBObject("$in", slice)));
+				if (found != len) {
+					throw new VException((len - found) + " document(s) inserted " +
+							"into collection " + e.getKey() + " could not be written");
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Collects the OIDs of documents inserted into a collection
+	 * @param dirtyObjects the collection's dirty objects
+	 * @return the OIDs
+	 */
+	private static long[] getInsertedOids(IdMap dirtyObjects) {
+		long[] r = new long[dirtyObjects.size()];
+		int n = 0;
+		IdMapIterator li = dirtyObjects.iterator();
+		while (li.hasNext()) {
+			li.advance();
+			long oid = li.value();
+			if (oid == -1) {
+				//the document has been inserted and then deleted again
+				continue;
+			}
+			r[n++] = oid;
+		}
+		if (n < r.length) {
+			long[] nr = new long[n];
+			System.arraycopy(r, 0, nr, 0, n);
+			r = nr;
+		}
+		return r;
+	}
+	
+	/**
+	 * Sets a lifetime attribute of multiple documents. Uses one multi-update
+	 * per slice of OIDs instead of one update per document.
+	 * @param dbc the collection containing the documents
+	 * @param oids the OIDs of the documents
+	 * @param attr the name of the attribute to set
+	 * @param cid the CID to save in the attribute
+	 * @param wc the write concern to use
+	 */
+	private static void markObjects(DBCollection dbc, long[] oids,
+			String attr, long cid, WriteConcern wc) {
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(attr, cid));
+		for (int i = 0; i < oids.length; i += MAX_MARKER_SLICE) {
+			int len = Math.min(MAX_MARKER_SLICE, oids.length - i);
+			long[] slice = new long[len];
+			System.arraycopy(oids, i, slice, 0, len);
+			dbc.update(new BasicDBObject(MongoDBConstants.ID,
+					new BasicDBObject("$in", slice)), update, false, true, wc);
+		}
+	}
+	
 	private Map<String, Object> makeQueryObject() {
 		BasicDBList l = new BasicDBList();
 		String lba = MongoDBConstants.LIFETIME + "." + getRootCid();
@@ -156,7 +421,7 @@ public class MongoDBVBranch implements VBranch {
 	
 	/**
 	 * @return a query object which limits the number of objects returned
-	 * by accessing their lifetime information
+	 * by accessing their lifetime information embedded into the objects
 	 */
 	public Map<String, Object> getQueryObject() {
 		Map<String, Object> r = _currentQueryObject.get();
@@ -167,12 +432,53 @@ public class MongoDBVBranch implements VBranch {
 		return r;
 	}
 	
+	/**
+	 * Gets a query object which limits the number of objects returned
+	 * from the given collection. If lifetime information is stored in a
+	 * separate collection, the objects not visible in the current commit
+	 * are looked up once per head and excluded from the query. Objects
+	 * becoming invisible later (i.e. objects inserted by commits of other
+	 * branches) are not in the index, so they are still filtered out on
+	 * the client.
+	 * @param collection the collection's name
+	 * @return the query object or null if there are too many invisible
+	 * objects and the query cannot be limited by lifetime information
+	 */
+	public Map<String, Object> getQueryObject(String collection) {
+		if (_db.getLifetimeLayout() != LifetimeLayout.SIDE_COLLECTION) {
+			return getQueryObject();
+		}
+		
+		Map<String, Map<String, Object>> cache = _currentCollectionQueryObjects.get();
+		if (cache == null) {
+			cache = new HashMap<String, Map<String, Object>>();
+			_currentCollectionQueryObjects.set(cache);
+		} else if (cache.containsKey(collection)) {
+			return cache.get(collection);
+		}
+		
+		LifetimeCollection lc = new LifetimeCollection(_db.getDB(), collection);
+		long[] invisible = lc.findInvisible(getRootCid(), getHead(), MAX_INVISIBLE);
+		Map<String, Object> r;
+		if (invisible == null) {
+			r = null;
+		} else if (invisible.length == 0) {
+			r = Collections.emptyMap();
+		} else {
+			r = Collections.<String, Object>singletonMap(MongoDBConstants.ID,
+					new BasicDBObject("$nin", invisible));
+		}
+		cache.put(collection, r);
+		return r;
+	}
+	
 	/**
 	 * Updates the thread-local head of the currently checked out branch/commit
 	 * @param newHead the new head
 	 */
 	private void updateHead(Commit newHead) {
 		_currentQueryObject.remove();
+		_currentCollectionQueryObjects.remove();
 		_head.set(newHead);
 	}
 	
@@ -181,13 +487,27 @@ public class MongoDBVBranch implements VBranch {
 		return getHeadCommit().getCID();
 	}
 	
+	/**
+	 * Creates the database indexes required to query a collection
+	 * from this branch (if indexes are created automatically)
+	 * @param name the collection's name
+	 */
+	private void ensureIndexes(String name) {
+		if (_db.isAutoIndex()) {
+			_db.getIndexManager().ensureCollectionIndexes(name, _rootCid,
+					_db.getLifetimeLayout());
+		}
+	}
+	
 	@Override
 	public VCollection getCollection(String name) {
+		ensureIndexes(name);
 		return new MongoDBVCollection(_db.getDB().getCollection(name), this, _db.getCounter());
 	}
 	
 	@Override
 	public VLargeCollection getLargeCollection(String name) {
+		ensureIndexes(name);
 		DB db = _db.getDB();
 		return new MongoDBVLargeCollection(db.getCollection(name),
 				new GridFS(db, name), this, _db.getCounter());
@@ -201,6 +521,7 @@ public class MongoDBVBranch implements VBranch {
 	 * @return the collection (never null)
 	 */
 	public VLargeCollection getLargeCollection(String name, AccessStrategy accessStrategy) {
+		ensureIndexes(name);
 		DB db = _db.getDB();
 		return new MongoDBVLargeCollection(db.getCollection(name), new GridFS(db, name),
 				this, _db.getCounter(), accessStrategy);
@@ -214,7 +535,7 @@ public class MongoDBVBranch implements VBranch {
 	public Index getIndex() {
 		Index r = _index.get();
 		if (r == null) {
-			r = new Index(getHeadCommit(), _tree);
+			r = _db.getIndexCache().checkout(getHeadCommit());
 			_index.set(r);
 		}
 		return r;
@@ -227,6 +548,30 @@ public class MongoDBVBranch implements VBranch {
 		return _db;
 	}
 	
+	/**
+	 * Configures how durable inserts into this branch and commits are.
+	 * Overrides the database's profile for all threads using this branch
+	 * object.
+	 * @param profile the profile (may be null if the database's profile
+	 * should be used)
+	 * @see MongoDBVDatabase#setDurabilityProfile(DurabilityProfile)
+	 */
+	public void setDurabilityProfile(DurabilityProfile profile) {
+		_durabilityProfile = profile;
+	}
+	
+	/**
+	 * @return the profile specifying how durable inserts into this branch
+	 * and commits are
+	 */
+	public DurabilityProfile getDurabilityProfile() {
+		DurabilityProfile r = _durabilityProfile;
+		if (r == null) {
+			r = _db.getDurabilityProfile();
+		}
+		return r;
+	}
+	
 	/**
 	 * @return the CID of this branch's root
 	 */
@@ -236,50 +581,25 @@ public class MongoDBVBranch implements VBranch {
 	
 	@Override
 	public long commit() {
+		flushInserts();
 		Index idx = getIndex();
 		//clone dirty objects because we clear them below
 		Map<String, IdMap> dos = new HashMap<String, IdMap>(idx.getDirtyObjects());
+		Map<String, IdSet> deleted = new HashMap<String, IdSet>(idx.getDeletedOids());
 		Commit head = getHeadCommit();
-		Commit c = new Commit(_db.getCounter().getNextId(), head.getCID(), _rootCid, dos);
-		_tree.addCommit(c);
-		updateHead(c);
-		
-		//mark deleted objects as deleted in the database
-		DB db = _db.getDB();
-		String lifetimeAttr = MongoDBConstants.LIFETIME + "." + getRootCid();
-		for (Map.Entry<String, IdSet> e : idx.getDeletedOids().entrySet()) {
-			DBCollection dbc = db.getCollection(e.getKey());
-			IdSetIterator li = e.getValue().iterator();
-			while (li.hasNext()) {
-				long oid = li.next();
-				//save the CID of the commit where the object has been deleted
-				dbc.update(new BasicDBObject(MongoDBConstants.ID, oid), new BasicDBObject("$set",
-						new BasicDBObject(lifetimeAttr, head.getCID())));
-			}
-		}
-		
-		//mark dirty objects as inserted
-		String instimeAttr = MongoDBConstants.LIFETIME + ".i" + getRootCid();
-		for (Map.Entry<String, IdMap> e : dos.entrySet()) {
-			DBCollection dbc = db.getCollection(e.getKey());
-			IdMap m = e.getValue();
-			IdMapIterator li = m.iterator();
-			while (li.hasNext()) {
-				li.advance();
-				long oid = li.value();
-				if (oid == -1) {
-					//the document has been inserted and then deleted again
-					//do not save time of insertion
-					continue;
-				}
-				//save the CID of the commit where the object has been inserted
-				dbc.update(new BasicDBObject(MongoDBConstants.ID, oid), new BasicDBObject("$set",
-						new BasicDBObject(instimeAttr, head.getCID())));
+		DurabilityProfile profile = getDurabilityProfile();
+		if (profile.isVerifyOnCommit()) {
+			//inserts have not been acknowledged. make sure they have all
+			//arrived before the commit refers to them.
+			try {
+				verifyInserted(dos);
+			} finally {
+				endInserts();
 			}
+		} else {
+			endInserts();
 		}
-		
-		//reset index
-		idx.clearDirtyObjects();
+		Commit c = writeCommit(head, idx, dos, deleted);
 		
 		//if we fail below, the commit has already been performed and the
 		//index is clear. failing below simply means the named branch's
@@ -287,26 +607,287 @@ public class MongoDBVBranch implements VBranch {
 		//he/she just has to create a new named branch based on this
 		//branch's head.
 		
-		//update named branch's head
-		if (_name != null) {
-			//synchronize the following part, because we first resolve the branch
-			//and then update it
-			synchronized (this) {
-				//check for conflicts (i.e. if another thread has already updated the branch's head)
-				if (_tree.resolveBranch(_name).getCID() != c.getParentCID()) {
-					throw new VException("Branch " + _name + " has already been " +
-							"updated by another commit");
+		try {
+			//update named branch's head
+			if (_name != null) {
+				//atomically check for conflicts (i.e. if another thread or process
+				//has already updated the branch's head) and update the head
+				int attempts = 0;
+				while (!_tree.compareAndSetBranchHead(_name, c.getParentCID(), c.getCID(),
+						profile.getCommitWriteConcern(), profile.isFlushOnCommit())) {
+					if (!_autoRebase || attempts >= MAX_REBASE_ATTEMPTS) {
+						throw new VException("Branch " + _name + " has already been " +
+								"updated by another commit");
+					}
+					++attempts;
+					c = rebase(c, idx, dos, deleted);
 				}
-				_tree.updateBranchHead(_name, c.getCID());
 			}
+		} finally {
+			//reset index. it now represents the new head, so it does
+			//not belong to the old head's shared index anymore
+			idx.clearDirtyObjects();
+			_db.getIndexCache().release(idx);
 		}
 
 		return c.getCID();
 	}
 	
+	/**
+	 * Creates a new commit and saves it in the database together with the
+	 * lifetime attributes of all changed objects. Updates the thread-local
+	 * head but not the head of the named branch.
+	 * @param parent the new commit's parent
+	 * @param idx the index containing the new commit's state
+	 * @param dos the objects added, changed or deleted by the new commit
+	 * @param deleted the OIDs of objects deleted by the new commit
+	 * @return the new commit
+	 */
+	private Commit writeCommit(Commit parent, Index idx, Map<String, IdMap> dos,
+			Map<String, IdSet> deleted) {
+		Commit c = _tree.createCommit(_db.getCounter().getNextId(), parent, _rootCid, dos);
+		WriteConcern wc = getDurabilityProfile().getCommitWriteConcern();
+		
+		if (c.getCheckpointCID() == c.getCID()) {
+			//save the full state of the index, so it does not have to be
+			//rebuilt from all ancestors later. the checkpoint must be written
+			//before the commit, so the commit never refers to a
+			//non-existent checkpoint.
+			_tree.addCheckpoint(c.getCID(), idx.getObjects(), wc);
+		}
+		
+		//the commit must have been saved before objects are marked.
+		//otherwise, a failed commit would leave lifetime attributes
+		//referring to it.
+		_tree.addCommit(c, wc);
+		updateHead(c);
+		
+		//mark deleted and inserted objects in the database. the
+		//collections are processed in parallel.
+		List<FutureTask<Void>> markers = makeMarkerTasks(deleted, dos, parent.getCID());
+		Executor executor = _db.getCommitExecutor();
+		for (FutureTask<Void> t : markers) {
+			if (executor != null) {
+				executor.execute(t);
+			} else {
+				t.run();
+			}
+		}
+		awaitMarkerTasks(markers);
+		return c;
+	}
+	
+	/**
+	 * Rebases a commit onto the current head of the named branch. Creates a
+	 * new commit containing the same changes and makes it the thread-local
+	 * head. The old commit will become dangling.
+	 * @param c the commit to rebase
+	 * @param idx the index containing the commit's state and its dirty objects
+	 * @param dos the objects added, changed or deleted by the commit
+	 * @param deleted the OIDs of objects deleted by the commit
+	 * @return the new commit
+	 * @throws VException if the commits made in the meantime changed one
+	 * of the commit's objects or if the branch's current head is not a
+	 * descendant of the commit's parent
+	 */
+	private Commit rebase(Commit c, Index idx, Map<String, IdMap> dos,
+			Map<String, IdSet> deleted) {
+		Commit current = _tree.resolveBranch(_name);
+		List<Commit> path = _tree.resolvePath(c.getParentCID(), current);
+		if (path == null) {
+			throw new VException("Branch " + _name + " has been reset by " +
+					"another commit and cannot be rebased");
+		}
+		
+		//apply the other commits. throws if they conflict with ours.
+		idx.fastForward(path);
+		return writeCommit(current, idx, dos, deleted);
+	}
+	
+	/**
+	 * <p>Enables or disables write-behind. If enabled, documents inserted
+	 * into a collection are buffered per thread and written to the database
+	 * in large batches when the buffer is full (or larger than
+	 * {@link #MAX_WRITE_BEHIND_BYTES}), before the collection is batch-inserted
+	 * into or queried with an example, or at commit. Looking up objects by
+	 * UID or counting all objects does not write the buffer. Documents still
+	 * buffered are discarded on rollback without ever being written. Documents
+	 * already written are not deleted on rollback, but they are not visible
+	 * in any commit either.</p>
+	 * <p>This setting applies to all threads using this branch object.</p>
+	 * @param size the number of documents per collection buffered before
+	 * they are written to the database (0 if documents should be written
+	 * immediately, which is the default)
+	 */
+	public void setWriteBehind(int size) {
+		_writeBehindSize = size;
+	}
+	
+	/**
+	 * @return the number of documents per collection buffered before they
+	 * are written to the database (0 if write-behind is disabled)
+	 */
+	public int getWriteBehind() {
+		return _writeBehindSize;
+	}
+	
+	/**
+	 * Buffers a document inserted by the current thread. Writes all
+	 * buffered documents of the collection if the buffer is full.
+	 * @param collection the collection's name
+	 * @param dbo the document
+	 */
+	void bufferInsert(String collection, DBObject dbo) {
+		InsertBuffer buf = _insertBuffer.get();
+		if (buf == null) {
+			buf = new InsertBuffer();
+			_insertBuffer.set(buf);
+		}
+		if (buf.add(collection, dbo) >= _writeBehindSize ||
+				buf.getBytes(collection) >= MAX_WRITE_BEHIND_BYTES) {
+			flushInserts(collection);
+		}
+	}
+	
+	/**
+	 * Gets a document the current thread has buffered but not
+	 * written yet
+	 * @param collection the collection's name
+	 * @param oid the document's OID
+	 * @return the document or null if it is not buffered
+	 */
+	DBObject getBufferedInsert(String collection, long oid) {
+		InsertBuffer buf = _insertBuffer.get();
+		if (buf == null) {
+			return null;
+		}
+		return buf.get(collection, oid);
+	}
+	
+	/**
+	 * Writes all documents the current thread has buffered for
+	 * a collection to the database
+	 * @param collection the collection's name
+	 */
+	void flushInserts(String collection) {
+		InsertBuffer buf = _insertBuffer.get();
+		if (buf == null) {
+			return;
+		}
+		List<DBObject> docs = buf.remove(collection);
+		if (docs.isEmpty()) {
+			return;
+		}
+		
+		//skip documents that have already been replaced or deleted
+		Index idx = getIndex();
+		List<DBObject> valid = new ArrayList<DBObject>(docs.size());
+		for (DBObject dbo : docs) {
+			if (idx.containsOID(collection, (Long)dbo.get(MongoDBConstants.ID))) {
+				valid.add(dbo);
+			}
+		}
+		if (valid.isEmpty()) {
+			return;
+		}
+		
+		DBCollection dbc = _db.getDB().getCollection(collection);
+		WriteConcern wc = getDurabilityProfile().getInsertWriteConcern();
+		if (wc == null) {
+			wc = dbc.getWriteConcern();
+		}
+		beginInsert();
+		dbc.insert(valid, wc);
+	}
+	
+	/**
+	 * Writes all documents the current thread has buffered to the database
+	 */
+	private void flushInserts() {
+		InsertBuffer buf = _insertBuffer.get();
+		if (buf == null) {
+			return;
+		}
+		for (String collection : buf.getCollectionNames()) {
+			flushInserts(collection);
+		}
+	}
+	
+	/**
+	 * <p>Enables or disables automatic rebasing. If another thread or
+	 * process has updated the named branch since this thread's head has
+	 * been resolved, a commit usually fails. If automatic rebasing is
+	 * enabled, the commit is rebased onto the branch's new head and
+	 * retried instead, provided the other commits did not change any of
+	 * the objects changed by this thread.</p>
+	 * <p>This setting applies to all threads using this branch object.</p>
+	 * @param autoRebase true if commits should be rebased automatically
+	 * (default: false)
+	 */
+	public void setAutoRebase(boolean autoRebase) {
+		_autoRebase = autoRebase;
+	}
+	
+	/**
+	 * <p>Fast-forwards the thread-local head of this branch to the current
+	 * head of the named branch. If another thread or process has committed
+	 * to the branch in the meantime, only the new commits are applied to
+	 * the index. Dirty objects are kept.</p>
+	 * <p>If the branch's new head does not descend from the thread-local
+	 * head, the index will be rebuilt. This is only possible if there
+	 * are no dirty objects.</p>
+	 * <p>This method is a no-op for unnamed branches, since their head
+	 * can only be changed by this thread.</p>
+	 * @return true if the head has changed, false otherwise
+	 * @throws VException if a new commit changed a dirty object or if
+	 * the index cannot be rebuilt because it contains dirty objects
+	 */
+	public boolean refresh() {
+		if (_name == null) {
+			return false;
+		}
+		Commit oldHead = getHeadCommit();
+		Commit newHead = _tree.resolveBranch(_name);
+		if (newHead.getCID() == oldHead.getCID()) {
+			return false;
+		}
+		
+		Index idx = _index.get();
+		if (idx != null) {
+			List<Commit> commits = _tree.resolvePath(oldHead.getCID(), newHead);
+			if (commits != null) {
+				idx.fastForward(commits);
+				
+				//the index does not represent the shared index's commit anymore
+				_db.getIndexCache().release(idx);
+			} else {
+				if (!idx.getDirtyObjects().isEmpty()) {
+					throw new VException("Branch " + _name + " has been reset " +
+							"and the index contains uncommitted changes");
+				}
+				_db.getIndexCache().release(idx);
+				_index.remove();
+			}
+		}
+		
+		updateHead(newHead);
+		return true;
+	}
+	
 	@Override
 	public void rollback() {
+		//buffered documents will never be written
+		InsertBuffer buf = _insertBuffer.get();
+		if (buf != null) {
+			buf.clear();
+		}
+		endInserts();
+		
 		//simply reset the whole index
-		_index.remove();
+		Index idx = _index.get();
+		if (idx != null) {
+			_db.getIndexCache().release(idx);
+			_index.remove();
+		}
 	}
 }
@@ -17,12 +17,19 @@
 
 package de.fhg.igd.mongomvcc.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
 import de.fhg.igd.mongomvcc.VCollection;
 import de.fhg.igd.mongomvcc.VConstants;
@@ -30,8 +37,10 @@ import de.fhg.igd.mongomvcc.VCounter;
 import de.fhg.igd.mongomvcc.VCursor;
 import de.fhg.igd.mongomvcc.helper.Filter;
 import de.fhg.igd.mongomvcc.helper.IdMap;
+import de.fhg.igd.mongomvcc.impl.MongoDBVCursor.SizeFunction;
 import de.fhg.igd.mongomvcc.impl.internal.Index;
 import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
+import de.fhg.igd.mongomvcc.impl.internal.QueryPlanner;
 
 /**
  * Implements {@link VCollection} for MongoDB
@@ -49,6 +58,11 @@ public class MongoDBVCollection implements VCollection {
 	 */
 	protected final static String OID = MongoDBConstants.ID;
 	
+	/**
+	 * The maximum number of objects inserted with a single request
+	 */
+	private final static int INSERT_BATCH_SIZE = 1000;
+	
 	/**
 	 * The actual MongoDB collection
 	 */
@@ -69,6 +83,11 @@ public class MongoDBVCollection implements VCollection {
 	 */
 	private final VCounter _counter;
 	
+	/**
+	 * The plan chosen by the last query
+	 */
+	private volatile QueryPlan _lastQueryPlan;
+	
 	/**
 	 * A predicate which filters out objects with OIDs not in the current index
 	 */
@@ -85,6 +104,28 @@ public class MongoDBVCollection implements VCollection {
 		}
 	}
 
+	/**
+	 * The database queries chosen by {@link MongoDBVCollection#plan(Map)}
+	 */
+	private static final class PlannedQuery {
+		/**
+		 * The chosen plan
+		 */
+		final QueryPlan plan;
+		
+		/**
+		 * The queries to send to the database (one per slice of OIDs for
+		 * {@link QueryPlan#OID_IN}, otherwise exactly one, empty if the
+		 * collection does not contain any visible objects)
+		 */
+		final List<DBObject> queries;
+		
+		PlannedQuery(QueryPlan plan, List<DBObject> queries) {
+			this.plan = plan;
+			this.queries = queries;
+		}
+	}
+
 	/**
 	 * Creates a new MongoDBVCollection.
 	 * @param delegate the actual MongoDB collection
@@ -113,18 +154,25 @@ public class MongoDBVCollection implements VCollection {
 		long oid = _counter.getNextId();
 		obj.put(OID, oid);
 		
-		DBObject dbo;
-		if (obj instanceof DBObject) {
-			dbo = (DBObject)obj;
-		} else {
-			dbo = new BasicDBObject(obj);
+		if (_branch.getWriteBehind() > 0) {
+			//copy the object, so the caller can reuse it
+			DBObject dbo = new BasicDBObject(obj);
+			dbo.put(MongoDBConstants.TIMESTAMP, System.currentTimeMillis());
+			_branch.getIndex().insert(_name, uid, oid);
+			_branch.bufferInsert(_name, dbo);
+			return;
 		}
 		
-		//insert timestamp
-		dbo.put(MongoDBConstants.TIMESTAMP, System.currentTimeMillis());
+		DBObject dbo = toDBObject(obj);
 		
 		//insert object into database
-		_delegate.insert(dbo);
+		WriteConcern wc = _branch.getDurabilityProfile().getInsertWriteConcern();
+		_branch.beginInsert();
+		if (wc != null) {
+			_delegate.insert(dbo, wc);
+		} else {
+			_delegate.insert(dbo);
+		}
 		
 		if (dbo == obj) {
 			//remove timestamp from original document
@@ -135,6 +183,101 @@ public class MongoDBVCollection implements VCollection {
 		_branch.getIndex().insert(_name, uid, oid);
 	}
 	
+	@Override
+	public void insertAll(Iterable<? extends Map<String, Object>> objs) {
+		insertAll(objs.iterator());
+	}
+	
+	@Override
+	public void insertAll(Iterator<? extends Map<String, Object>> objs) {
+		//write buffered documents first, so documents arrive in order
+		_branch.flushInserts(_name);
+		
+		List<Map<String, Object>> batch = new ArrayList<Map<String, Object>>(INSERT_BATCH_SIZE);
+		while (objs.hasNext()) {
+			batch.add(objs.next());
+			if (batch.size() == INSERT_BATCH_SIZE) {
+				insertBatch(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) {
+			insertBatch(batch);
+		}
+	}
+	
+	/**
+	 * Inserts a batch of objects with a single request. Reserves all
+	 * required IDs at once and adds all objects to the index in bulk.
+	 * @param batch the objects to insert
+	 */
+	private void insertBatch(List<Map<String, Object>> batch) {
+		int n = batch.size();
+		
+		//check UIDs (throws ClassCastException of UID is no Long, this
+		//is by intention) and count how many IDs we need
+		int missingUids = 0;
+		for (Map<String, Object> obj : batch) {
+			if (obj.get(UID) == null) {
+				++missingUids;
+			}
+		}
+		long nextId = _counter.reserveIds(n + missingUids);
+		
+		long[] uids = new long[n];
+		long[] oids = new long[n];
+		List<DBObject> dbos = new ArrayList<DBObject>(n);
+		for (int i = 0; i < n; ++i) {
+			Map<String, Object> obj = batch.get(i);
+			Long uid = (Long)obj.get(UID);
+			if (uid == null) {
+				uid = nextId++;
+				obj.put(UID, uid);
+			}
+			uids[i] = uid;
+			oids[i] = nextId++;
+			obj.put(OID, oids[i]);
+			dbos.add(toDBObject(obj));
+		}
+		
+		//insert objects into database. the driver splits up the batch if
+		//it exceeds the maximum message size.
+		WriteConcern wc = _branch.getDurabilityProfile().getInsertWriteConcern();
+		if (wc == null) {
+			wc = _delegate.getWriteConcern();
+		}
+		_branch.beginInsert();
+		_delegate.insert(dbos, wc);
+		
+		for (int i = 0; i < n; ++i) {
+			if (dbos.get(i) == batch.get(i)) {
+				//remove timestamp from original document
+				batch.get(i).remove(MongoDBConstants.TIMESTAMP);
+			}
+		}
+		
+		//insert objects into index
+		_branch.getIndex().insertAll(_name, uids, oids, n);
+	}
+	
+	/**
+	 * Converts an object to a database object and adds a timestamp
+	 * @param obj the object
+	 * @return the database object (may be the same as the given object)
+	 */
+	private static DBObject toDBObject(Map<String, Object> obj) {
+		DBObject dbo;
+		if (obj instanceof DBObject) {
+			dbo = (DBObject)obj;
+		} else {
+			dbo = new BasicDBObject(obj);
+		}
+		
+		//insert timestamp
+		dbo.put(MongoDBConstants.TIMESTAMP, System.currentTimeMillis());
+		return dbo;
+	}
+	
 	@Override
 	public void delete(long uid) {
 		_branch.getIndex().delete(_name, uid);
@@ -154,41 +297,78 @@ public class MongoDBVCollection implements VCollection {
 	 * @param delegate the actual MongoDB cursor
 	 * @param filter a filter which decides if a DBObject should be included
 	 * into the cursor's result or not (can be null)
+	 * @param size calculates the number of objects in the cursor (can be
+	 * null if the objects should be counted by iterating over them)
 	 * @return the cursor
 	 */
-	protected VCursor createCursor(DBCursor delegate, Filter<DBObject> filter) {
-		return new MongoDBVCursor(delegate, filter);
+	protected VCursor createCursor(DBCursor delegate, Filter<DBObject> filter,
+			SizeFunction size) {
+		return new MongoDBVCursor(delegate, filter, size);
+	}
+	
+	/**
+	 * Creates a function which always returns the same size
+	 * @param size the size
+	 * @return the function
+	 */
+	private static SizeFunction makeConstantSize(final int size) {
+		return new SizeFunction() {
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+	
+	/**
+	 * Creates a function which counts the objects matching the given
+	 * example on the server
+	 * @param example the example
+	 * @return the function
+	 */
+	private SizeFunction makeCountSize(final Map<String, Object> example) {
+		return new SizeFunction() {
+			@Override
+			public int size() {
+				return (int)count(example);
+			}
+		};
 	}
 	
 	@Override
 	public VCursor find() {
-		//ask index for OIDs
-		IdMap objs = _branch.getIndex().find(_name);
-		if (objs.size() == 0) {
+		//make sure buffered documents can be found
+		_branch.flushInserts(_name);
+		
+		//ask index for OIDs. the index knows how many objects there are.
+		Index idx = _branch.getIndex();
+		int n = idx.size(_name);
+		if (n == 0) {
+			_lastQueryPlan = QueryPlan.SINGLE;
 			return MongoDBVCursor.EMPTY;
 		}
+		SizeFunction size = makeConstantSize(n);
 
 		//ask MongoDB for objects with the given OIDs
-		if (objs.size() == 1) {
+		if (n == 1) {
 			//shortcut for one object
-			return createCursor(_delegate.find(new BasicDBObject(OID, objs.values()[0])), null);
-		} else {
-			DBObject qo = new BasicDBObject();
-			qo.putAll(_branch.getQueryObject());
-			return createCursor(_delegate.find(qo), new OIDInIndexFilter());
+			_lastQueryPlan = QueryPlan.SINGLE;
+			long oid = getSortedOids(idx.find(_name))[0];
+			return createCursor(_delegate.find(new BasicDBObject(OID, oid)), null, size);
 		}
+		return find(new BasicDBObject(), null, size);
 	}
 	
 	@Override
 	public VCursor find(Map<String, Object> example) {
-		DBObject o = new BasicDBObject();
-		o.putAll(_branch.getQueryObject());
-		o.putAll(example);
-		return createCursor(_delegate.find(o), new OIDInIndexFilter());
+		_branch.flushInserts(_name);
+		return find(example, null, makeCountSize(example));
 	}
 	
 	@Override
 	public VCursor find(Map<String, Object> example, String... fields) {
+		_branch.flushInserts(_name);
+		
 		DBObject fo = new BasicDBObject();
 		for (String f : fields) {
 			fo.put(f, 1);
@@ -202,27 +382,317 @@ public class MongoDBVCollection implements VCollection {
 		//FIXME MongoDB cannot currently mix including and excluding fields
 		//FIXME if this is an issue for you, vote for https://jira.mongodb.org/browse/SERVER-391
 		//fo.putAll(EXCLUDELIFETIME);
+		//(documents do not contain lifetime information at all if it is
+		//stored in a separate collection, see LifetimeLayout)
+		
+		return find(example, fo, makeCountSize(example));
+	}
+	
+	/**
+	 * Queries objects matching the given example
+	 * @param example the example (may be empty)
+	 * @param fields the fields to return (may be null if all fields
+	 * should be returned)
+	 * @param size calculates the number of objects in the cursor
+	 * @return the cursor
+	 */
+	private VCursor find(Map<String, Object> example, DBObject fields,
+			SizeFunction size) {
+		PlannedQuery pq = plan(example);
+		if (pq.queries.isEmpty()) {
+			return MongoDBVCursor.EMPTY;
+		}
+		
+		if (pq.plan == QueryPlan.OID_IN) {
+			//all returned objects are visible, so no filter is needed
+			if (pq.queries.size() == 1) {
+				return createCursor(find(pq.queries.get(0), fields), null, size);
+			}
+			List<VCursor> cursors = new ArrayList<VCursor>(pq.queries.size());
+			for (DBObject o : pq.queries) {
+				cursors.add(createCursor(find(o, fields), null, null));
+			}
+			return new MongoDBVCompositeCursor(cursors, size);
+		}
+		
+		return createCursor(find(pq.queries.get(0), fields), new OIDInIndexFilter(), size);
+	}
+	
+	/**
+	 * Plans a query for objects matching the given example. Uses
+	 * {@link QueryPlanner} to decide whether the OIDs from the index should
+	 * be sent to the database or whether the lifetime attributes should be
+	 * evaluated. The number of objects is taken from the visible objects,
+	 * so objects deleted since the last commit are not counted.
+	 * @param example the example (may be empty)
+	 * @return the planned query
+	 */
+	private PlannedQuery plan(Map<String, Object> example) {
+		Index idx = _branch.getIndex();
+		long n = idx.size(_name);
+		if (n == 0) {
+			_lastQueryPlan = QueryPlan.SINGLE;
+			return new PlannedQuery(QueryPlan.SINGLE, Collections.<DBObject>emptyList());
+		}
+		
+		IdMap objs = idx.find(_name);
+		long[] oids = null;
+		QueryPlan plan;
+		Map<String, Object> lifetimeQuery = _branch.getQueryObject(_name);
+		if (example.containsKey(OID)) {
+			//do not override the example's OID
+			plan = QueryPlan.LIFETIME;
+		} else if (lifetimeQuery == null) {
+			//the lifetime information cannot be used to limit the query
+			plan = QueryPlan.OID_IN;
+		} else {
+			//the collection contains at least all visible objects
+			long collectionSize = _branch.getDB().getCollectionSizes().get(_delegate, n);
+			long rangeSize = -1;
+			if (QueryPlanner.considerHybrid(n, collectionSize)) {
+				oids = getSortedOids(objs);
+				rangeSize = _delegate.count(makeRangeQuery(oids));
+			}
+			plan = QueryPlanner.plan(n, collectionSize, rangeSize);
+		}
+		_lastQueryPlan = plan;
+		
+		if (plan == QueryPlan.OID_IN) {
+			if (oids == null) {
+				oids = getSortedOids(objs);
+			}
+			return new PlannedQuery(plan, makeOidQueries(example, oids));
+		}
 		
 		DBObject o = new BasicDBObject();
-		o.putAll(_branch.getQueryObject());
+		if (lifetimeQuery != null) {
+			o.putAll(lifetimeQuery);
+		}
 		o.putAll(example);
-		return createCursor(_delegate.find(o, fo), new OIDInIndexFilter());
+		if (plan == QueryPlan.HYBRID) {
+			DBObject range = (DBObject)makeRangeQuery(oids).get(OID);
+			Object oidQuery = o.get(OID);
+			if (oidQuery instanceof DBObject) {
+				//combine range with the OIDs excluded by the lifetime query
+				range.putAll((DBObject)oidQuery);
+			}
+			o.put(OID, range);
+		}
+		return new PlannedQuery(plan, Collections.singletonList(o));
 	}
 	
+	/**
+	 * Queries the actual MongoDB collection
+	 * @param query the query
+	 * @param fields the fields to return (may be null)
+	 * @return the database cursor
+	 */
+	private DBCursor find(DBObject query, DBObject fields) {
+		if (fields == null) {
+			return _delegate.find(query);
+		}
+		return _delegate.find(query, fields);
+	}
+	
+	/**
+	 * Gets the sorted OIDs of all objects in the given map. Skips
+	 * objects deleted since the last commit.
+	 * @param objs the objects
+	 * @return the sorted OIDs
+	 */
+	private static long[] getSortedOids(IdMap objs) {
+		long[] oids = objs.values();
+		Arrays.sort(oids);
+		int i = 0;
+		while (i < oids.length && oids[i] < 0) {
+			++i;
+		}
+		if (i > 0) {
+			oids = Arrays.copyOfRange(oids, i, oids.length);
+		}
+		return oids;
+	}
+	
+	/**
+	 * Creates queries matching objects with the given OIDs. Each query
+	 * contains at most {@link QueryPlanner#OID_IN_SLICE} OIDs.
+	 * @param example the example (may be empty)
+	 * @param oids the OIDs
+	 * @return the queries
+	 */
+	private static List<DBObject> makeOidQueries(Map<String, Object> example,
+			long[] oids) {
+		List<DBObject> r = new ArrayList<DBObject>();
+		for (int i = 0; i < oids.length; i += QueryPlanner.OID_IN_SLICE) {
+			int len = Math.min(QueryPlanner.OID_IN_SLICE, oids.length - i);
+			long[] slice = new long[len];
+			System.arraycopy(oids, i, slice, 0, len);
+			DBObject o = new BasicDBObject();
+			o.putAll(example);
+			o.put(OID, new BasicDBObject("$in", slice));
+			r.add(o);
+		}
+		return r;
+	}
+	
+	/**
+	 * Creates a query matching all objects whose OIDs lie between the
+	 * first and the last of the given OIDs
+	 * @param oids the sorted OIDs (must not be empty)
+	 * @return the query
+	 */
+	private static DBObject makeRangeQuery(long[] oids) {
+		return new BasicDBObject(OID, new BasicDBObject("$gte", oids[0])
+				.append("$lte", oids[oids.length - 1]));
+	}
+	
+	@Override
+	public long count(Map<String, Object> example) {
+		Index idx = _branch.getIndex();
+		if (example.isEmpty()) {
+			return idx.size(_name);
+		}
+		_branch.flushInserts(_name);
+		
+		PlannedQuery pq = plan(example);
+		long n = 0;
+		if (pq.plan == QueryPlan.OID_IN) {
+			//all matching objects are visible
+			for (DBObject q : pq.queries) {
+				n += _delegate.count(q);
+			}
+			return n;
+		}
+		
+		//the lifetime information does not reflect changes made since
+		//the last commit. only fetch OIDs and filter them on the client.
+		OIDInIndexFilter filter = new OIDInIndexFilter();
+		for (DBObject q : pq.queries) {
+			for (DBObject obj : _delegate.find(q, new BasicDBObject(OID, 1))) {
+				if (filter.filter(obj)) {
+					++n;
+				}
+			}
+		}
+		return n;
+	}
+	
+	@Override
+	public Map<String, Object> get(long uid) {
+		IdMap objs = _branch.getIndex().find(_name);
+		long oid = objs.get(uid);
+		if (oid <= 0) {
+			//object does not exist or has been deleted
+			return null;
+		}
+		DBObject obj = getBuffered(oid);
+		if (obj == null) {
+			obj = _delegate.findOne(new BasicDBObject(OID, oid));
+		}
+		if (obj == null) {
+			return null;
+		}
+		return toMap(obj);
+	}
+	
+	@Override
+	public List<Map<String, Object>> getAll(long[] uids) {
+		IdMap objs = _branch.getIndex().find(_name);
+		
+		//resolve OIDs and take buffered objects
+		Map<Long, Map<String, Object>> found = new HashMap<Long, Map<String, Object>>();
+		long[] oids = new long[uids.length];
+		int n = 0;
+		for (int i = 0; i < uids.length; ++i) {
+			long oid = objs.get(uids[i]);
+			oids[i] = oid;
+			if (oid > 0) {
+				DBObject obj = getBuffered(oid);
+				if (obj != null) {
+					found.put(oid, toMap(obj));
+				} else {
+					++n;
+				}
+			}
+		}
+		long[] sorted = new long[n];
+		n = 0;
+		for (long oid : oids) {
+			if (oid > 0 && !found.containsKey(oid)) {
+				sorted[n++] = oid;
+			}
+		}
+		Arrays.sort(sorted);
+		
+		//fetch other objects in slices
+		for (DBObject q : makeOidQueries(new BasicDBObject(), sorted)) {
+			for (DBObject obj : _delegate.find(q)) {
+				found.put((Long)obj.get(OID), toMap(obj));
+			}
+		}
+		
+		List<Map<String, Object>> r = new ArrayList<Map<String, Object>>(uids.length);
+		for (long oid : oids) {
+			r.add(oid > 0 ? found.get(oid) : null);
+		}
+		return r;
+	}
+	
+	/**
+	 * Gets a copy of an object the current thread has inserted but which
+	 * has not been written to the database yet
+	 * @param oid the object's OID
+	 * @return the copy or null if the object is not buffered
+	 */
+	private DBObject getBuffered(long oid) {
+		DBObject obj = _branch.getBufferedInsert(_name, oid);
+		if (obj == null) {
+			return null;
+		}
+		//the caller must not modify the document that will be written
+		return new BasicDBObject(obj.toMap());
+	}
+	
+	/**
+	 * Converts a database object to a map
+	 * @param obj the database object
+	 * @return the map (may be the same as the given object)
+	 */
 	@SuppressWarnings("unchecked")
+	private static Map<String, Object> toMap(DBObject obj) {
+		if (obj instanceof Map) {
+			return (Map<String, Object>)obj;
+		}
+		return obj.toMap();
+	}
+	
 	@Override
 	public Map<String, Object> findOne(Map<String, Object> example) {
+		_branch.flushInserts(_name);
+		Map<String, Object> lifetimeQuery = _branch.getQueryObject(_name);
+		if (lifetimeQuery == null && !example.containsKey(OID)) {
+			//the lifetime information cannot be used to limit the query.
+			//ask for the OIDs from the index instead.
+			long[] oids = getSortedOids(_branch.getIndex().find(_name));
+			for (DBObject q : makeOidQueries(example, oids)) {
+				DBObject obj = _delegate.findOne(q);
+				if (obj != null) {
+					return toMap(obj);
+				}
+			}
+			return null;
+		}
+		
 		DBObject o = new BasicDBObject();
-		o.putAll(_branch.getQueryObject());
+		if (lifetimeQuery != null) {
+			o.putAll(lifetimeQuery);
+		}
 		o.putAll(example);
 		OIDInIndexFilter filter = new OIDInIndexFilter();
 		DBCursor c = _delegate.find(o);
 		for (DBObject obj : c) {
 			if (filter.filter(obj)) {
-				if (obj instanceof Map) {
-					return (Map<String, Object>)obj;
-				}
-				return obj.toMap();
+				return toMap(obj);
 			}
 		}
 		return null;
@@ -233,6 +703,14 @@ public class MongoDBVCollection implements VCollection {
 		return _name;
 	}
 	
+	/**
+	 * @return the plan chosen by the last query made through this
+	 * collection (may be null if there has not been any query yet)
+	 */
+	public QueryPlan getLastQueryPlan() {
+		return _lastQueryPlan;
+	}
+	
 	/**
 	 * @return the counter used to generate unique IDs
 	 */
@@ -0,0 +1,99 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import de.fhg.igd.mongomvcc.VCursor;
+import de.fhg.igd.mongomvcc.impl.MongoDBVCursor.SizeFunction;
+
+/**
+ * A cursor which iterates over the results of several other cursors
+ * one after the other
+ * @author Michel Kraemer
+ */
+public class MongoDBVCompositeCursor implements VCursor {
+	private final List<VCursor> _cursors;
+	private final SizeFunction _size;
+	
+	/**
+	 * Constructs a new cursor
+	 * @param cursors the cursors to iterate over
+	 */
+	public MongoDBVCompositeCursor(List<VCursor> cursors) {
+		this(cursors, null);
+	}
+	
+	/**
+	 * Constructs a new cursor
+	 * @param cursors the cursors to iterate over
+	 * @param size calculates the number of objects in this cursor (can
+	 * be null if the sizes of the given cursors should be summed up)
+	 */
+	public MongoDBVCompositeCursor(List<VCursor> cursors, SizeFunction size) {
+		_cursors = cursors;
+		_size = size;
+	}
+	
+	@Override
+	public Iterator<Map<String, Object>> iterator() {
+		final Iterator<VCursor> cursors = _cursors.iterator();
+		return new Iterator<Map<String, Object>>() {
+			private Iterator<Map<String, Object>> _current;
+			
+			@Override
+			public boolean hasNext() {
+				while (_current == null || !_current.hasNext()) {
+					if (!cursors.hasNext()) {
+						return false;
+					}
+					_current = cursors.next().iterator();
+				}
+				return true;
+			}
+			
+			@Override
+			public Map<String, Object> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return _current.next();
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	@Override
+	public int size() {
+		if (_size != null) {
+			return _size.size();
+		}
+		int n = 0;
+		for (VCursor c : _cursors) {
+			n += c.size();
+		}
+		return n;
+	}
+}
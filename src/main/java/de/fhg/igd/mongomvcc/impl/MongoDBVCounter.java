@@ -15,18 +15,33 @@
 // You should have received a copy of the GNU Lesser General Public
 // License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
 
+
 package de.fhg.igd.mongomvcc.impl;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 
 import de.fhg.igd.mongomvcc.VCounter;
+import de.fhg.igd.mongomvcc.VException;
 
 /**
  * Implementation of {@link VCounter} for MongoDB. Uses a high-low strategy to
- * obtain a pool of free IDs on each call to {@link #updateNextId()}.
+ * obtain a pool of free IDs from the database. IDs are taken from the
+ * current pool without locking. The next pool is fetched in the
+ * background before the current one runs out. The size of the pools
+ * adapts to the rate in which IDs are used, so short-lived processes
+ * do not waste IDs and heavy writers rarely have to access the database.
  * @author Carsten Steul
  */
 public class MongoDBVCounter implements VCounter {
@@ -34,9 +49,107 @@ public class MongoDBVCounter implements VCounter {
      * Collection names
      */
     private final static String COLLECTION_COUNTER = "_counter";
-    
-	private DBCollection _counter;
-	private long _nextId;
+	
+	/**
+	 * The default minimum number of IDs in a pool
+	 */
+	public final static int DEFAULT_MIN_POOL_SIZE = 0x1000;
+	
+	/**
+	 * The default maximum number of IDs in a pool
+	 */
+	public final static int DEFAULT_MAX_POOL_SIZE = 0x100000;
+	
+	/**
+	 * The desired time between two pool fetches in nanoseconds. Pools
+	 * grow if they are used up faster and shrink if they last much longer.
+	 */
+	private final static long TARGET_FETCH_INTERVAL = 1000L * 1000L * 1000L;
+	
+	/**
+	 * Fetches pools in the background for all counters. Uses a single
+	 * daemon thread which terminates when it is idle, so the executor
+	 * does not have to be shut down.
+	 */
+	private final static ThreadPoolExecutor PREFETCH_EXECUTOR;
+	static {
+		PREFETCH_EXECUTOR = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mongomvcc-counter-prefetch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		PREFETCH_EXECUTOR.allowCoreThreadTimeOut(true);
+	}
+	
+	/**
+	 * A pool of free IDs
+	 */
+	private static class Pool {
+		/**
+		 * The next free ID
+		 */
+		final AtomicLong _next;
+		
+		/**
+		 * The first ID not belonging to this pool anymore
+		 */
+		final long _end;
+		
+		/**
+		 * The ID which triggers fetching the next pool in the background
+		 */
+		final long _prefetchAt;
+		
+		Pool(long start, long end) {
+			_next = new AtomicLong(start);
+			_end = end;
+			//fetch next pool when a quarter of this one is left
+			_prefetchAt = end - (end - start) / 4;
+		}
+	}
+	
+	private final DBCollection _counter;
+	
+	/**
+	 * The current pool
+	 */
+	private volatile Pool _pool;
+	
+	/**
+	 * The next pool being fetched in the background (may be null). Must
+	 * only be accessed while {@link #_refillLock} is held.
+	 */
+	private FutureTask<Pool> _prefetched;
+	
+	/**
+	 * Will be locked while the current pool is replaced
+	 */
+	private final Object _refillLock = new Object();
+	
+	/**
+	 * The minimum number of IDs in a pool
+	 */
+	private int _minPoolSize = DEFAULT_MIN_POOL_SIZE;
+	
+	/**
+	 * The maximum number of IDs in a pool
+	 */
+	private int _maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+	
+	/**
+	 * The number of IDs in the next pool
+	 */
+	private int _poolSize = DEFAULT_MIN_POOL_SIZE;
+	
+	/**
+	 * The time when the last pool has been fetched (as returned by
+	 * {@link System#nanoTime()}, 0 if no pool has been fetched yet)
+	 */
+	private long _lastFetch;
 	
 	/**
 	 * Default constructor
@@ -44,27 +157,171 @@ public class MongoDBVCounter implements VCounter {
 	 */
 	public MongoDBVCounter(DB db) {
 		_counter = db.getCollection(COLLECTION_COUNTER);
-		_nextId = 0;
 		if(_counter.findOne("counter") == null) {
 			_counter.insert(new BasicDBObject("_id", "counter").append("c", 0L));
 		}
-		updateNextId();
+		_pool = fetchPool();
+	}
+	
+	/**
+	 * Configures how many IDs are reserved in the database at once. The
+	 * counter starts with the minimum and adapts the number to the rate
+	 * in which IDs are used.
+	 * @param min the minimum number of IDs reserved at once
+	 * @param max the maximum number of IDs reserved at once
+	 */
+	public synchronized void setPoolSizeBounds(int min, int max) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("Invalid pool size bounds: " +
+					min + ", " + max);
+		}
+		_minPoolSize = min;
+		_maxPoolSize = max;
+		_poolSize = Math.max(min, Math.min(max, _poolSize));
 	}
 	
-	private void updateNextId() {
+	/**
+	 * @return the number of IDs that will be reserved with the next pool
+	 */
+	public synchronized int getPoolSize() {
+		return _poolSize;
+	}
+	
+	/**
+	 * Calculates the size of the next pool based on the time
+	 * since the last pool has been fetched
+	 * @return the size of the next pool
+	 */
+	private synchronized int nextPoolSize() {
+		long now = System.nanoTime();
+		if (_lastFetch != 0) {
+			long elapsed = now - _lastFetch;
+			if (elapsed < TARGET_FETCH_INTERVAL / 2) {
+				_poolSize = (int)Math.min((long)_poolSize * 2, _maxPoolSize);
+			} else if (elapsed > TARGET_FETCH_INTERVAL * 4) {
+				_poolSize = Math.max(_poolSize / 2, _minPoolSize);
+			}
+		}
+		_lastFetch = now;
+		return _poolSize;
+	}
+	
+	/**
+	 * Reserves a range of IDs in the database
+	 * @param count the number of IDs to reserve
+	 * @return the first ID of the range
+	 */
+	private long reserve(long count) {
+		//reserve one more ID in case the range starts at 0 which is never used
 		DBObject doc = _counter.findAndModify(new BasicDBObject("_id", "counter"),
-				new BasicDBObject("$inc", new BasicDBObject("c", 0x10000)));
-		_nextId = (Long) doc.get("c");
-		if (_nextId == 0) {
-			++_nextId;
+				new BasicDBObject("$inc", new BasicDBObject("c", count + 1)));
+		long r = (Long) doc.get("c");
+		if (r == 0) {
+			++r;
+		}
+		return r;
+	}
+	
+	/**
+	 * Fetches a new pool from the database
+	 * @return the new pool
+	 */
+	private Pool fetchPool() {
+		int size = nextPoolSize();
+		long start = reserve(size);
+		return new Pool(start, start + size);
+	}
+	
+	/**
+	 * Starts fetching the next pool in the background. If this fails, the
+	 * next pool will be fetched by the thread that needs it (see
+	 * {@link #refill(Pool)}).
+	 */
+	private void prefetch() {
+		FutureTask<Pool> f = new FutureTask<Pool>(new Callable<Pool>() {
+			@Override
+			public Pool call() {
+				return fetchPool();
+			}
+		});
+		synchronized (_refillLock) {
+			if (_prefetched != null) {
+				//the next pool is already being fetched
+				return;
+			}
+			_prefetched = f;
+		}
+		PREFETCH_EXECUTOR.execute(f);
+	}
+	
+	/**
+	 * Replaces the current pool by a new one unless another thread
+	 * has already done so
+	 * @param exhausted the pool that has been found to be exhausted
+	 */
+	private void refill(Pool exhausted) {
+		synchronized (_refillLock) {
+			if (_pool != exhausted) {
+				return;
+			}
+			Pool p = null;
+			FutureTask<Pool> f = _prefetched;
+			if (f != null) {
+				_prefetched = null;
+				try {
+					p = f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VException("Interrupted while waiting for new IDs", e);
+				} catch (ExecutionException e) {
+					//fetching failed in the background. try again below.
+				}
+			}
+			if (p == null) {
+				p = fetchPool();
+			}
+			_pool = p;
 		}
 	}
 	
 	@Override
-	public synchronized long getNextId() {
-		if((_nextId & 0xFFFF) == 0xFFFF ) {
-			updateNextId();
+	public long getNextId() {
+		while (true) {
+			Pool p = _pool;
+			long id = p._next.getAndIncrement();
+			if (id < p._end) {
+				if (id == p._prefetchAt) {
+					//exactly one thread gets here for each pool
+					prefetch();
+				}
+				return id;
+			}
+			refill(p);
+		}
+	}
+	
+	@Override
+	public long reserveIds(int count) {
+		if (count <= 0) {
+			throw new IllegalArgumentException("Number of IDs must be greater than 0");
+		}
+		
+		Pool p = _pool;
+		if (count <= p._end - p._prefetchAt) {
+			//try to take the IDs from the current pool
+			long first = p._next.getAndAdd(count);
+			if (first + count <= p._end) {
+				if (first <= p._prefetchAt && first + count > p._prefetchAt) {
+					//we skipped the ID that triggers prefetching
+					prefetch();
+				}
+				return first;
+			}
+			//the pool is exhausted. the remaining IDs are lost.
+			refill(p);
 		}
-		return _nextId++;
+		
+		//reserve a separate range
+		return reserve(count);
 	}
 }
@@ -34,8 +34,20 @@ import de.fhg.igd.mongomvcc.helper.TransformingIterator;
  * @author Michel Kraemer
  */
 public class MongoDBVCursor implements VCursor {
+	/**
+	 * Calculates the number of objects in a cursor without
+	 * iterating over them
+	 */
+	public interface SizeFunction {
+		/**
+		 * @return the number of objects in the cursor
+		 */
+		int size();
+	}
+	
 	private final DBCursor _delegate;
 	private final Filter<DBObject> _filter;
+	private final SizeFunction _size;
 	
 	/**
 	 * An empty cursor
@@ -83,8 +95,22 @@ public class MongoDBVCursor implements VCursor {
 	 * into the cursor's result or not (can be null)
 	 */
 	public MongoDBVCursor(DBCursor delegate, Filter<DBObject> filter) {
+		this(delegate, filter, null);
+	}
+	
+	/**
+	 * Constructs a new cursor
+	 * @param delegate the actual MongoDB cursor
+	 * @param filter a filter which decides if a DBObject should be included
+	 * into the cursor's result or not (can be null)
+	 * @param size calculates the number of objects in this cursor (can
+	 * be null if the objects should be counted by iterating over them)
+	 */
+	public MongoDBVCursor(DBCursor delegate, Filter<DBObject> filter,
+			SizeFunction size) {
 		_delegate = delegate;
 		_filter = filter;
+		_size = size;
 	}
 	
 	@Override
@@ -107,6 +133,9 @@ public class MongoDBVCursor implements VCursor {
 
 	@Override
 	public int size() {
+		if (_size != null) {
+			return _size.size();
+		}
 		if (_filter != null) {
 			//very slow... bummer...
 			Iterator<DBObject> i = new FilteringIterator<DBObject>(_delegate.iterator(), _filter);
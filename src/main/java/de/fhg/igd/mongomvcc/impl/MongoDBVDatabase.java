@@ -20,12 +20,21 @@ package de.fhg.igd.mongomvcc.impl;
 import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.CommandResult;
 import com.mongodb.DB;
+import com.mongodb.DBObject;
 import com.mongodb.Mongo;
 import com.mongodb.ReadPreference;
 import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
 
 import de.fhg.igd.mongomvcc.VBranch;
 import de.fhg.igd.mongomvcc.VConstants;
@@ -36,7 +45,11 @@ import de.fhg.igd.mongomvcc.VHistory;
 import de.fhg.igd.mongomvcc.VMaintenance;
 import de.fhg.igd.mongomvcc.helper.IdMap;
 import de.fhg.igd.mongomvcc.impl.internal.BuildInfo;
+import de.fhg.igd.mongomvcc.impl.internal.CollectionSizeCache;
 import de.fhg.igd.mongomvcc.impl.internal.Commit;
+import de.fhg.igd.mongomvcc.impl.internal.IndexCache;
+import de.fhg.igd.mongomvcc.impl.internal.IndexManager;
+import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
 import de.fhg.igd.mongomvcc.impl.internal.Tree;
 
 /**
@@ -44,6 +57,22 @@ import de.fhg.igd.mongomvcc.impl.internal.Tree;
  * @author Michel Kraemer
  */
 public class MongoDBVDatabase implements VDatabase {
+	/**
+	 * The default maximum number of threads writing lifetime
+	 * attributes during a commit
+	 */
+	public static final int DEFAULT_COMMIT_THREADS = 4;
+	
+	/**
+	 * The ID of the settings document containing the lifetime layout
+	 */
+	private static final String LIFETIME_LAYOUT = "lifetimeLayout";
+	
+	/**
+	 * The attribute of a settings document containing its value
+	 */
+	private static final String VALUE = "value";
+	
 	/**
 	 * The MongoDB database object
 	 */
@@ -59,6 +88,75 @@ public class MongoDBVDatabase implements VDatabase {
 	 */
 	private Tree _tree;
 	
+	/**
+	 * Caches indexes shared by all threads that check out the same commit
+	 */
+	private IndexCache _indexCache;
+	
+	/**
+	 * Creates and verifies the database indexes
+	 */
+	private IndexManager _indexManager;
+	
+	/**
+	 * Caches the number of documents per collection for the query planner
+	 */
+	private final CollectionSizeCache _collectionSizes = new CollectionSizeCache();
+	
+	/**
+	 * True if database indexes should be created automatically
+	 */
+	private boolean _autoIndex = true;
+	
+	/**
+	 * Specifies where the lifetime information of documents is stored
+	 */
+	private volatile LifetimeLayout _lifetimeLayout = LifetimeLayout.EMBEDDED;
+	
+	/**
+	 * True if the lifetime layout has been set explicitly
+	 */
+	private volatile boolean _lifetimeLayoutSet;
+	
+	/**
+	 * The number of commits after which a new checkpoint is written
+	 */
+	private int _checkpointCommits = Tree.DEFAULT_CHECKPOINT_COMMITS;
+	
+	/**
+	 * The number of changed objects after which a new checkpoint is written
+	 */
+	private long _checkpointChanges = Tree.DEFAULT_CHECKPOINT_CHANGES;
+	
+	/**
+	 * The number of objects a collection must contain before its index
+	 * is moved off the heap (0 if indexes should always stay on the heap)
+	 */
+	private int _offHeapThreshold = 0;
+	
+	/**
+	 * Specifies how durable inserts and commits are
+	 */
+	private volatile DurabilityProfile _durabilityProfile = DurabilityProfile.FSYNC;
+	
+	/**
+	 * The maximum number of threads writing lifetime attributes
+	 * during a commit
+	 */
+	private int _commitThreads = DEFAULT_COMMIT_THREADS;
+	
+	/**
+	 * The number of milliseconds to wait for concurrent commits before
+	 * the database is flushed
+	 */
+	private long _groupCommitWindow = 0;
+	
+	/**
+	 * Executes the tasks of a commit which can run in parallel (may be
+	 * null if these tasks should be executed in the committing thread)
+	 */
+	private volatile ThreadPoolExecutor _commitExecutor;
+	
 	/**
 	 * Build information about the database instance (may be null if the
 	 * information is not available)
@@ -119,6 +217,18 @@ public class MongoDBVDatabase implements VDatabase {
 		_db = mongo.getDB(name);
 		_counter = new MongoDBVCounter(_db);
 		_tree = new Tree(_db);
+		_tree.setCheckpointInterval(_checkpointCommits, _checkpointChanges);
+		if (_buildInfo != null) {
+			_tree.setMaxDocumentSize(_buildInfo.getMaxBsonObjectSize());
+		}
+		_tree.getGroupCommitter().setWindow(_groupCommitWindow);
+		_indexCache = new IndexCache(_tree);
+		_indexCache.setOffHeapThreshold(_offHeapThreshold);
+		_commitExecutor = makeCommitExecutor(_commitThreads);
+		_indexManager = new IndexManager(_db);
+		if (_autoIndex) {
+			_indexManager.ensureTreeIndexes();
+		}
 		
 		//create root commit and master branch if needed
 		if (_tree.isEmpty()) {
@@ -127,6 +237,54 @@ public class MongoDBVDatabase implements VDatabase {
 			_tree.addCommit(root);
 			_tree.addBranch(VConstants.MASTER, root.getCID());
 		}
+		
+		//use the lifetime layout saved in the database unless another
+		//one has been set explicitly (which is only allowed as long as
+		//nothing has been committed)
+		if (!_lifetimeLayoutSet) {
+			LifetimeLayout saved = loadLifetimeLayout();
+			if (saved != null) {
+				_lifetimeLayout = saved;
+			}
+		}
+		saveLifetimeLayout(_lifetimeLayout);
+	}
+	
+	/**
+	 * Loads the lifetime layout saved in the database
+	 * @return the layout or null if no layout has been saved yet
+	 */
+	private LifetimeLayout loadLifetimeLayout() {
+		DBObject o = _db.getCollection(MongoDBConstants.COLLECTION_SETTINGS)
+				.findOne(new BasicDBObject(MongoDBConstants.ID, LIFETIME_LAYOUT));
+		if (o == null) {
+			return null;
+		}
+		return LifetimeLayout.valueOf((String)o.get(VALUE));
+	}
+	
+	/**
+	 * Saves the lifetime layout in the database
+	 * @param layout the layout
+	 * @throws VException if the database already uses another layout
+	 * and objects have been committed
+	 */
+	private void saveLifetimeLayout(LifetimeLayout layout) {
+		LifetimeLayout saved = loadLifetimeLayout();
+		if (saved == layout) {
+			return;
+		}
+		if (saved != null && _db.getCollection(
+				MongoDBConstants.COLLECTION_COMMITS).count() > 1) {
+			throw new VException("The database stores lifetime " +
+					"information with the layout " + saved + ". It cannot " +
+					"be changed after objects have been committed.");
+		}
+		_db.getCollection(MongoDBConstants.COLLECTION_SETTINGS).update(
+				new BasicDBObject(MongoDBConstants.ID, LIFETIME_LAYOUT),
+				new BasicDBObject(MongoDBConstants.ID, LIFETIME_LAYOUT)
+					.append(VALUE, layout.name()),
+				true, false, WriteConcern.ACKNOWLEDGED);
 	}
 	
 	/**
@@ -161,6 +319,189 @@ public class MongoDBVDatabase implements VDatabase {
 		}
 	}
 	
+	/**
+	 * <p>Configures how often checkpoints are written. A checkpoint contains
+	 * the full state of all collections at the time of a commit, so
+	 * checking out a commit does not require all of its ancestors to be read.
+	 * A new checkpoint will be written as soon as one of the given thresholds
+	 * is reached.</p>
+	 * <p>This method can be called before or after the database has
+	 * been connected.</p>
+	 * @param commits the number of commits after which a new checkpoint
+	 * is written (0 if checkpoints should not be written based on the
+	 * number of commits)
+	 * @param changes the number of changed objects after which a new
+	 * checkpoint is written (0 if checkpoints should not be written based
+	 * on the number of changes)
+	 */
+	public void setCheckpointInterval(int commits, long changes) {
+		_checkpointCommits = commits;
+		_checkpointChanges = changes;
+		if (_tree != null) {
+			_tree.setCheckpointInterval(commits, changes);
+		}
+	}
+	
+	/**
+	 * <p>Configures when the index of a collection is moved off the Java
+	 * heap. Indexes of collections with tens of millions of objects are very
+	 * large and may cause long garbage collection pauses. Off-heap indexes
+	 * are a little bit slower but are not scanned by the garbage collector.</p>
+	 * <p>This method can be called before or after the database has
+	 * been connected. It only affects indexes built afterwards.</p>
+	 * @param threshold the number of objects a collection must contain
+	 * before its index is moved off the heap (0 if indexes should always
+	 * stay on the heap)
+	 */
+	public void setOffHeapThreshold(int threshold) {
+		_offHeapThreshold = threshold;
+		if (_indexCache != null) {
+			_indexCache.setOffHeapThreshold(threshold);
+		}
+	}
+	
+	/**
+	 * <p>Configures how durable inserts and commits are. Branches use
+	 * this profile unless they have their own one
+	 * (see {@link MongoDBVBranch#setDurabilityProfile(DurabilityProfile)}).</p>
+	 * <p>This method can be called before or after the database has
+	 * been connected.</p>
+	 * @param profile the profile (default: {@link DurabilityProfile#FSYNC})
+	 */
+	public void setDurabilityProfile(DurabilityProfile profile) {
+		if (profile == null) {
+			throw new IllegalArgumentException("Durability profile must not be null");
+		}
+		_durabilityProfile = profile;
+	}
+	
+	/**
+	 * @return the profile specifying how durable inserts and commits are
+	 */
+	public DurabilityProfile getDurabilityProfile() {
+		return _durabilityProfile;
+	}
+	
+	/**
+	 * <p>Configures how long a commit waits for other concurrent commits
+	 * before the database is flushed to disk. All commits arriving in
+	 * this window share a single flush. Even without a window, commits
+	 * arriving while a flush is in progress share the next one.</p>
+	 * <p>This method can be called before or after the database has
+	 * been connected.</p>
+	 * @param millis the window in milliseconds
+	 */
+	public void setGroupCommitWindow(long millis) {
+		_groupCommitWindow = millis;
+		if (_tree != null) {
+			_tree.getGroupCommitter().setWindow(millis);
+		}
+	}
+	
+	/**
+	 * Specifies if the indexes required by the versioning layer should be
+	 * created automatically when the database is connected and when a
+	 * collection is accessed. Applications managing their indexes on
+	 * their own may disable this. Must be called before the database
+	 * is connected.
+	 * @param autoIndex true if indexes should be created automatically
+	 * (the default)
+	 */
+	public void setAutoIndex(boolean autoIndex) {
+		_autoIndex = autoIndex;
+	}
+	
+	/**
+	 * @return true if indexes are created automatically
+	 */
+	public boolean isAutoIndex() {
+		return _autoIndex;
+	}
+	
+	/**
+	 * <p>Specifies where the lifetime information of documents is stored.
+	 * If it is stored in a separate collection, documents are never
+	 * updated after they have been inserted.</p>
+	 * <p>The layout is saved in the database. If it is not set, the
+	 * saved layout will be used when connecting. It can only be changed
+	 * as long as no objects have been committed.</p>
+	 * @param layout the layout (the default is
+	 * {@link LifetimeLayout#EMBEDDED})
+	 * @throws VException if the database is connected, objects have been
+	 * committed and the database uses another layout
+	 */
+	public void setLifetimeLayout(LifetimeLayout layout) {
+		if (_db != null) {
+			saveLifetimeLayout(layout);
+		}
+		_lifetimeLayout = layout;
+		_lifetimeLayoutSet = true;
+	}
+	
+	/**
+	 * @return the layout used to store lifetime information
+	 */
+	public LifetimeLayout getLifetimeLayout() {
+		return _lifetimeLayout;
+	}
+	
+	/**
+	 * <p>Configures how many threads write the lifetime attributes of
+	 * inserted and deleted objects during a commit. Each thread handles
+	 * one collection at a time after the commit itself has been saved.
+	 * Commits spanning many collections benefit from more threads.</p>
+	 * <p>This method can be called before or after the database has
+	 * been connected.</p>
+	 * @param threads the maximum number of threads (0 or 1 if all
+	 * lifetime attributes should be written by the committing thread)
+	 */
+	public synchronized void setCommitThreads(int threads) {
+		_commitThreads = threads;
+		if (_db != null) {
+			ThreadPoolExecutor old = _commitExecutor;
+			_commitExecutor = makeCommitExecutor(threads);
+			if (old != null) {
+				old.shutdown();
+			}
+		}
+	}
+	
+	/**
+	 * Creates an executor for the tasks of a commit which can run in
+	 * parallel. The executor's threads are daemon threads and terminate
+	 * when they are idle, so the executor does not have to be shut down.
+	 * @param threads the maximum number of threads
+	 * @return the executor or null if the number of threads is less than 2
+	 */
+	private static ThreadPoolExecutor makeCommitExecutor(int threads) {
+		if (threads < 2) {
+			return null;
+		}
+		ThreadPoolExecutor r = new ThreadPoolExecutor(threads, threads,
+				60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+			private final AtomicInteger _count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "mongomvcc-commit-" + _count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		r.allowCoreThreadTimeOut(true);
+		return r;
+	}
+	
+	/**
+	 * @return an executor for the tasks of a commit which can run in
+	 * parallel (may be null if these tasks should be executed in the
+	 * committing thread)
+	 */
+	public Executor getCommitExecutor() {
+		return _commitExecutor;
+	}
+	
 	/**
 	 * @return the underlying MongoDB database
 	 */
@@ -168,6 +509,45 @@ public class MongoDBVDatabase implements VDatabase {
 		return _db;
 	}
 	
+	/**
+	 * @return the tree of commits
+	 */
+	public Tree getTree() {
+		return _tree;
+	}
+	
+	/**
+	 * @return a cache for indexes shared by all threads that check
+	 * out the same commit
+	 */
+	public IndexCache getIndexCache() {
+		return _indexCache;
+	}
+	
+	/**
+	 * @return the object that creates and verifies the database indexes
+	 */
+	public IndexManager getIndexManager() {
+		return _indexManager;
+	}
+	
+	/**
+	 * @return the cached number of documents per collection
+	 */
+	public CollectionSizeCache getCollectionSizes() {
+		return _collectionSizes;
+	}
+	
+	/**
+	 * Checks if all indexes required by the versioning layer exist
+	 * @return descriptions of the missing indexes (the list is empty
+	 * if all indexes exist)
+	 * @see IndexManager#findMissingIndexes()
+	 */
+	public List<String> findMissingIndexes() {
+		return _indexManager.findMissingIndexes();
+	}
+	
 	/**
 	 * @return build information about the database instance (may be null if the
 	 * information is not available)
@@ -179,6 +559,8 @@ public class MongoDBVDatabase implements VDatabase {
 	@Override
 	public void drop() {
 		_db.dropDatabase();
+		_indexManager.reset();
+		_collectionSizes.clear();
 	}
 	
 	@Override
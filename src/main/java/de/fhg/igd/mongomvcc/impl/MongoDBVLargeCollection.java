@@ -18,8 +18,12 @@
 package de.fhg.igd.mongomvcc.impl;
 
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -32,6 +36,7 @@ import de.fhg.igd.mongomvcc.VCursor;
 import de.fhg.igd.mongomvcc.VLargeCollection;
 import de.fhg.igd.mongomvcc.helper.Filter;
 import de.fhg.igd.mongomvcc.helper.TransformingIterator;
+import de.fhg.igd.mongomvcc.impl.MongoDBVCursor.SizeFunction;
 
 /**
  * Saves primitive byte arrays and {@link InputStream}s in MongoDB's
@@ -46,10 +51,11 @@ public class MongoDBVLargeCollection extends MongoDBVCollection implements
 	 */
 	private class MongoDBVLargeCursor extends MongoDBVCursor {
 		/**
-		 * @see MongoDBVCursor#MongoDBVCursor(DBCursor, Filter)
+		 * @see MongoDBVCursor#MongoDBVCursor(DBCursor, Filter, SizeFunction)
 		 */
-		public MongoDBVLargeCursor(DBCursor delegate, Filter<DBObject> filter) {
-			super(delegate, filter);
+		public MongoDBVLargeCursor(DBCursor delegate, Filter<DBObject> filter,
+				SizeFunction size) {
+			super(delegate, filter, size);
 		}
 		
 		@Override
@@ -126,8 +132,17 @@ public class MongoDBVLargeCollection extends MongoDBVCollection implements
 	}
 	
 	@Override
-	protected VCursor createCursor(DBCursor delegate, Filter<DBObject> filter) {
-		return new MongoDBVLargeCursor(delegate, filter);
+	public void insertAll(Iterator<? extends Map<String, Object>> objs) {
+		//large objects have to be converted one by one
+		while (objs.hasNext()) {
+			insert(objs.next());
+		}
+	}
+	
+	@Override
+	protected VCursor createCursor(DBCursor delegate, Filter<DBObject> filter,
+			SizeFunction size) {
+		return new MongoDBVLargeCursor(delegate, filter, size);
 	}
 	
 	@Override
@@ -141,4 +156,33 @@ public class MongoDBVLargeCollection extends MongoDBVCollection implements
 		_accessStrategy.onResolve(r);
 		return r;
 	}
+	
+	@Override
+	public Map<String, Object> get(long uid) {
+		Map<String, Object> r = super.get(uid);
+		if (r == null) {
+			return null;
+		}
+		DefaultConvertStrategy cs = new DefaultConvertStrategy(_gridFS, getCounter());
+		_accessStrategy.setConvertStrategy(cs);
+		_accessStrategy.onResolve(r);
+		return r;
+	}
+	
+	@Override
+	public List<Map<String, Object>> getAll(long[] uids) {
+		List<Map<String, Object>> r = super.getAll(uids);
+		DefaultConvertStrategy cs = new DefaultConvertStrategy(_gridFS, getCounter());
+		_accessStrategy.setConvertStrategy(cs);
+		
+		//the same object may appear more than once if UIDs are repeated
+		Set<Map<String, Object>> resolved = Collections.newSetFromMap(
+				new IdentityHashMap<Map<String, Object>, Boolean>());
+		for (Map<String, Object> obj : r) {
+			if (obj != null && resolved.add(obj)) {
+				_accessStrategy.onResolve(obj);
+			}
+		}
+		return r;
+	}
 }
@@ -32,6 +32,7 @@ import de.fhg.igd.mongomvcc.helper.IdMap;
 import de.fhg.igd.mongomvcc.helper.IdMapIterator;
 import de.fhg.igd.mongomvcc.helper.IdSet;
 import de.fhg.igd.mongomvcc.impl.internal.Commit;
+import de.fhg.igd.mongomvcc.impl.internal.LifetimeCollection;
 import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
 import de.fhg.igd.mongomvcc.impl.internal.Tree;
 
@@ -70,8 +71,10 @@ public class MongoDBVMaintenance implements VMaintenance {
 	public long pruneDanglingCommits(long expiry, TimeUnit unit) {
 		long[] cids = findDanglingCommits(expiry, unit);
 		DBCollection collCommits = _db.getDB().getCollection(MongoDBConstants.COLLECTION_COMMITS);
+		DBCollection collCheckpoints = _db.getDB().getCollection(MongoDBConstants.COLLECTION_CHECKPOINTS);
+		DBCollection collCommitChunks = _db.getDB().getCollection(MongoDBConstants.COLLECTION_COMMIT_CHUNKS);
 		
-		//delete commits in chunks, so we avoid sending an array that is
+		//delete commits (and their checkpoints and chunks) in chunks, so we avoid sending an array that is
 		//larger than the maximum document size
 		final int sliceCount = 1000;
 		for (int i = 0; i < cids.length; i += sliceCount) {
@@ -80,7 +83,12 @@ public class MongoDBVMaintenance implements VMaintenance {
 			System.arraycopy(cids, i, slice, 0, maxSliceCount);
 			collCommits.remove(new BasicDBObject(MongoDBConstants.ID,
 					new BasicDBObject("$in", slice)));
+			collCheckpoints.remove(new BasicDBObject(MongoDBConstants.CID,
+					new BasicDBObject("$in", slice)));
+			collCommitChunks.remove(new BasicDBObject(MongoDBConstants.CID,
+					new BasicDBObject("$in", slice)));
 		}
+		_db.getTree().getCommitCache().invalidate(cids);
 		
 		return cids.length;
 	}
@@ -155,6 +163,11 @@ public class MongoDBVMaintenance implements VMaintenance {
 					new BasicDBObject("$in", slice)));
 		}
 		
+		if (_db.getLifetimeLayout() == LifetimeLayout.SIDE_COLLECTION) {
+			new LifetimeCollection(_db.getDB(), collection).remove(oids);
+		}
+		_db.getCollectionSizes().clear();
+		
 		return oids.length;
 	}
 	
@@ -174,8 +187,9 @@ public class MongoDBVMaintenance implements VMaintenance {
 		
 		//iterate through all commits and eliminate referenced documents
 		DBCollection collCommits = _db.getDB().getCollection(MongoDBConstants.COLLECTION_COMMITS);
+		Tree tree = _db.getTree();
 		for (DBObject o : collCommits.find()) {
-			Commit c = Tree.deserializeCommit(o);
+			Commit c = tree.deserializeCommit(o);
 			Map<String, IdMap> allObjs = c.getObjects();
 			IdMap objs = allObjs.get(collection);
 			if (objs != null) {
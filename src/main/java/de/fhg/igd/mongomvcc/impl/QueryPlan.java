@@ -0,0 +1,47 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl;
+
+/**
+ * Strategies used to fetch the objects visible in a branch
+ * @author Michel Kraemer
+ */
+public enum QueryPlan {
+	/**
+	 * At most one object is visible. It is fetched by its OID.
+	 */
+	SINGLE,
+	
+	/**
+	 * The OIDs from the index are sent to the database in slices. Only
+	 * visible objects are transferred, but the OIDs have to be sent too.
+	 */
+	OID_IN,
+	
+	/**
+	 * The database evaluates the lifetime attributes. Objects which are
+	 * not visible are filtered out on the client.
+	 */
+	LIFETIME,
+	
+	/**
+	 * Like {@link #LIFETIME}, but the database only looks at objects whose
+	 * OIDs lie between the smallest and the largest OID from the index
+	 */
+	HYBRID
+}
@@ -0,0 +1,90 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.DBCollection;
+
+/**
+ * <p>Caches the number of documents in MongoDB collections, so the
+ * {@link QueryPlanner} does not have to ask the database on every
+ * query. Sizes are only estimates. They are refreshed after
+ * {@link #REFRESH_INTERVAL} milliseconds or as soon as they are obviously
+ * outdated (i.e. if the caller knows there are more documents).</p>
+ * <p><strong>Thread-safety:</strong> This class is thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class CollectionSizeCache {
+	/**
+	 * The number of milliseconds after which a cached size is refreshed
+	 */
+	public static final long REFRESH_INTERVAL = 10000;
+	
+	/**
+	 * A cached size
+	 */
+	private static final class Entry {
+		/**
+		 * The number of documents
+		 */
+		final long _size;
+		
+		/**
+		 * The time when the documents have been counted
+		 */
+		final long _time;
+		
+		Entry(long size, long time) {
+			_size = size;
+			_time = time;
+		}
+	}
+	
+	/**
+	 * The cached sizes per collection name
+	 */
+	private final Map<String, Entry> _entries =
+			new ConcurrentHashMap<String, Entry>();
+	
+	/**
+	 * Gets the estimated number of documents in a collection
+	 * @param dbc the collection
+	 * @param minSize the number of documents the collection contains
+	 * at least. The collection is counted again if the cached size is
+	 * smaller.
+	 * @return the estimated number of documents
+	 */
+	public long get(DBCollection dbc, long minSize) {
+		long now = System.currentTimeMillis();
+		Entry e = _entries.get(dbc.getName());
+		if (e == null || e._size < minSize || now - e._time > REFRESH_INTERVAL) {
+			e = new Entry(dbc.count(), now);
+			_entries.put(dbc.getName(), e);
+		}
+		return e._size;
+	}
+	
+	/**
+	 * Removes all cached sizes
+	 */
+	public void clear() {
+		_entries.clear();
+	}
+}
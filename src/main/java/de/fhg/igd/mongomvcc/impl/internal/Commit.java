@@ -53,6 +53,29 @@ public class Commit {
 	 */
 	private final Map<String, IdMap> _objects;
 	
+	/**
+	 * The CID of the nearest commit (this one or one of its ancestors) for
+	 * which a checkpoint has been written. Can be 0 (zero) if there is no
+	 * such commit.
+	 */
+	private final long _checkpointCID;
+	
+	/**
+	 * The number of commits between the checkpoint and this commit
+	 */
+	private final int _checkpointDistance;
+	
+	/**
+	 * The number of objects added/changed/deleted since the checkpoint
+	 */
+	private final long _checkpointChanges;
+	
+	/**
+	 * The CIDs of this commit's nearest ancestors (parent first). Used
+	 * as a hint to load the ancestors in bulk. May be empty, but never null.
+	 */
+	private final long[] _ancestors;
+	
 	/**
 	 * Constructs a new commit. Sets the commit's timestamp to the current time.
 	 * @param cid the commit's ID
@@ -77,11 +100,40 @@ public class Commit {
 	 * names to maps of UIDs and OIDs.
 	 */
 	public Commit(long cid, long timestamp, long parentCID, long rootCID, Map<String, IdMap> objects) {
+		this(cid, timestamp, parentCID, rootCID, objects, 0, 0, 0, new long[0]);
+	}
+	
+	/**
+	 * Constructs a new commit
+	 * @param cid the commit's ID
+	 * @param timestamp the commit's timestamp (in milliseconds since epoch, UTC)
+	 * @param parentCID the CID of this commit's parent. Can be 0 (zero) if
+	 * there is no parent (can only happen for the root commit)
+	 * @param rootCID the root CID of the branch this commit belongs to
+	 * @param objects objects added/changed in this commit. Maps collection
+	 * names to maps of UIDs and OIDs.
+	 * @param checkpointCID the CID of the nearest commit (this one or one
+	 * of its ancestors) for which a checkpoint has been written. Can be
+	 * 0 (zero) if there is no such commit.
+	 * @param checkpointDistance the number of commits between the
+	 * checkpoint and this commit
+	 * @param checkpointChanges the number of objects added/changed/deleted
+	 * since the checkpoint
+	 * @param ancestors the CIDs of this commit's nearest ancestors (parent
+	 * first). Used as a hint to load the ancestors in bulk. May be empty.
+	 */
+	public Commit(long cid, long timestamp, long parentCID, long rootCID,
+			Map<String, IdMap> objects, long checkpointCID,
+			int checkpointDistance, long checkpointChanges, long[] ancestors) {
 		_cid = cid;
 		_timestamp = timestamp;
 		_parentCID = parentCID;
 		_rootCID = rootCID;
 		_objects = objects;
+		_checkpointCID = checkpointCID;
+		_checkpointDistance = checkpointDistance;
+		_checkpointChanges = checkpointChanges;
+		_ancestors = ancestors;
 	}
 	
 	/**
@@ -121,4 +173,38 @@ public class Commit {
 	public Map<String, IdMap> getObjects() {
 		return _objects;
 	}
+	
+	/**
+	 * @return the CID of the nearest commit (this one or one of its
+	 * ancestors) for which a checkpoint has been written. Can be 0 (zero)
+	 * if there is no such commit.
+	 */
+	public long getCheckpointCID() {
+		return _checkpointCID;
+	}
+	
+	/**
+	 * @return the number of commits between the checkpoint and this commit
+	 */
+	public int getCheckpointDistance() {
+		return _checkpointDistance;
+	}
+	
+	/**
+	 * @return the number of objects added/changed/deleted since the checkpoint
+	 */
+	public long getCheckpointChanges() {
+		return _checkpointChanges;
+	}
+	
+	/**
+	 * @return the CIDs of this commit's nearest ancestors (parent first).
+	 * This is only a hint to load the ancestors in bulk. It does not
+	 * necessarily contain all ancestors and it may be empty. For performance
+	 * reasons the internal array is returned here. Callers MUST NEVER
+	 * change this array.
+	 */
+	public long[] getAncestors() {
+		return _ancestors;
+	}
 }
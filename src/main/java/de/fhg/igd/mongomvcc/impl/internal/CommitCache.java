@@ -0,0 +1,233 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import de.fhg.igd.mongomvcc.helper.IdHashMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+
+/**
+ * <p>A bounded LRU cache for deserialized commits and parent pointers.
+ * Commits never change once they have been written, so they can be
+ * cached safely. The cache's size is measured in the number of objects
+ * referenced by the cached commits, so a few large commits cannot
+ * exhaust the heap.</p>
+ * <p><strong>Thread-safety:</strong> This class is thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class CommitCache {
+	/**
+	 * The default maximum number of objects referenced by all cached commits
+	 */
+	public static final long DEFAULT_MAX_WEIGHT = 500000;
+
+	/**
+	 * The default maximum number of cached parent pointers
+	 */
+	public static final int DEFAULT_MAX_PARENTS = 100000;
+
+	/**
+	 * The cached commits in LRU order
+	 */
+	private final LinkedHashMap<Long, Commit> _commits =
+			new LinkedHashMap<Long, Commit>(16, 0.75f, true);
+
+	/**
+	 * Maps CIDs to the CIDs of their parents
+	 */
+	private final IdMap _parents = new IdHashMap();
+
+	/**
+	 * The maximum number of objects referenced by all cached commits
+	 */
+	private final long _maxWeight;
+
+	/**
+	 * The maximum number of cached parent pointers
+	 */
+	private final int _maxParents;
+
+	/**
+	 * The number of objects referenced by all cached commits
+	 */
+	private long _weight;
+
+	/**
+	 * The number of successful lookups
+	 */
+	private long _hits;
+
+	/**
+	 * The number of failed lookups
+	 */
+	private long _misses;
+
+	/**
+	 * Creates a new cache with the default limits
+	 */
+	public CommitCache() {
+		this(DEFAULT_MAX_WEIGHT, DEFAULT_MAX_PARENTS);
+	}
+
+	/**
+	 * Creates a new cache
+	 * @param maxWeight the maximum number of objects referenced by all
+	 * cached commits
+	 * @param maxParents the maximum number of cached parent pointers
+	 */
+	public CommitCache(long maxWeight, int maxParents) {
+		_maxWeight = maxWeight;
+		_maxParents = maxParents;
+	}
+
+	/**
+	 * Calculates the weight of a commit (i.e. the number of objects
+	 * it references plus one for the commit itself)
+	 * @param c the commit
+	 * @return the weight
+	 */
+	private static long weigh(Commit c) {
+		long r = 1;
+		for (IdMap m : c.getObjects().values()) {
+			r += m.size();
+		}
+		return r;
+	}
+
+	/**
+	 * Looks up a commit
+	 * @param cid the commit's CID
+	 * @return the commit or null if it is not in the cache
+	 */
+	public synchronized Commit get(long cid) {
+		Commit r = _commits.get(cid);
+		if (r == null) {
+			++_misses;
+		} else {
+			++_hits;
+		}
+		return r;
+	}
+
+	/**
+	 * Puts a commit into the cache. Evicts the least recently used
+	 * commits if the cache is full.
+	 * @param c the commit
+	 */
+	public synchronized void put(Commit c) {
+		putParentInternal(c.getCID(), c.getParentCID());
+		long w = weigh(c);
+		if (w > _maxWeight) {
+			//never cache commits larger than the whole cache
+			return;
+		}
+		Commit old = _commits.put(c.getCID(), c);
+		if (old != null) {
+			_weight -= weigh(old);
+		}
+		_weight += w;
+
+		Iterator<Commit> it = _commits.values().iterator();
+		while (_weight > _maxWeight && it.hasNext()) {
+			_weight -= weigh(it.next());
+			it.remove();
+		}
+	}
+
+	/**
+	 * Looks up the parent of a commit
+	 * @param cid the commit's CID
+	 * @return the parent's CID or -1 if the commit's parent is unknown
+	 * (0 means the commit is a root commit)
+	 */
+	public synchronized long getParent(long cid) {
+		if (_parents.containsKey(cid)) {
+			++_hits;
+			return _parents.get(cid);
+		}
+		Commit c = _commits.get(cid);
+		if (c != null) {
+			++_hits;
+			return c.getParentCID();
+		}
+		++_misses;
+		return -1;
+	}
+
+	/**
+	 * Saves the parent of a commit
+	 * @param cid the commit's CID
+	 * @param parentCID the parent's CID
+	 */
+	public synchronized void putParent(long cid, long parentCID) {
+		putParentInternal(cid, parentCID);
+	}
+
+	private void putParentInternal(long cid, long parentCID) {
+		if (_parents.size() >= _maxParents && !_parents.containsKey(cid)) {
+			//parent pointers are cheap to load again, so simply start over
+			_parents.clear();
+		}
+		_parents.put(cid, parentCID);
+	}
+
+	/**
+	 * Removes commits from the cache (e.g. because they have been
+	 * deleted from the database)
+	 * @param cids the CIDs of the commits to remove
+	 */
+	public synchronized void invalidate(long[] cids) {
+		for (long cid : cids) {
+			Commit c = _commits.remove(cid);
+			if (c != null) {
+				_weight -= weigh(c);
+			}
+			_parents.remove(cid);
+		}
+	}
+
+	/**
+	 * @return the number of successful lookups
+	 */
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	/**
+	 * @return the number of failed lookups
+	 */
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * @return the number of cached commits
+	 */
+	public synchronized int size() {
+		return _commits.size();
+	}
+
+	/**
+	 * @return the number of objects referenced by all cached commits
+	 */
+	public synchronized long getWeight() {
+		return _weight;
+	}
+}
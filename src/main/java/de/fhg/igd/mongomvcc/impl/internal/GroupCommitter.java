@@ -0,0 +1,178 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+
+import de.fhg.igd.mongomvcc.VException;
+
+/**
+ * <p>Coalesces requests to flush the database to disk. Threads that
+ * want their writes to be durable call {@link #sync()}. The first thread
+ * becomes the leader and performs the flush. All threads arriving while
+ * a flush is in progress wait and are served together by the next flush,
+ * so concurrent committers share a single fsync instead of each paying
+ * for their own.</p>
+ * <p><strong>Thread-safety:</strong> This class is thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class GroupCommitter {
+	/**
+	 * The application database to flush (may be null if a subclass
+	 * overrides {@link #flush()})
+	 */
+	private final DB _db;
+	
+	/**
+	 * The number of milliseconds the leader waits for other threads
+	 * before it flushes
+	 */
+	private volatile long _window;
+	
+	/**
+	 * The number of the last sync request
+	 */
+	private long _requested;
+	
+	/**
+	 * The number of the last sync request that has been flushed
+	 */
+	private long _flushed;
+	
+	/**
+	 * True if a thread is currently flushing
+	 */
+	private boolean _flushing;
+	
+	/**
+	 * The number of flushes performed so far
+	 */
+	private long _flushes;
+	
+	/**
+	 * Creates a new group committer
+	 * @param db the application database to flush
+	 */
+	public GroupCommitter(DB db) {
+		_db = db;
+	}
+	
+	/**
+	 * Sets the time the leader waits for other threads before it
+	 * flushes. A small window increases the number of requests served
+	 * by a single flush but delays each of them.
+	 * @param millis the window in milliseconds (0 if the leader should
+	 * flush immediately)
+	 */
+	public void setWindow(long millis) {
+		_window = millis;
+	}
+	
+	/**
+	 * Waits until all writes this thread has made so far (and that have
+	 * been acknowledged by the database) have been flushed to disk.
+	 * Writes not acknowledged yet are not guaranteed to be flushed.
+	 * @throws VException if the database could not be flushed or if the
+	 * thread has been interrupted
+	 */
+	public void sync() {
+		long ticket;
+		synchronized (this) {
+			ticket = ++_requested;
+			while (true) {
+				if (_flushed >= ticket) {
+					//another thread has flushed our writes
+					return;
+				}
+				if (!_flushing) {
+					_flushing = true;
+					break;
+				}
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new VException("Interrupted while waiting for the " +
+							"database to be flushed", e);
+				}
+			}
+		}
+		
+		//we are the leader now
+		try {
+			long window = _window;
+			if (window > 0) {
+				try {
+					Thread.sleep(window);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			long upTo;
+			synchronized (this) {
+				upTo = _requested;
+			}
+			flush();
+			synchronized (this) {
+				_flushed = upTo;
+				++_flushes;
+			}
+		} finally {
+			synchronized (this) {
+				_flushing = false;
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Flushes all pending writes to disk. Uses <code>getlasterror</code>
+	 * with <code>fsync</code> on the application database instead of the
+	 * admin <code>fsync</code> command, so the server is not locked, other
+	 * databases are not affected and no admin privileges are required.
+	 * The server flushes its data files (or waits for the next journal
+	 * commit if journaling is enabled), which covers all writes the server
+	 * has applied so far, regardless of the connection they have been sent
+	 * over. Writes which have not been acknowledged yet may not be covered,
+	 * so callers must only request a sync after their writes have been
+	 * acknowledged.
+	 * @throws VException if the database could not be flushed
+	 */
+	protected void flush() {
+		CommandResult r = _db.command(new BasicDBObject("getlasterror", 1)
+			.append("fsync", true));
+		if (!r.ok()) {
+			throw new VException("Could not flush database: " + r.getErrorMessage());
+		}
+		//getlasterror reports failures in a field but still succeeds
+		Object err = r.get("err");
+		if (err != null) {
+			throw new VException("Could not flush database: " + err);
+		}
+	}
+	
+	/**
+	 * @return the number of flushes performed so far
+	 */
+	public synchronized long getFlushes() {
+		return _flushes;
+	}
+}
@@ -0,0 +1,258 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.fhg.igd.mongomvcc.VException;
+import de.fhg.igd.mongomvcc.helper.IdHashMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+
+/**
+ * <p>Encodes maps of UIDs and OIDs to compact byte arrays and decodes
+ * them again. This is the format in which commits store the objects
+ * they added, changed or deleted.</p>
+ * <p>The entries are sorted by UID. UIDs are saved as differences to
+ * their predecessors, OIDs as zigzag-encoded differences to their
+ * predecessors. All numbers are written as variable-length integers
+ * (7 bits per byte), so IDs allocated close to each other only need
+ * one or two bytes.</p>
+ * @author Michel Kraemer
+ */
+public final class IdMapCodec {
+	/**
+	 * The current version of the format
+	 */
+	private static final byte VERSION = 1;
+	
+	private IdMapCodec() {
+		//hidden constructor
+	}
+	
+	/**
+	 * Encodes a map
+	 * @param m the map to encode
+	 * @return the encoded map
+	 */
+	public static byte[] encode(IdMap m) {
+		long[] keys = m.keys();
+		Arrays.sort(keys);
+		return encode(m, keys, 0, keys.length);
+	}
+	
+	/**
+	 * Encodes a map into several independent chunks none of which is
+	 * larger than the given number of bytes (unless a single entry does
+	 * not fit). Each chunk can be decoded on its own.
+	 * @param m the map to encode
+	 * @param maxBytes the maximum size of a chunk in bytes
+	 * @return the encoded chunks (at least one)
+	 */
+	public static byte[][] encodeBySize(IdMap m, int maxBytes) {
+		long[] keys = m.keys();
+		Arrays.sort(keys);
+		List<byte[]> r = new ArrayList<byte[]>();
+		int start = 0;
+		do {
+			//version and the maximum length of the number of entries
+			int size = 1 + 10;
+			int end = start;
+			long prevKey = 0;
+			long prevValue = 0;
+			while (end < keys.length) {
+				long v = m.get(keys[end]);
+				long d = v - prevValue;
+				int len = varLongLength(keys[end] - prevKey) +
+						varLongLength((d << 1) ^ (d >> 63));
+				if (size + len > maxBytes && end > start) {
+					break;
+				}
+				size += len;
+				prevKey = keys[end];
+				prevValue = v;
+				++end;
+			}
+			r.add(encode(m, keys, start, end, size));
+			start = end;
+		} while (start < keys.length);
+		return r.toArray(new byte[r.size()][]);
+	}
+	
+	/**
+	 * Encodes a range of a map's entries
+	 * @param m the map to encode
+	 * @param keys the map's keys in ascending order
+	 * @param start the index of the first key to encode
+	 * @param end the index after the last key to encode
+	 * @return the encoded entries
+	 */
+	private static byte[] encode(IdMap m, long[] keys, int start, int end) {
+		//each variable-length integer needs up to 10 bytes
+		return encode(m, keys, start, end, 1 + 10 + (end - start) * 20);
+	}
+	
+	/**
+	 * Encodes a range of a map's entries
+	 * @param m the map to encode
+	 * @param keys the map's keys in ascending order
+	 * @param start the index of the first key to encode
+	 * @param end the index after the last key to encode
+	 * @param capacity the maximum number of bytes the entries need
+	 * @return the encoded entries
+	 */
+	private static byte[] encode(IdMap m, long[] keys, int start, int end,
+			int capacity) {
+		byte[] buf = new byte[capacity];
+		int pos = 0;
+		buf[pos++] = VERSION;
+		pos = writeVarLong(buf, pos, end - start);
+		
+		long prev = 0;
+		for (int i = start; i < end; ++i) {
+			pos = writeVarLong(buf, pos, keys[i] - prev);
+			prev = keys[i];
+		}
+		prev = 0;
+		for (int i = start; i < end; ++i) {
+			long v = m.get(keys[i]);
+			long d = v - prev;
+			pos = writeVarLong(buf, pos, (d << 1) ^ (d >> 63));
+			prev = v;
+		}
+		
+		byte[] r = new byte[pos];
+		System.arraycopy(buf, 0, r, 0, pos);
+		return r;
+	}
+	
+	/**
+	 * Decodes a map
+	 * @param data the encoded map
+	 * @return the decoded map
+	 * @throws VException if the data is invalid
+	 */
+	public static IdHashMap decode(byte[] data) {
+		int[] pos = new int[] { 0 };
+		long[] keys = decodeKeys(data, pos);
+		IdHashMap r = new IdHashMap(keys.length);
+		decodeValues(data, pos, keys, r);
+		return r;
+	}
+	
+	/**
+	 * Decodes a map and puts its entries into another one. Can be used
+	 * to decode several chunks into the same map.
+	 * @param data the encoded map
+	 * @param result the map to put the entries into
+	 * @throws VException if the data is invalid
+	 */
+	public static void decode(byte[] data, IdMap result) {
+		int[] pos = new int[] { 0 };
+		long[] keys = decodeKeys(data, pos);
+		decodeValues(data, pos, keys, result);
+	}
+	
+	private static long[] decodeKeys(byte[] data, int[] pos) {
+		if (data.length == 0 || data[0] != VERSION) {
+			throw new VException("Unknown object encoding in commit");
+		}
+		pos[0] = 1;
+		int n = (int)readVarLong(data, pos);
+		if (n < 0 || n > data.length) {
+			throw new VException("Corrupt object encoding in commit");
+		}
+		long[] keys = new long[n];
+		long prev = 0;
+		for (int i = 0; i < n; ++i) {
+			prev += readVarLong(data, pos);
+			keys[i] = prev;
+		}
+		return keys;
+	}
+	
+	private static void decodeValues(byte[] data, int[] pos, long[] keys,
+			IdMap result) {
+		long prev = 0;
+		for (int i = 0; i < keys.length; ++i) {
+			long z = readVarLong(data, pos);
+			prev += (z >>> 1) ^ -(z & 1);
+			result.put(keys[i], prev);
+		}
+	}
+	
+	/**
+	 * Writes an unsigned variable-length integer
+	 * @param buf the buffer to write to
+	 * @param pos the position where the integer should be written
+	 * @param v the integer
+	 * @return the position after the integer
+	 */
+	private static int writeVarLong(byte[] buf, int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf[pos++] = (byte)((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+	
+	/**
+	 * Calculates the number of bytes needed to write an unsigned
+	 * variable-length integer
+	 * @param v the integer
+	 * @return the number of bytes
+	 */
+	private static int varLongLength(long v) {
+		int r = 1;
+		while ((v & ~0x7FL) != 0) {
+			++r;
+			v >>>= 7;
+		}
+		return r;
+	}
+	
+	/**
+	 * Reads an unsigned variable-length integer
+	 * @param data the data to read from
+	 * @param pos a one-element array containing the position where the
+	 * integer should be read. Will be updated to the position after
+	 * the integer.
+	 * @return the integer
+	 * @throws VException if the data is truncated
+	 */
+	private static long readVarLong(byte[] data, int[] pos) {
+		long r = 0;
+		int shift = 0;
+		int p = pos[0];
+		while (true) {
+			if (p >= data.length || shift > 63) {
+				throw new VException("Corrupt object encoding in commit");
+			}
+			byte b = data[p++];
+			r |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+			shift += 7;
+		}
+		pos[0] = p;
+		return r;
+	}
+}
@@ -18,23 +18,55 @@
 package de.fhg.igd.mongomvcc.impl.internal;
 
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import de.fhg.igd.mongomvcc.VException;
 import de.fhg.igd.mongomvcc.helper.IdHashMap;
 import de.fhg.igd.mongomvcc.helper.IdHashSet;
+import de.fhg.igd.mongomvcc.helper.IdHashTrieMap;
+import de.fhg.igd.mongomvcc.helper.IdHashTrieSet;
 import de.fhg.igd.mongomvcc.helper.IdMap;
 import de.fhg.igd.mongomvcc.helper.IdMapIterator;
 import de.fhg.igd.mongomvcc.helper.IdSet;
+import de.fhg.igd.mongomvcc.helper.OffHeapIdHashMap;
+import de.fhg.igd.mongomvcc.helper.OffHeapIdHashSet;
+import de.fhg.igd.mongomvcc.helper.OverlayIdMap;
+import de.fhg.igd.mongomvcc.helper.OverlayIdSet;
 import de.fhg.igd.mongomvcc.impl.MongoDBVDatabase;
 
 /**
  * <p>Provides access to the branch/commit currently checked out.
  * Stores information on dirty objects. Dirty objects are those
  * which have been added or changed before the next commit.</p>
+ * <p>An index can be derived from another one which serves as an immutable
+ * base (see {@link IndexCache}). In this case the maps of the base index are
+ * shared and only copied for a collection as soon as this collection is
+ * modified for the first time (copy-on-write).</p>
+ * <p>If the index is persistent, it uses {@link IdHashTrieMap}s and
+ * {@link IdHashTrieSet}s which can be copied in constant time. Copying
+ * a collection then only costs memory for the modifications made
+ * afterwards, so a lot of derived indexes can be kept at the same time.</p>
+ * <p>Collections are loaded lazily on first access. Only the part of each
+ * commit (and checkpoint) that belongs to the accessed collection is read
+ * from the database.</p>
+ * <p>Collections exceeding a configurable number of objects are moved to
+ * {@link OffHeapIdHashMap}s and {@link OffHeapIdHashSet}s, so very large
+ * indexes do not put pressure on the garbage collector. Copies of such
+ * collections keep the off-heap maps as a read-only base and record their
+ * own modifications in {@link OverlayIdMap}s and {@link OverlayIdSet}s
+ * on the heap, so modifying a shared collection does not copy the whole
+ * off-heap table.</p>
  * <p><strong>Thread-safety:</strong> This class is NOT thread-safe.
  * {@link MongoDBVDatabase} will hold a thread-local variable to restrict
- * access to this object.</p>
+ * access to this object. Base indexes are never modified, so they may
+ * be shared between threads. They load collections while holding their
+ * own lock.</p>
  * @author Michel Kraemer
  */
 public class Index {
@@ -60,63 +92,479 @@ public class Index {
 	private final Map<String, IdSet> _oids = new HashMap<String, IdSet>();
 	
 	/**
-	 * Construct a new index. Reads the head commit and all its ancestors from
-	 * the tree and builds up the index.
+	 * The names of all collections whose maps in {@link #_objects} and
+	 * {@link #_oids} are shared with a base index and must therefore be
+	 * copied before they are modified
+	 */
+	private final Set<String> _sharedCollections = new HashSet<String>();
+	
+	/**
+	 * The CID of the commit the shared base index has been built from
+	 * (0 if this index does not have a base index or if it has already
+	 * been released from the {@link IndexCache})
+	 */
+	private long _baseCID;
+	
+	/**
+	 * True if the index uses persistent maps and sets
+	 */
+	private final boolean _persistent;
+	
+	/**
+	 * The number of objects a collection must contain before it is
+	 * moved off the heap (0 if collections should never be moved)
+	 */
+	private final int _offHeapThreshold;
+	
+	/**
+	 * The names of all collections that have already been loaded
+	 */
+	private final Set<String> _loaded = new HashSet<String>();
+	
+	/**
+	 * True if all collections have been loaded
+	 */
+	private boolean _complete;
+	
+	/**
+	 * The tree of commits collections are loaded from (null if
+	 * collections are loaded from {@link #_base})
+	 */
+	private final Tree _tree;
+	
+	/**
+	 * The head commit of the branch/commit currently checked out (null
+	 * if collections are loaded from {@link #_base})
+	 */
+	private final Commit _head;
+	
+	/**
+	 * The CID of the checkpoint collections are loaded from (0 if there
+	 * is no checkpoint or if it could not be read)
+	 */
+	private long _checkpointCID;
+	
+	/**
+	 * The CIDs of the head commit and its ancestors up to the checkpoint
+	 * (inclusive) or the root commit. Null if they have not been
+	 * resolved yet.
+	 */
+	private long[] _history;
+	
+	/**
+	 * The index collections are loaded from (null if collections are
+	 * loaded from {@link #_tree} or if all collections have been loaded
+	 * already). The link is dropped as soon as the index is complete, so
+	 * chains of derived indexes do not keep old indexes alive.
+	 */
+	private Index _base;
+	
+	/**
+	 * Commits to apply to collections after they have been loaded from
+	 * {@link #_base} or {@link #_tree} (oldest first). Null if this index
+	 * represents the same commit as its base or its head.
+	 */
+	private List<Commit> _delta;
+	
+	/**
+	 * Construct a new index. Collections will be loaded from the head
+	 * commit and its ancestors as soon as they are accessed.
 	 * @param head the head commit of the branch/commit current checked out
 	 * @param tree the tree of commits
 	 */
 	public Index(Commit head, Tree tree) {
-		readCommit(head, tree);
+		this(head, tree, false);
+	}
+	
+	/**
+	 * Construct a new index. Collections will be loaded from the head
+	 * commit and its ancestors as soon as they are accessed.
+	 * @param head the head commit of the branch/commit current checked out
+	 * @param tree the tree of commits
+	 * @param persistent true if the index should use persistent maps and
+	 * sets which can be copied in constant time
+	 */
+	public Index(Commit head, Tree tree, boolean persistent) {
+		this(head, tree, persistent, 0);
+	}
+	
+	/**
+	 * Construct a new index. Collections will be loaded from the head
+	 * commit and its ancestors as soon as they are accessed.
+	 * @param head the head commit of the branch/commit current checked out
+	 * @param tree the tree of commits
+	 * @param persistent true if the index should use persistent maps and
+	 * sets which can be copied in constant time
+	 * @param offHeapThreshold the number of objects a collection must
+	 * contain before it is moved off the heap (0 if collections should
+	 * never be moved)
+	 */
+	public Index(Commit head, Tree tree, boolean persistent, int offHeapThreshold) {
+		_persistent = persistent;
+		_offHeapThreshold = offHeapThreshold;
+		_tree = tree;
+		_head = head;
+		_checkpointCID = head.getCheckpointCID();
+		_base = null;
+		_delta = null;
+	}
+	
+	/**
+	 * Construct a new index that shares the state of the given base index.
+	 * The base index will never be modified through this index. Collections
+	 * are copied as soon as they are modified for the first time.
+	 * @param base the base index
+	 * @param baseCID the CID of the commit the base index has been built from
+	 */
+	Index(Index base, long baseCID) {
+		this(base, (List<Commit>)null);
+		_baseCID = baseCID;
+	}
+	
+	/**
+	 * Construct a new index for a descendant of the commit the given base
+	 * index has been built from. Shares the state of the base index and
+	 * applies the given commits. The base index will not be modified.
+	 * @param base the base index
+	 * @param commits the commits between the base index's commit
+	 * (exclusive) and the descendant (inclusive), oldest first
+	 */
+	Index(Index base, List<Commit> commits) {
+		_persistent = base._persistent;
+		_offHeapThreshold = base._offHeapThreshold;
+		_tree = null;
+		_head = null;
+		_base = base;
+		_delta = commits;
+	}
+	
+	/**
+	 * Makes sure the given collection has been loaded
+	 * @param collection the collection's name
+	 */
+	private void ensureLoaded(String collection) {
+		if (_complete || _loaded.contains(collection)) {
+			return;
+		}
+		if (_base != null) {
+			_base.share(collection, this);
+		} else {
+			loadFromTree(collection);
+		}
+		if (_delta != null) {
+			for (Commit c : _delta) {
+				IdMap m = c.getObjects().get(collection);
+				if (m != null) {
+					copyShared(collection);
+					apply(m, getObjects(collection), getOIDs(collection));
+				}
+			}
+			moveOffHeap(collection);
+		}
+		_loaded.add(collection);
+	}
+	
+	/**
+	 * Makes sure all collections have been loaded
+	 */
+	private void ensureComplete() {
+		if (_complete) {
+			return;
+		}
+		if (_base != null) {
+			Set<String> collections = _base.getCollectionNames();
+			if (_delta != null) {
+				for (Commit c : _delta) {
+					collections.addAll(c.getObjects().keySet());
+				}
+			}
+			for (String collection : collections) {
+				ensureLoaded(collection);
+			}
+			
+			//all maps have been shared or copied. the base is not needed anymore.
+			_base = null;
+			_delta = null;
+		} else {
+			readCommit(_head, _tree);
+			if (_delta != null) {
+				for (Commit c : _delta) {
+					applyCommit(c);
+				}
+			}
+		}
+		_complete = true;
+	}
+	
+	/**
+	 * Fast-forwards this index to a descendant of the commit it currently
+	 * represents. Applies all objects added, changed or deleted by the
+	 * given commits. Collections not loaded yet will be updated as soon as
+	 * they are loaded. Dirty objects are kept.
+	 * @param commits the commits between the commit this index currently
+	 * represents (exclusive) and the descendant (inclusive), oldest first
+	 * @throws VException if one of the commits changed an object that is
+	 * dirty in this index. In this case the index remains unchanged.
+	 */
+	public void fastForward(List<Commit> commits) {
+		//check for conflicts first, so the index remains consistent
+		for (Commit c : commits) {
+			for (Map.Entry<String, IdMap> e : c.getObjects().entrySet()) {
+				IdMap dirty = _dirtyObjects.get(e.getKey());
+				if (dirty == null) {
+					continue;
+				}
+				IdMapIterator it = e.getValue().iterator();
+				while (it.hasNext()) {
+					it.advance();
+					if (dirty.containsKey(it.key())) {
+						throw new VException("Object " + it.key() + " in collection " +
+								e.getKey() + " has been changed by commit " + c.getCID());
+					}
+				}
+			}
+		}
+		
+		for (Commit c : commits) {
+			for (Map.Entry<String, IdMap> e : c.getObjects().entrySet()) {
+				String collection = e.getKey();
+				if (_complete || _loaded.contains(collection)) {
+					copyShared(collection);
+					apply(e.getValue(), getObjects(collection), getOIDs(collection));
+					moveOffHeap(collection);
+				}
+			}
+		}
+		
+		//collections not loaded yet must be updated after they have been loaded
+		if (!_complete) {
+			List<Commit> delta = new ArrayList<Commit>();
+			if (_delta != null) {
+				delta.addAll(_delta);
+			}
+			delta.addAll(commits);
+			_delta = delta;
+		}
+	}
+	
+	/**
+	 * Loads a collection (if necessary) and lets another index share its
+	 * maps. This method is called by indexes derived from this one.
+	 * @param collection the collection's name
+	 * @param target the index that should share the maps
+	 */
+	private synchronized void share(String collection, Index target) {
+		ensureLoaded(collection);
+		IdMap objs = _objects.get(collection);
+		if (objs != null) {
+			target._objects.put(collection, objs);
+			target._oids.put(collection, _oids.get(collection));
+			target._sharedCollections.add(collection);
+		}
+	}
+	
+	/**
+	 * Calculates the number of indexes this index has been derived from
+	 * and which are still referenced
+	 * @return the number of indexes (0 if this index is not derived from
+	 * another one)
+	 */
+	synchronized int getDerivationDepth() {
+		if (_base == null) {
+			return 0;
+		}
+		return _base.getDerivationDepth() + 1;
+	}
+	
+	/**
+	 * Loads all collections (if necessary) and returns their names. This
+	 * method is called by indexes derived from this one.
+	 * @return the names of all collections
+	 */
+	private synchronized Set<String> getCollectionNames() {
+		ensureComplete();
+		return new HashSet<String>(_objects.keySet());
+	}
+	
+	/**
+	 * Loads a single collection from the head commit and its ancestors.
+	 * Starts with the nearest checkpoint if there is one.
+	 * @param collection the collection's name
+	 */
+	private void loadFromTree(String collection) {
+		IdMap checkpoint = null;
+		if (_checkpointCID != 0) {
+			checkpoint = _tree.resolveCheckpoint(_checkpointCID, collection);
+			if (checkpoint == null) {
+				//checkpoint could not be read. read all ancestors instead.
+				_checkpointCID = 0;
+				_history = null;
+			}
+		}
+		if (_history == null) {
+			_history = _tree.resolveHistory(_head, _checkpointCID);
+		}
+		
+		long[] cids = _history;
+		if (checkpoint != null) {
+			//the checkpoint already contains the last commit in the history
+			cids = new long[_history.length - 1];
+			System.arraycopy(_history, 0, cids, 0, cids.length);
+		}
+		IdMap[] slices = _tree.resolveCollection(cids, collection);
+		
+		IdMap m = getObjects(collection);
+		IdSet o = getOIDs(collection);
+		if (checkpoint != null) {
+			apply(checkpoint, m, o);
+		}
+		for (int i = slices.length - 1; i >= 0; --i) {
+			if (slices[i] != null) {
+				apply(slices[i], m, o);
+			}
+		}
+		moveOffHeap(collection);
 	}
 	
 	/**
 	 * Iteratively reads the information from the given commit and all its
-	 * ancestors and builds up the index
+	 * ancestors and builds up the index for all collections not loaded yet.
+	 * Starts with the nearest checkpoint if there is one, so only the commits
+	 * after the checkpoint have to be read. Ancestors are loaded in bulk (see
+	 * {@link Tree#resolveAncestors(Commit, long)}).
 	 * @param c the commit to read
 	 * @param tree the tree of commits
 	 */
 	private void readCommit(Commit c, Tree tree) {
+		long checkpointCID = c.getCheckpointCID();
 		ArrayDeque<Commit> stack = new ArrayDeque<Commit>();
-		while (true) {
-			//iteratively read parent commit (if there is any)
-			stack.addLast(c);
-			long cid = c.getParentCID();
-			if (cid == 0) {
+		List<Commit> commits = Collections.singletonList(c);
+		outer: while (true) {
+			for (Commit a : commits) {
+				if (a.getCID() == checkpointCID) {
+					if (readCheckpoint(checkpointCID, tree)) {
+						//the checkpoint already contains this commit and all its ancestors
+						break outer;
+					}
+					//checkpoint could not be read. read all ancestors instead.
+					checkpointCID = 0;
+				}
+				stack.addLast(a);
+			}
+			
+			//load the next ancestors in bulk (if there are any)
+			commits = tree.resolveAncestors(stack.getLast(), checkpointCID);
+			if (commits.isEmpty()) {
 				break;
 			}
-			c = tree.resolveCommit(cid);
 		}
 
 		while (!stack.isEmpty()) {
-			c = stack.removeLast();
-			
-			//read objects from the given commit and put them into the index
-			for (Map.Entry<String, IdMap> e : c.getObjects().entrySet()) {
-				IdMap m = getObjects(e.getKey());
-				IdSet o = getOIDs(e.getKey());
-				IdMapIterator it = e.getValue().iterator();
-				while (it.hasNext()) {
-					it.advance();
-					if (it.value() < 0) {
-						//deleted object
-						long prev = m.get(it.key());
-						if (prev != 0) {
-							m.remove(it.key());
-							o.remove(prev);
-						}
-					} else {
-						long prev = m.put(it.key(), it.value());
-						if (prev != 0) {
-							//overwrite object with new value
-							o.remove(prev);
-						}
-						o.add(it.value());
-					}
+			applyCommit(stack.removeLast());
+		}
+	}
+	
+	/**
+	 * Reads objects from the given commit and puts them into the index
+	 * @param c the commit
+	 */
+	private void applyCommit(Commit c) {
+		for (Map.Entry<String, IdMap> e : c.getObjects().entrySet()) {
+			if (_loaded.contains(e.getKey())) {
+				continue;
+			}
+			apply(e.getValue(), getObjects(e.getKey()), getOIDs(e.getKey()));
+			moveOffHeap(e.getKey());
+		}
+	}
+	
+	/**
+	 * Applies objects added, changed or deleted in a commit to the maps
+	 * of a collection
+	 * @param objects the objects (maps UIDs to OIDs, deleted objects
+	 * have negative OIDs)
+	 * @param m the collection's map of UIDs and OIDs
+	 * @param o the collection's OIDs
+	 */
+	private static void apply(IdMap objects, IdMap m, IdSet o) {
+		IdMapIterator it = objects.iterator();
+		while (it.hasNext()) {
+			it.advance();
+			if (it.value() < 0) {
+				//deleted object
+				long prev = m.get(it.key());
+				if (prev != 0) {
+					m.remove(it.key());
+					o.remove(prev);
+				}
+			} else {
+				long prev = m.put(it.key(), it.value());
+				if (prev != 0) {
+					//overwrite object with new value
+					o.remove(prev);
 				}
+				o.add(it.value());
 			}
 		}
 	}
 
+	/**
+	 * Initializes the index with the contents of a checkpoint
+	 * @param cid the CID of the commit the checkpoint belongs to
+	 * @param tree the tree of commits
+	 * @return true if the checkpoint has been read, false if it
+	 * could not be resolved
+	 */
+	private boolean readCheckpoint(long cid, Tree tree) {
+		Map<String, IdMap> checkpoint = tree.resolveCheckpoint(cid);
+		if (checkpoint == null) {
+			return false;
+		}
+		for (Map.Entry<String, IdMap> e : checkpoint.entrySet()) {
+			if (_loaded.contains(e.getKey())) {
+				continue;
+			}
+			IdMap m = _persistent ? new IdHashTrieMap() : e.getValue();
+			IdSet o = _persistent ? new IdHashTrieSet() : new IdHashSet(m.size());
+			IdMapIterator it = e.getValue().iterator();
+			while (it.hasNext()) {
+				it.advance();
+				if (_persistent) {
+					m.put(it.key(), it.value());
+				}
+				o.add(it.value());
+			}
+			_objects.put(e.getKey(), m);
+			_oids.put(e.getKey(), o);
+			moveOffHeap(e.getKey());
+		}
+		return true;
+	}
+	
+	/**
+	 * Moves the maps of the given collection off the heap if the
+	 * collection contains enough objects. Overlays on top of off-heap
+	 * maps are only merged into new off-heap maps when the overlay itself
+	 * has become that large. The maps must not be shared with a base index.
+	 * @param collection the collection's name
+	 */
+	private void moveOffHeap(String collection) {
+		if (_offHeapThreshold <= 0) {
+			return;
+		}
+		IdMap objs = _objects.get(collection);
+		if (objs == null || objs.size() < _offHeapThreshold ||
+				objs instanceof OffHeapIdHashMap) {
+			return;
+		}
+		if (objs instanceof OverlayIdMap &&
+				((OverlayIdMap)objs).getOverlaySize() < _offHeapThreshold) {
+			return;
+		}
+		_objects.put(collection, new OffHeapIdHashMap(objs));
+		_oids.put(collection, new OffHeapIdHashSet(getOIDs(collection)));
+	}
+	
 	/**
 	 * For a given collection, this method lazily retrieves
 	 * the map that maps UIDs to OIDs
@@ -126,12 +574,87 @@ public class Index {
 	private IdMap getObjects(String collection) {
 		IdMap objs = _objects.get(collection);
 		if (objs == null) {
-			objs = new IdHashMap();
+			objs = _persistent ? new IdHashTrieMap() : new IdHashMap();
 			_objects.put(collection, objs);
 		}
 		return objs;
 	}
 
+	/**
+	 * Makes sure the maps of the given collection are not shared with
+	 * the base index anymore, so they can be safely modified
+	 * @param collection the collection's name
+	 */
+	private void makePrivate(String collection) {
+		ensureLoaded(collection);
+		copyShared(collection);
+	}
+	
+	/**
+	 * Copies the maps of the given collection if they are shared with
+	 * the base index
+	 * @param collection the collection's name
+	 */
+	private void copyShared(String collection) {
+		if (_sharedCollections.remove(collection)) {
+			_objects.put(collection, copy(_objects.get(collection)));
+			_oids.put(collection, copy(_oids.get(collection)));
+		}
+	}
+	
+	/**
+	 * Copies a map. This operation takes constant time
+	 * for {@link IdHashTrieMap}s. Off-heap maps are not copied but
+	 * wrapped in an {@link OverlayIdMap}.
+	 * @param m the map to copy
+	 * @return the copy
+	 */
+	private static IdMap copy(IdMap m) {
+		if (m instanceof IdHashTrieMap) {
+			return new IdHashTrieMap((IdHashTrieMap)m);
+		} else if (m instanceof OffHeapIdHashMap) {
+			return new OverlayIdMap(m);
+		} else if (m instanceof OverlayIdMap) {
+			return new OverlayIdMap((OverlayIdMap)m);
+		}
+		return new IdHashMap((IdHashMap)m);
+	}
+	
+	/**
+	 * Copies a set. This operation takes constant time
+	 * for {@link IdHashTrieSet}s. Off-heap sets are not copied but
+	 * wrapped in an {@link OverlayIdSet}.
+	 * @param s the set to copy
+	 * @return the copy
+	 */
+	private static IdSet copy(IdSet s) {
+		if (s instanceof IdHashTrieSet) {
+			return new IdHashTrieSet((IdHashTrieSet)s);
+		} else if (s instanceof OffHeapIdHashSet) {
+			return new OverlayIdSet(s);
+		} else if (s instanceof OverlayIdSet) {
+			return new OverlayIdSet((OverlayIdSet)s);
+		}
+		return new IdHashSet((IdHashSet)s);
+	}
+	
+	/**
+	 * @return the CID of the commit the shared base index has been built
+	 * from or 0 (zero) if there is no such base index
+	 */
+	long getBaseCID() {
+		return _baseCID;
+	}
+	
+	/**
+	 * Detaches this index from its base index's CID. The maps that are
+	 * still shared will be kept, but the index will not be reported as
+	 * a user of the base index anymore.
+	 */
+	void detachBase() {
+		_baseCID = 0;
+	}
+	
 	/**
 	 * For a given collection, this method lazily retrieves
 	 * the map that maps UIDs of dirty objects to OIDs.
@@ -170,7 +693,7 @@ public class Index {
 	private IdSet getOIDs(String collection) {
 		IdSet oids = _oids.get(collection);
 		if (oids == null) {
-			oids = new IdHashSet();
+			oids = _persistent ? new IdHashTrieSet() : new IdHashSet();
 			_oids.put(collection, oids);
 		}
 		return oids;
@@ -183,6 +706,7 @@ public class Index {
 	 * @param oid the OID
 	 */
 	public void insert(String collection, long uid, long oid) {
+		makePrivate(collection);
 		IdMap objs = getObjects(collection);
 		IdSet oids = getOIDs(collection);
 		long prev = objs.put(uid, oid);
@@ -199,6 +723,31 @@ public class Index {
 			oids.add(oid);
 		}
 		getDirtyObjects(collection).put(uid, oid);
+		moveOffHeap(collection);
+	}
+	
+	/**
+	 * Inserts multiple new objects into the index and marks them as dirty
+	 * @param collection the name of the collection the objects have been added to
+	 * @param uids the new objects' UIDs
+	 * @param oids the OIDs (in the same order as the UIDs)
+	 * @param n the number of objects in the given arrays to insert
+	 */
+	public void insertAll(String collection, long[] uids, long[] oids, int n) {
+		makePrivate(collection);
+		IdMap objs = getObjects(collection);
+		IdSet allOids = getOIDs(collection);
+		IdMap dirty = getDirtyObjects(collection);
+		for (int i = 0; i < n; ++i) {
+			long prev = objs.put(uids[i], oids[i]);
+			if (prev != 0) {
+				//an existing object is replaced by a new instance
+				allOids.remove(prev);
+			}
+			allOids.add(oids[i]);
+			dirty.put(uids[i], oids[i]);
+		}
+		moveOffHeap(collection);
 	}
 	
 	/**
@@ -210,6 +759,7 @@ public class Index {
 	 * @param uid the UID of the object to delete
 	 */
 	public void delete(String collection, long uid) {
+		ensureLoaded(collection);
 		if (getObjects(collection).containsKey(uid)) {
 			//overwrite object with a negative OID1. when the
 			//index is rebuilt, such objects will be ignored.
@@ -224,9 +774,21 @@ public class Index {
 	 * @return the objects
 	 */
 	public IdMap find(String collection) {
+		ensureLoaded(collection);
 		return getObjects(collection);
 	}
 	
+	/**
+	 * Returns the number of objects in a collection. Objects deleted since
+	 * the last commit are not counted.
+	 * @param collection the collection's name
+	 * @return the number of objects
+	 */
+	public int size(String collection) {
+		ensureLoaded(collection);
+		return getOIDs(collection).size();
+	}
+	
 	/**
 	 * Checks if the index contains an object with the given OID
 	 * @param collection the collection that is supposed to contain the object
@@ -234,9 +796,21 @@ public class Index {
 	 * @return true if the collection contains such an object, false otherwise
 	 */
 	public boolean containsOID(String collection, long oid) {
+		ensureLoaded(collection);
 		return getOIDs(collection).contains(oid);
 	}
 	
+	/**
+	 * @return all objects for all collections (maps collection names to
+	 * maps of UIDs and OIDs). Objects deleted since the last commit have
+	 * negative OIDs. For performance reasons the internal map is
+	 * returned. Callers MUST NOT change this map.
+	 */
+	public Map<String, IdMap> getObjects() {
+		ensureComplete();
+		return _objects;
+	}
+	
 	/**
 	 * @return all dirty objects for all collections. For performance reasons
 	 * the internal map is returned. Callers MUST NOT change this map.
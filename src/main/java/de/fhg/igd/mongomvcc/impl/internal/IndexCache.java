@@ -0,0 +1,272 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Caches immutable indexes per commit. Threads checking out the same
+ * commit share the same base index read-only. Each thread gets its own
+ * {@link Index} which copies the base's maps as soon as they are modified
+ * (copy-on-write). This keeps checkout latency and memory consumption
+ * roughly constant regardless of the number of threads.</p>
+ * <p>Base indexes are reference-counted. A base index is kept as long as
+ * there is at least one thread using it. Unused base indexes are kept in
+ * a small LRU list, so they can be reused if the same commit is checked
+ * out again shortly afterwards.</p>
+ * <p>If a commit is checked out whose base index is not in the cache yet
+ * but the base index of one of its recent ancestors is, the new base index
+ * is derived from the ancestor's one. Base indexes are persistent by
+ * default (see {@link Index}), so a derived base index only needs memory
+ * for the commits between the ancestor and the checked out commit.</p>
+ * <p><strong>Thread-safety:</strong> This class is thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class IndexCache {
+	/**
+	 * The default number of unused base indexes to keep
+	 */
+	private static final int DEFAULT_MAX_IDLE = 4;
+
+	/**
+	 * The maximum number of base indexes a new base index may be derived
+	 * from (directly or indirectly). Each derived index keeps its ancestor
+	 * alive until it has loaded all collections. If the chain gets longer,
+	 * the new base index is built from the tree instead.
+	 */
+	static final int MAX_DERIVATION_DEPTH = 16;
+
+	/**
+	 * A cache entry holding a base index and its reference count
+	 */
+	private static class Entry {
+		/**
+		 * The base index (null if it has not been built yet)
+		 */
+		private volatile Index _index;
+
+		/**
+		 * The number of indexes currently derived from this entry
+		 */
+		private int _refCount;
+
+		/**
+		 * Gets the base index or builds it if necessary. Concurrent
+		 * callers will wait until the index has been built, so it will
+		 * only be built once.
+		 * @param head the commit to build the base index for
+		 * @param cache the cache that may contain the base index of
+		 * one of the commit's ancestors
+		 * @return the base index
+		 */
+		synchronized Index get(Commit head, IndexCache cache) {
+			if (_index == null) {
+				_index = cache.build(head);
+			}
+			return _index;
+		}
+	}
+
+	/**
+	 * The tree of commits
+	 */
+	private final Tree _tree;
+
+	/**
+	 * The maximum number of unused base indexes to keep
+	 */
+	private final int _maxIdle;
+
+	/**
+	 * True if base indexes should be persistent
+	 */
+	private final boolean _persistent;
+
+	/**
+	 * The number of objects a collection must contain before it is
+	 * moved off the heap (0 if collections should never be moved)
+	 */
+	private volatile int _offHeapThreshold;
+
+	/**
+	 * Maps CIDs to cache entries that are currently in use
+	 */
+	private final Map<Long, Entry> _entries = new HashMap<Long, Entry>();
+
+	/**
+	 * Cache entries that are not in use anymore (in LRU order)
+	 */
+	private final LinkedHashMap<Long, Entry> _idle = new LinkedHashMap<Long, Entry>();
+
+	/**
+	 * Creates a new cache
+	 * @param tree the tree of commits
+	 */
+	public IndexCache(Tree tree) {
+		this(tree, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Creates a new cache
+	 * @param tree the tree of commits
+	 * @param maxIdle the maximum number of unused base indexes to keep
+	 */
+	public IndexCache(Tree tree, int maxIdle) {
+		this(tree, maxIdle, true);
+	}
+
+	/**
+	 * Creates a new cache
+	 * @param tree the tree of commits
+	 * @param maxIdle the maximum number of unused base indexes to keep
+	 * @param persistent true if base indexes should be persistent (i.e.
+	 * if derived indexes should only need memory for their modifications)
+	 */
+	public IndexCache(Tree tree, int maxIdle, boolean persistent) {
+		_tree = tree;
+		_maxIdle = maxIdle;
+		_persistent = persistent;
+	}
+
+	/**
+	 * Sets the number of objects a collection must contain before it is
+	 * moved off the heap. Only affects base indexes built afterwards.
+	 * @param threshold the threshold (0 if collections should never be moved)
+	 */
+	public void setOffHeapThreshold(int threshold) {
+		_offHeapThreshold = threshold;
+	}
+
+	/**
+	 * Builds a new base index for the given commit. Derives it from the
+	 * base index of the nearest ancestor in the cache if possible.
+	 * @param head the commit
+	 * @return the new base index
+	 */
+	private Index build(Commit head) {
+		long ancestorCID = 0;
+		Index ancestor = null;
+		synchronized (this) {
+			for (long cid : head.getAncestors()) {
+				Entry e = _entries.get(cid);
+				if (e == null) {
+					e = _idle.get(cid);
+				}
+				if (e != null && e._index != null) {
+					ancestorCID = cid;
+					ancestor = e._index;
+					break;
+				}
+			}
+		}
+		if (ancestor == null || ancestor.getDerivationDepth() >= MAX_DERIVATION_DEPTH) {
+			return new Index(head, _tree, _persistent, _offHeapThreshold);
+		}
+
+		//collect commits between the ancestor and the head, oldest first
+		List<Commit> commits = _tree.resolvePath(ancestorCID, head);
+		if (commits == null) {
+			//the ancestor hint was not usable
+			return new Index(head, _tree, _persistent, _offHeapThreshold);
+		}
+		return new Index(ancestor, commits);
+	}
+
+	/**
+	 * Creates a new index for the given commit. The index will share
+	 * its state with all other indexes created for the same commit until
+	 * it is modified. Callers should call {@link #release(Index)} as soon
+	 * as they do not need the index anymore or as soon as it does not
+	 * represent the given commit anymore.
+	 * @param head the commit to check out
+	 * @return the new index
+	 */
+	public Index checkout(Commit head) {
+		long cid = head.getCID();
+		Entry e;
+		synchronized (this) {
+			e = _entries.get(cid);
+			if (e == null) {
+				e = _idle.remove(cid);
+				if (e == null) {
+					e = new Entry();
+				}
+				_entries.put(cid, e);
+			}
+			++e._refCount;
+		}
+
+		//build index outside the lock, so other commits can be
+		//checked out in the meantime
+		Index base;
+		try {
+			base = e.get(head, this);
+		} catch (RuntimeException ex) {
+			release(cid);
+			throw ex;
+		}
+		return new Index(base, cid);
+	}
+
+	/**
+	 * Releases an index created with {@link #checkout(Commit)}. This
+	 * method is a no-op if the index has already been released.
+	 * @param index the index to release
+	 */
+	public void release(Index index) {
+		long cid = index.getBaseCID();
+		if (cid != 0) {
+			index.detachBase();
+			release(cid);
+		}
+	}
+
+	/**
+	 * Decreases the reference count of the cache entry for the given CID
+	 * @param cid the CID
+	 */
+	private synchronized void release(long cid) {
+		Entry e = _entries.get(cid);
+		if (e == null) {
+			return;
+		}
+		--e._refCount;
+		if (e._refCount <= 0) {
+			_entries.remove(cid);
+			if (e._index != null && _maxIdle > 0) {
+				_idle.put(cid, e);
+				if (_idle.size() > _maxIdle) {
+					Iterator<Long> it = _idle.keySet().iterator();
+					it.next();
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes all unused base indexes from the cache
+	 */
+	public synchronized void clear() {
+		_idle.clear();
+	}
+}
@@ -0,0 +1,252 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import de.fhg.igd.mongomvcc.VConstants;
+import de.fhg.igd.mongomvcc.impl.LifetimeLayout;
+
+/**
+ * <p>Creates and verifies the database indexes required by the queries
+ * of the versioning layer. The tree's collections get indexes on the
+ * parent and root CIDs as well as on the commit timestamps. Each
+ * collection containing documents gets indexes on the UID and the
+ * timestamp as well as one compound index on the lifetime attributes
+ * per branch root. If lifetime information is stored in a separate
+ * collection, this collection gets indexes instead.</p>
+ * <p>Each lifetime index has to be updated on every insert and every time
+ * objects are marked during a commit, so no more than
+ * {@link #MAX_LIFETIME_INDEXES} lifetime indexes are created for a single
+ * collection (i.e. for the first branch roots accessing it). Queries on
+ * other branch roots still work, but they do not use an index.</p>
+ * <p><strong>Thread-safety:</strong> This class is thread-safe.</p>
+ * @author Michel Kraemer
+ */
+public class IndexManager {
+	/**
+	 * The maximum number of lifetime indexes created for a single collection
+	 */
+	public static final int MAX_LIFETIME_INDEXES = 4;
+	
+	/**
+	 * The attribute containing the CID of a commit's parent
+	 */
+	private static final String PARENT_CID = "parent";
+	
+	/**
+	 * The attribute containing the root CID of a branch
+	 */
+	private static final String ROOT_CID = "rootcid";
+	
+	/**
+	 * The MongoDB database
+	 */
+	private final DB _db;
+	
+	/**
+	 * The indexes already created, identified by the collection's name
+	 * and the indexed attributes
+	 */
+	private final Set<String> _created = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	
+	/**
+	 * The indexes that have been requested for each collection
+	 */
+	private final Map<String, List<DBObject>> _expected =
+			new ConcurrentHashMap<String, List<DBObject>>();
+	
+	/**
+	 * Creates a new index manager
+	 * @param db the MongoDB database
+	 */
+	public IndexManager(DB db) {
+		_db = db;
+	}
+	
+	/**
+	 * Creates the indexes of the tree's collections
+	 */
+	public void ensureTreeIndexes() {
+		ensureIndex(MongoDBConstants.COLLECTION_CHECKPOINTS,
+				new BasicDBObject(MongoDBConstants.CID, 1));
+		ensureIndex(MongoDBConstants.COLLECTION_COMMIT_CHUNKS,
+				new BasicDBObject(MongoDBConstants.CID, 1)
+				.append(Tree.COLLECTION, 1).append(Tree.CHUNK, 1));
+		ensureIndex(MongoDBConstants.COLLECTION_COMMITS,
+				new BasicDBObject(PARENT_CID, 1));
+		ensureIndex(MongoDBConstants.COLLECTION_COMMITS,
+				new BasicDBObject(MongoDBConstants.TIMESTAMP, 1));
+		ensureIndex(MongoDBConstants.COLLECTION_BRANCHES,
+				new BasicDBObject(ROOT_CID, 1));
+	}
+	
+	/**
+	 * Creates the indexes of a collection containing documents
+	 * @param collection the collection's name
+	 * @param rootCid the root CID of the branch the collection is
+	 * accessed from
+	 * @param layout specifies where the lifetime information is stored
+	 */
+	public void ensureCollectionIndexes(String collection, long rootCid,
+			LifetimeLayout layout) {
+		ensureIndex(collection, new BasicDBObject(VConstants.UID, 1));
+		ensureIndex(collection, new BasicDBObject(MongoDBConstants.TIMESTAMP, 1));
+		
+		if (layout == LifetimeLayout.SIDE_COLLECTION) {
+			//one index for updates and one for queries. both are shared
+			//by all branch roots.
+			String name = LifetimeCollection.getName(collection);
+			ensureIndex(name, new BasicDBObject(LifetimeCollection.OID, 1)
+				.append(LifetimeCollection.ROOT, 1));
+			ensureIndex(name, new BasicDBObject(LifetimeCollection.ROOT, 1)
+				.append(LifetimeCollection.INSERTED, 1));
+			return;
+		}
+		
+		//the lifetime query checks if the insertion attribute is missing
+		//or compares both attributes, so a compound index covers it.
+		//the index must not be sparse, because documents without the
+		//insertion attribute would not be found otherwise.
+		DBObject keys = new BasicDBObject(MongoDBConstants.LIFETIME + ".i" + rootCid, 1)
+			.append(MongoDBConstants.LIFETIME + "." + rootCid, 1);
+		if (_created.contains(makeKey(collection, keys))) {
+			return;
+		}
+		List<DBObject> expected = _expected.get(collection);
+		if (expected != null && countLifetimeIndexes(expected) >= MAX_LIFETIME_INDEXES) {
+			return;
+		}
+		ensureIndex(collection, keys);
+	}
+	
+	/**
+	 * Counts the lifetime indexes in a list of indexes
+	 * @param indexes the indexes
+	 * @return the number of lifetime indexes
+	 */
+	private static int countLifetimeIndexes(List<DBObject> indexes) {
+		int n = 0;
+		synchronized (indexes) {
+			for (DBObject keys : indexes) {
+				if (keys.keySet().iterator().next().startsWith(
+						MongoDBConstants.LIFETIME + ".")) {
+					++n;
+				}
+			}
+		}
+		return n;
+	}
+	
+	/**
+	 * Creates an index if it has not been created before
+	 * @param collection the collection's name
+	 * @param keys the indexed attributes
+	 */
+	private void ensureIndex(String collection, DBObject keys) {
+		String key = makeKey(collection, keys);
+		if (_created.contains(key)) {
+			return;
+		}
+		
+		//only remember the index if it could be created, so it will
+		//be created again next time otherwise
+		_db.getCollection(collection).ensureIndex(keys);
+		if (!_created.add(key)) {
+			//another thread has created the index in the meantime
+			return;
+		}
+		
+		List<DBObject> expected = _expected.get(collection);
+		if (expected == null) {
+			synchronized (_expected) {
+				expected = _expected.get(collection);
+				if (expected == null) {
+					expected = Collections.synchronizedList(new ArrayList<DBObject>());
+					_expected.put(collection, expected);
+				}
+			}
+		}
+		expected.add(keys);
+	}
+	
+	/**
+	 * Makes a string identifying an index
+	 * @param collection the collection's name
+	 * @param keys the indexed attributes
+	 * @return the string
+	 */
+	private static String makeKey(String collection, DBObject keys) {
+		StringBuilder sb = new StringBuilder(collection);
+		for (String k : keys.keySet()) {
+			sb.append('\0').append(k);
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Checks if all indexes created by this manager exist in the database.
+	 * Indexes may be missing if they have been dropped or if they could
+	 * not be created (e.g. because the write concern did not report
+	 * the error).
+	 * @return descriptions of the missing indexes (the list is empty if
+	 * all indexes exist)
+	 */
+	public List<String> findMissingIndexes() {
+		List<String> r = new ArrayList<String>();
+		for (Map.Entry<String, List<DBObject>> e : _expected.entrySet()) {
+			DBCollection dbc = _db.getCollection(e.getKey());
+			Set<String> existing = new HashSet<String>();
+			for (DBObject info : dbc.getIndexInfo()) {
+				existing.add(makeKey(e.getKey(), (DBObject)info.get("key")));
+			}
+			List<DBObject> expected;
+			synchronized (e.getValue()) {
+				expected = new ArrayList<DBObject>(e.getValue());
+			}
+			for (DBObject keys : expected) {
+				if (!existing.contains(makeKey(e.getKey(), keys))) {
+					r.add(e.getKey() + " " + keys.keySet());
+				}
+			}
+		}
+		return r;
+	}
+	
+	/**
+	 * Forgets about all indexes created so far, so they will be created
+	 * again the next time they are requested. Should be called if the
+	 * indexes have been dropped.
+	 */
+	public void reset() {
+		_created.clear();
+		_expected.clear();
+	}
+}
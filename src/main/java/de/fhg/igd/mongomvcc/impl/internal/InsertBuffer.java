@@ -0,0 +1,165 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+/**
+ * <p>Buffers documents that have been inserted into collections but
+ * have not been written to the database yet. Keeps track of the number
+ * of documents and of their estimated BSON size per collection.</p>
+ * <p><strong>Thread-safety:</strong> This class is not thread-safe. Each
+ * thread should have its own buffer.</p>
+ * @author Michel Kraemer
+ */
+public class InsertBuffer {
+	/**
+	 * Maps collection names to buffered documents (identified by their
+	 * OIDs and kept in the order in which they have been added)
+	 */
+	private final Map<String, Map<Long, DBObject>> _documents =
+			new HashMap<String, Map<Long, DBObject>>();
+	
+	/**
+	 * Maps collection names to the estimated size of the buffered documents
+	 */
+	private final Map<String, Long> _bytes = new HashMap<String, Long>();
+	
+	/**
+	 * Buffers a document
+	 * @param collection the name of the collection the document
+	 * has been inserted into
+	 * @param dbo the document (must have an OID)
+	 * @return the number of documents buffered for the collection
+	 */
+	public int add(String collection, DBObject dbo) {
+		Map<Long, DBObject> m = _documents.get(collection);
+		if (m == null) {
+			m = new LinkedHashMap<Long, DBObject>();
+			_documents.put(collection, m);
+		}
+		m.put((Long)dbo.get(MongoDBConstants.ID), dbo);
+		
+		long size = estimateSize(dbo);
+		Long bytes = _bytes.get(collection);
+		_bytes.put(collection, bytes == null ? size : bytes + size);
+		
+		return m.size();
+	}
+	
+	/**
+	 * Roughly estimates the number of bytes a value needs when it is
+	 * encoded to BSON without actually encoding it
+	 * @param value the value
+	 * @return the estimated size in bytes
+	 */
+	private static long estimateSize(Object value) {
+		if (value instanceof String) {
+			//length, characters (most of them need one byte) and terminator
+			return 5 + ((String)value).length();
+		}
+		if (value instanceof byte[]) {
+			return 5 + ((byte[])value).length;
+		}
+		if (value instanceof DBObject || value instanceof Map) {
+			Map<?, ?> m = value instanceof DBObject ?
+					((DBObject)value).toMap() : (Map<?, ?>)value;
+			long r = 5;
+			for (Map.Entry<?, ?> e : m.entrySet()) {
+				//type, name and terminator
+				r += 2 + String.valueOf(e.getKey()).length();
+				r += estimateSize(e.getValue());
+			}
+			return r;
+		}
+		if (value instanceof Collection) {
+			long r = 5;
+			int i = 0;
+			for (Object o : (Collection<?>)value) {
+				//type, index and terminator
+				r += 2 + String.valueOf(i++).length();
+				r += estimateSize(o);
+			}
+			return r;
+		}
+		//numbers, dates, booleans and other small values
+		return 8;
+	}
+	
+	/**
+	 * Gets the estimated BSON size of the documents buffered for a collection
+	 * @param collection the collection's name
+	 * @return the size in bytes
+	 */
+	public long getBytes(String collection) {
+		Long bytes = _bytes.get(collection);
+		return bytes == null ? 0 : bytes;
+	}
+	
+	/**
+	 * Gets a buffered document
+	 * @param collection the collection's name
+	 * @param oid the document's OID
+	 * @return the document or null if it is not buffered
+	 */
+	public DBObject get(String collection, long oid) {
+		Map<Long, DBObject> m = _documents.get(collection);
+		if (m == null) {
+			return null;
+		}
+		return m.get(oid);
+	}
+	
+	/**
+	 * Removes all documents buffered for a collection
+	 * @param collection the collection's name
+	 * @return the documents in the order in which they have been
+	 * added (may be empty but never null)
+	 */
+	public List<DBObject> remove(String collection) {
+		Map<Long, DBObject> m = _documents.remove(collection);
+		_bytes.remove(collection);
+		if (m == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<DBObject>(m.values());
+	}
+	
+	/**
+	 * @return the names of all collections with buffered documents
+	 */
+	public List<String> getCollectionNames() {
+		return new ArrayList<String>(_documents.keySet());
+	}
+	
+	/**
+	 * Discards all buffered documents
+	 */
+	public void clear() {
+		_documents.clear();
+		_bytes.clear();
+	}
+}
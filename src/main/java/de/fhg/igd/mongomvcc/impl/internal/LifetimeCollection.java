@@ -0,0 +1,191 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * <p>Stores lifetime information of documents in a separate collection,
+ * so the documents themselves never have to be updated. The collection
+ * contains one small document per OID and branch root:</p>
+ * <pre>{ r: root CID, o: OID, i: CID of insertion, d: CID of deletion }</pre>
+ * <p>The attributes have the same meaning as the lifetime attributes
+ * embedded into documents. Documents without information about their
+ * insertion in a branch root are visible in this root. Their deletion
+ * is therefore not saved either.</p>
+ * @author Michel Kraemer
+ */
+public class LifetimeCollection {
+	/**
+	 * The prefix for names of collections containing lifetime information
+	 */
+	public static final String PREFIX = MongoDBConstants.LIFETIME + ".";
+	
+	/**
+	 * The attribute containing the branch root
+	 */
+	public static final String ROOT = "r";
+	
+	/**
+	 * The attribute containing the OID
+	 */
+	public static final String OID = "o";
+	
+	/**
+	 * The attribute containing the CID of the commit that inserted the document
+	 */
+	public static final String INSERTED = "i";
+	
+	/**
+	 * The attribute containing the CID of the commit that deleted the document
+	 */
+	public static final String DELETED = "d";
+	
+	/**
+	 * The maximum number of OIDs sent to the database with one request
+	 */
+	private static final int SLICE = 1000;
+	
+	/**
+	 * The collection containing the lifetime information
+	 */
+	private final DBCollection _delegate;
+	
+	/**
+	 * Creates a new object
+	 * @param db the MongoDB database
+	 * @param collection the name of the collection whose documents'
+	 * lifetime information should be accessed
+	 */
+	public LifetimeCollection(DB db, String collection) {
+		_delegate = db.getCollection(getName(collection));
+	}
+	
+	/**
+	 * Gets the name of the collection containing the lifetime information
+	 * @param collection the name of the collection containing the documents
+	 * @return the name
+	 */
+	public static String getName(String collection) {
+		return PREFIX + collection;
+	}
+	
+	/**
+	 * Splits an array of OIDs into slices
+	 * @param oids the OIDs
+	 * @return the slices
+	 */
+	private static List<long[]> slice(long[] oids) {
+		List<long[]> r = new ArrayList<long[]>();
+		for (int i = 0; i < oids.length; i += SLICE) {
+			int len = Math.min(SLICE, oids.length - i);
+			long[] slice = new long[len];
+			System.arraycopy(oids, i, slice, 0, len);
+			r.add(slice);
+		}
+		return r;
+	}
+	
+	/**
+	 * Saves the CID of the commit that inserted documents. Replaces
+	 * information saved for the same documents before (e.g. if the
+	 * commit is written again after it has been rebased). Each document
+	 * is upserted on its own, so its information is never missing, not
+	 * even temporarily.
+	 * @param root the branch root
+	 * @param oids the OIDs of the inserted documents
+	 * @param cid the CID to save
+	 * @param wc the write concern to use
+	 */
+	public void markInserted(long root, long[] oids, long cid, WriteConcern wc) {
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(INSERTED, cid))
+			.append("$unset", new BasicDBObject(DELETED, 1));
+		for (long oid : oids) {
+			_delegate.update(new BasicDBObject(ROOT, root).append(OID, oid),
+					update, true, false, wc);
+		}
+	}
+	
+	/**
+	 * Saves the CID of the commit that deleted documents
+	 * @param root the branch root
+	 * @param oids the OIDs of the deleted documents
+	 * @param cid the CID to save
+	 * @param wc the write concern to use
+	 */
+	public void markDeleted(long root, long[] oids, long cid, WriteConcern wc) {
+		DBObject update = new BasicDBObject("$set", new BasicDBObject(DELETED, cid));
+		for (long[] slice : slice(oids)) {
+			_delegate.update(new BasicDBObject(ROOT, root).append(OID,
+					new BasicDBObject("$in", slice)), update, false, true, wc);
+		}
+	}
+	
+	/**
+	 * Finds the OIDs of documents which are not visible in a commit
+	 * (i.e. which have been inserted after the commit or deleted in
+	 * the commit or before)
+	 * @param root the branch root
+	 * @param head the commit's CID
+	 * @param limit the maximum number of OIDs to return
+	 * @return the OIDs or null if there are more OIDs than the given limit
+	 */
+	public long[] findInvisible(long root, long head, int limit) {
+		BasicDBList or = new BasicDBList();
+		or.add(new BasicDBObject(INSERTED, new BasicDBObject("$gt", head)));
+		or.add(new BasicDBObject(INSERTED, new BasicDBObject("$exists", true))
+			.append(DELETED, new BasicDBObject("$lte", head)));
+		DBObject query = new BasicDBObject(ROOT, root).append("$or", or);
+		
+		long[] r = new long[16];
+		int n = 0;
+		for (DBObject o : _delegate.find(query, new BasicDBObject(OID, 1)
+				.append(MongoDBConstants.ID, 0)).limit(limit + 1)) {
+			if (n == limit) {
+				return null;
+			}
+			if (n == r.length) {
+				long[] nr = new long[r.length * 2];
+				System.arraycopy(r, 0, nr, 0, n);
+				r = nr;
+			}
+			r[n++] = (Long)o.get(OID);
+		}
+		long[] result = new long[n];
+		System.arraycopy(r, 0, result, 0, n);
+		return result;
+	}
+	
+	/**
+	 * Removes the lifetime information of documents in all branch roots
+	 * @param oids the OIDs of the documents
+	 */
+	public void remove(long[] oids) {
+		for (long[] slice : slice(oids)) {
+			_delegate.remove(new BasicDBObject(OID, new BasicDBObject("$in", slice)));
+		}
+	}
+}
@@ -56,4 +56,20 @@ public abstract class MongoDBConstants {
 	 * The name of the collection containing commits
 	 */
 	public final static String COLLECTION_COMMITS = "_commits";
+	
+	/**
+	 * The name of the collection containing checkpoints
+	 */
+	public final static String COLLECTION_CHECKPOINTS = "_checkpoints";
+	
+	/**
+	 * The name of the collection containing the chunks of commits
+	 * that are too large to be stored in a single document
+	 */
+	public final static String COLLECTION_COMMIT_CHUNKS = "_commitchunks";
+	
+	/**
+	 * The name of the collection containing database-wide settings
+	 */
+	public final static String COLLECTION_SETTINGS = "_settings";
 }
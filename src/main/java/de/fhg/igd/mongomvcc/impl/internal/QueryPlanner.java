@@ -0,0 +1,124 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import de.fhg.igd.mongomvcc.impl.QueryPlan;
+
+/**
+ * <p>Chooses a {@link QueryPlan} based on a simple cost model. Costs are
+ * measured in the number of documents the database has to transfer.
+ * Each request to the database costs as much as transferring
+ * {@link #ROUNDTRIP_COST} documents.</p>
+ * <p>Cost estimates are rough, so the lifetime query is preferred unless
+ * another plan is at least {@link #MIN_GAIN} times cheaper.</p>
+ * @author Michel Kraemer
+ */
+public final class QueryPlanner {
+	/**
+	 * The maximum number of OIDs sent to the database with one request
+	 */
+	public static final int OID_IN_SLICE = 1000;
+	
+	/**
+	 * The cost of a single request to the database
+	 */
+	public static final double ROUNDTRIP_COST = 50;
+	
+	/**
+	 * The cost of sending one OID to the database
+	 */
+	public static final double OID_COST = 0.25;
+	
+	/**
+	 * The factor by which another plan has to be cheaper than the
+	 * lifetime query in order to be chosen
+	 */
+	public static final double MIN_GAIN = 2;
+	
+	private QueryPlanner() {
+		//hidden constructor
+	}
+	
+	/**
+	 * Estimates the cost of {@link QueryPlan#OID_IN}
+	 * @param indexSize the number of visible objects
+	 * @return the estimated cost
+	 */
+	public static double costOidIn(long indexSize) {
+		long requests = (indexSize + OID_IN_SLICE - 1) / OID_IN_SLICE;
+		return indexSize * (1 + OID_COST) + requests * ROUNDTRIP_COST;
+	}
+	
+	/**
+	 * Estimates the cost of {@link QueryPlan#LIFETIME}
+	 * @param collectionSize the number of objects in the collection
+	 * (including the ones not visible)
+	 * @return the estimated cost
+	 */
+	public static double costLifetime(long collectionSize) {
+		return collectionSize + ROUNDTRIP_COST;
+	}
+	
+	/**
+	 * Estimates the cost of {@link QueryPlan#HYBRID}. Includes the request
+	 * required to count the objects in the OID range.
+	 * @param rangeSize the number of objects in the collection whose
+	 * OIDs lie in the range of visible OIDs
+	 * @return the estimated cost
+	 */
+	public static double costHybrid(long rangeSize) {
+		return rangeSize + 2 * ROUNDTRIP_COST;
+	}
+	
+	/**
+	 * Checks if it is worth counting the objects in the range of visible
+	 * OIDs, i.e. if {@link QueryPlan#HYBRID} can be cheaper than the other
+	 * plans at all
+	 * @param indexSize the number of visible objects
+	 * @param collectionSize the number of objects in the collection
+	 * @return true if the hybrid plan should be considered
+	 */
+	public static boolean considerHybrid(long indexSize, long collectionSize) {
+		return indexSize > OID_IN_SLICE && costHybrid(indexSize) <
+				Math.min(costOidIn(indexSize), costLifetime(collectionSize) / MIN_GAIN);
+	}
+	
+	/**
+	 * Chooses the cheapest plan
+	 * @param indexSize the number of visible objects
+	 * @param collectionSize the number of objects in the collection
+	 * @param rangeSize the number of objects in the collection whose
+	 * OIDs lie in the range of visible OIDs (-1 if the hybrid plan
+	 * should not be considered)
+	 * @return the plan
+	 */
+	public static QueryPlan plan(long indexSize, long collectionSize,
+			long rangeSize) {
+		QueryPlan r = QueryPlan.LIFETIME;
+		double limit = costLifetime(collectionSize) / MIN_GAIN;
+		double oidIn = costOidIn(indexSize);
+		if (oidIn < limit) {
+			r = QueryPlan.OID_IN;
+			limit = oidIn;
+		}
+		if (rangeSize >= 0 && costHybrid(rangeSize) < limit) {
+			r = QueryPlan.HYBRID;
+		}
+		return r;
+	}
+}
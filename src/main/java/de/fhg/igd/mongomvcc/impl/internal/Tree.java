@@ -17,7 +17,11 @@
 
 package de.fhg.igd.mongomvcc.impl.internal;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,6 +31,7 @@ import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
 
 import de.fhg.igd.mongomvcc.VException;
 import de.fhg.igd.mongomvcc.VHistory;
@@ -46,6 +51,55 @@ public class Tree implements VHistory {
 	private final static String ROOT_CID = "rootcid";
 	private final static String PARENT_CID = "parent";
 	private final static String OBJECTS = "objects";
+	private final static String CHECKPOINT_CID = "cp";
+	private final static String CHECKPOINT_DISTANCE = "cpdist";
+	private final static String CHECKPOINT_CHANGES = "cpchanges";
+	private final static String ANCESTORS = "ancestors";
+	
+	/**
+	 * Attribute names of checkpoint documents
+	 */
+	final static String COLLECTION = "collection";
+	final static String CHUNK = "chunk";
+	private final static String CHUNKS = "chunks";
+	private final static String SIZE = "size";
+	private final static String DATA = "data";
+	private final static String COMPLETE = "complete";
+	
+	/**
+	 * The default number of commits after which a new checkpoint is written
+	 */
+	public final static int DEFAULT_CHECKPOINT_COMMITS = 1000;
+	
+	/**
+	 * The default number of changed objects after which a new
+	 * checkpoint is written
+	 */
+	public final static long DEFAULT_CHECKPOINT_CHANGES = 100000;
+	
+	/**
+	 * The maximum BSON document size assumed if the database does not
+	 * report it (the limit of old MongoDB versions)
+	 */
+	public final static int DEFAULT_MAX_DOCUMENT_SIZE = 4 * 1024 * 1024;
+	
+	/**
+	 * The part of the maximum BSON document size (1/n) reserved for the
+	 * other attributes of commits and chunks and the BSON overhead
+	 */
+	private final static int DOCUMENT_HEADROOM = 8;
+	
+	/**
+	 * The maximum number of ancestor CIDs stored in each commit. This is
+	 * also the maximum number of commits loaded with one query
+	 * in {@link #resolveAncestors(Commit, long)}.
+	 */
+	private final static int MAX_ANCESTORS = 32;
+	
+	/**
+	 * The maximum number of CIDs in one query
+	 */
+	private final static int MAX_QUERY_CIDS = 1000;
 	
 	/**
 	 * A collection storing all branches and their current heads
@@ -57,6 +111,45 @@ public class Tree implements VHistory {
 	 */
 	private final DBCollection _commits;
 	
+	/**
+	 * A collection storing the materialized state of selected commits
+	 */
+	private final DBCollection _checkpoints;
+	
+	/**
+	 * A collection storing the chunks of large commits
+	 */
+	private final DBCollection _commitChunks;
+	
+	/**
+	 * The number of commits after which a new checkpoint is written
+	 * (0 if checkpoints should not be written based on the number of commits)
+	 */
+	private volatile int _checkpointCommits = DEFAULT_CHECKPOINT_COMMITS;
+	
+	/**
+	 * The number of changed objects after which a new checkpoint is
+	 * written (0 if checkpoints should not be written based on the
+	 * number of changes)
+	 */
+	private volatile long _checkpointChanges = DEFAULT_CHECKPOINT_CHANGES;
+	
+	/**
+	 * Coalesces flushes of concurrent branch updates
+	 */
+	private final GroupCommitter _groupCommitter;
+	
+	/**
+	 * A cache for deserialized commits and parent pointers
+	 */
+	private final CommitCache _cache = new CommitCache();
+	
+	/**
+	 * The maximum number of bytes of encoded UID/OID pairs stored in the
+	 * commit document itself or in one chunk of a commit's collection
+	 */
+	private volatile int _maxEncodedSize = getMaxEncodedSize(DEFAULT_MAX_DOCUMENT_SIZE);
+	
 	/**
 	 * Creates a new tree object
 	 * @param db the MongoDB database
@@ -64,6 +157,99 @@ public class Tree implements VHistory {
 	public Tree(DB db) {
 		_branches = db.getCollection(MongoDBConstants.COLLECTION_BRANCHES);
 		_commits = db.getCollection(MongoDBConstants.COLLECTION_COMMITS);
+		_checkpoints = db.getCollection(MongoDBConstants.COLLECTION_CHECKPOINTS);
+		_groupCommitter = new GroupCommitter(db);
+		_commitChunks = db.getCollection(MongoDBConstants.COLLECTION_COMMIT_CHUNKS);
+	}
+	
+	/**
+	 * Sets the maximum size of BSON documents the database accepts. Large
+	 * change sets are split up into chunks, so no commit document or
+	 * chunk exceeds this size.
+	 * @param bytes the maximum size in bytes (see
+	 * {@link de.fhg.igd.mongomvcc.impl.internal.BuildInfo#getMaxBsonObjectSize()})
+	 */
+	public void setMaxDocumentSize(int bytes) {
+		_maxEncodedSize = getMaxEncodedSize(bytes);
+	}
+	
+	/**
+	 * Calculates the number of bytes of encoded UID/OID pairs that can
+	 * be stored in a document
+	 * @param maxDocumentSize the maximum BSON document size
+	 * @return the number of bytes
+	 */
+	private static int getMaxEncodedSize(int maxDocumentSize) {
+		return maxDocumentSize - maxDocumentSize / DOCUMENT_HEADROOM;
+	}
+	
+	/**
+	 * @return the object coalescing flushes of concurrent branch updates
+	 */
+	public GroupCommitter getGroupCommitter() {
+		return _groupCommitter;
+	}
+	
+	/**
+	 * @return the cache for deserialized commits and parent pointers
+	 */
+	public CommitCache getCommitCache() {
+		return _cache;
+	}
+	
+	/**
+	 * Configures how often checkpoints are written. A checkpoint will be
+	 * written as soon as one of the given thresholds is reached.
+	 * @param commits the number of commits after which a new checkpoint
+	 * is written (0 if checkpoints should not be written based on the
+	 * number of commits)
+	 * @param changes the number of changed objects after which a new
+	 * checkpoint is written (0 if checkpoints should not be written based
+	 * on the number of changes)
+	 */
+	public void setCheckpointInterval(int commits, long changes) {
+		_checkpointCommits = commits;
+		_checkpointChanges = changes;
+	}
+	
+	/**
+	 * Creates a new commit (but does not add it to the tree). Decides
+	 * whether a checkpoint should be written for the new commit. In this
+	 * case the new commit's checkpoint CID will equal its CID and the
+	 * caller should call {@link #addCheckpoint(long, Map)} before the
+	 * commit is added to the tree.
+	 * @param cid the new commit's CID
+	 * @param parent the parent commit
+	 * @param rootCID the root CID of the branch the commit belongs to
+	 * @param objects objects added/changed in the new commit
+	 * @return the new commit
+	 */
+	public Commit createCommit(long cid, Commit parent, long rootCID,
+			Map<String, IdMap> objects) {
+		long changes = 0;
+		for (IdMap m : objects.values()) {
+			changes += m.size();
+		}
+		
+		int distance = parent.getCheckpointDistance() + 1;
+		changes += parent.getCheckpointChanges();
+		long timestamp = System.currentTimeMillis();
+		
+		//the new commit's ancestors are its parent and the parent's ancestors
+		long[] parentAncestors = parent.getAncestors();
+		long[] ancestors = new long[Math.min(MAX_ANCESTORS, parentAncestors.length + 1)];
+		ancestors[0] = parent.getCID();
+		System.arraycopy(parentAncestors, 0, ancestors, 1, ancestors.length - 1);
+		
+		int maxCommits = _checkpointCommits;
+		long maxChanges = _checkpointChanges;
+		if ((maxCommits > 0 && distance >= maxCommits) ||
+				(maxChanges > 0 && changes >= maxChanges)) {
+			return new Commit(cid, timestamp, parent.getCID(), rootCID,
+					objects, cid, 0, 0, ancestors);
+		}
+		return new Commit(cid, timestamp, parent.getCID(), rootCID, objects,
+				parent.getCheckpointCID(), distance, changes, ancestors);
 	}
 	
 	/**
@@ -74,32 +260,214 @@ public class Tree implements VHistory {
 	}
 	
 	/**
-	 * Adds a commit to the tree
+	 * Adds a commit to the tree. Collections with a lot of changed
+	 * objects are split up into chunks which are saved before the
+	 * commit itself, so a commit never refers to missing chunks.
 	 * @param commit the commit to add
 	 */
 	public void addCommit(Commit commit) {
+		addCommit(commit, _commits.getWriteConcern());
+	}
+	
+	/**
+	 * Adds a commit to the tree. Collections with a lot of changed
+	 * objects are split up into chunks which are saved before the
+	 * commit itself, so a commit never refers to missing chunks.
+	 * @param commit the commit to add
+	 * @param writeConcern the write concern to use. If it is acknowledged,
+	 * the commit has been saved as soon as this method returns.
+	 */
+	public void addCommit(Commit commit, WriteConcern writeConcern) {
 		DBObject o = new BasicDBObject();
 		o.put(MongoDBConstants.ID, commit.getCID());
 		o.put(MongoDBConstants.TIMESTAMP, commit.getTimestamp());
 		o.put(PARENT_CID, commit.getParentCID());
 		o.put(ROOT_CID, commit.getRootCID());
+		o.put(CHECKPOINT_CID, commit.getCheckpointCID());
+		o.put(CHECKPOINT_DISTANCE, commit.getCheckpointDistance());
+		o.put(CHECKPOINT_CHANGES, commit.getCheckpointChanges());
+		o.put(ANCESTORS, commit.getAncestors());
 		DBObject objs = new BasicDBObject();
+		int maxEncodedSize = _maxEncodedSize;
+		long inline = 0;
 		for (Map.Entry<String, IdMap> e : commit.getObjects().entrySet()) {
-			DBObject co = new BasicDBObject();
-			IdMapIterator it = e.getValue().iterator();
+			byte[][] chunks = IdMapCodec.encodeBySize(e.getValue(), maxEncodedSize);
+			if (chunks.length == 1 && inline + chunks[0].length <= maxEncodedSize) {
+				objs.put(e.getKey(), chunks[0]);
+				inline += chunks[0].length;
+				continue;
+			}
+			
+			//save chunks separately and only store their number in the commit
+			for (int i = 0; i < chunks.length; ++i) {
+				DBObject co = new BasicDBObject();
+				co.put(MongoDBConstants.CID, commit.getCID());
+				co.put(COLLECTION, e.getKey());
+				co.put(CHUNK, i);
+				co.put(DATA, chunks[i]);
+				_commitChunks.insert(co, writeConcern);
+			}
+			objs.put(e.getKey(), chunks.length);
+		}
+		o.put(OBJECTS, objs);
+		_commits.insert(o, writeConcern);
+		_cache.put(commit);
+	}
+	
+	/**
+	 * Adds a checkpoint to the tree. A checkpoint contains the full state
+	 * of all collections at the time of a given commit, so indexes can be
+	 * built without reading all of the commit's ancestors. Checkpoints are
+	 * encoded with {@link IdMapCodec} and split up into chunks to avoid
+	 * documents larger than the maximum BSON document size. A marker is
+	 * saved after all chunks, so incomplete checkpoints can be detected.
+	 * @param cid the CID of the commit the checkpoint belongs to
+	 * @param objects the full state of all collections. Maps collection
+	 * names to maps of UIDs and OIDs. Objects with negative OIDs
+	 * (i.e. deleted objects) will be skipped.
+	 * @param writeConcern the write concern to use
+	 */
+	public void addCheckpoint(long cid, Map<String, IdMap> objects,
+			WriteConcern writeConcern) {
+		int maxEncodedSize = _maxEncodedSize;
+		for (Map.Entry<String, IdMap> e : objects.entrySet()) {
+			IdMap m = e.getValue();
+			
+			//collect UIDs and OIDs of all objects not deleted
+			IdMap visible = new IdHashMap(m.size());
+			IdMapIterator it = m.iterator();
 			while (it.hasNext()) {
 				it.advance();
-				co.put(String.valueOf(it.key()), it.value());
+				if (it.value() >= 0) {
+					visible.put(it.key(), it.value());
+				}
+			}
+			if (visible.size() == 0) {
+				//empty collections are not saved
+				continue;
+			}
+			
+			byte[][] chunks = IdMapCodec.encodeBySize(visible, maxEncodedSize);
+			for (int i = 0; i < chunks.length; ++i) {
+				DBObject o = new BasicDBObject();
+				o.put(MongoDBConstants.CID, cid);
+				o.put(COLLECTION, e.getKey());
+				o.put(CHUNK, i);
+				o.put(CHUNKS, chunks.length);
+				o.put(SIZE, visible.size());
+				o.put(DATA, chunks[i]);
+				_checkpoints.insert(o, writeConcern);
 			}
-			objs.put(e.getKey(), co);
 		}
-		o.put(OBJECTS, objs);
-		_commits.insert(o);
+		
+		//mark the checkpoint as complete
+		_checkpoints.insert(new BasicDBObject(MongoDBConstants.CID, cid)
+			.append(COMPLETE, true), writeConcern);
+	}
+	
+	/**
+	 * Adds a checkpoint to the tree using the default write concern
+	 * @param cid the CID of the commit the checkpoint belongs to
+	 * @param objects the full state of all collections
+	 * @see #addCheckpoint(long, Map, WriteConcern)
+	 */
+	public void addCheckpoint(long cid, Map<String, IdMap> objects) {
+		addCheckpoint(cid, objects, _checkpoints.getWriteConcern());
+	}
+	
+	/**
+	 * Resolves the checkpoint of a given commit
+	 * @param cid the commit's CID
+	 * @return the full state of all collections at the time of the given
+	 * commit (maps collection names to maps of UIDs and OIDs) or null
+	 * if there is no checkpoint for this commit or if it is incomplete
+	 */
+	public Map<String, IdMap> resolveCheckpoint(long cid) {
+		DBCursor c = _checkpoints.find(new BasicDBObject(MongoDBConstants.CID, cid));
+		Map<String, IdMap> result = new HashMap<String, IdMap>();
+		if (!readCheckpointChunks(c, result, true)) {
+			return null;
+		}
+		return result;
+	}
+	
+	/**
+	 * Resolves the state of a single collection from the checkpoint
+	 * of a given commit
+	 * @param cid the commit's CID
+	 * @param collection the collection's name
+	 * @return the state of the collection at the time of the given commit
+	 * (maps UIDs to OIDs) or null if there is no checkpoint for this commit
+	 * or if it is incomplete
+	 */
+	public IdMap resolveCheckpoint(long cid, String collection) {
+		if (_checkpoints.findOne(new BasicDBObject(MongoDBConstants.CID, cid)
+				.append(COMPLETE, true)) == null) {
+			//the checkpoint does not exist or it has not been written completely
+			return null;
+		}
+		DBCursor c = _checkpoints.find(new BasicDBObject(MongoDBConstants.CID, cid)
+			.append(COLLECTION, collection));
+		Map<String, IdMap> result = new HashMap<String, IdMap>();
+		if (!readCheckpointChunks(c, result, false)) {
+			return null;
+		}
+		IdMap r = result.get(collection);
+		if (r == null) {
+			//empty collections are not saved
+			r = new IdHashMap();
+		}
+		return r;
+	}
+	
+	/**
+	 * Reads checkpoint chunks and puts them into a map
+	 * @param c a cursor containing the chunks
+	 * @param result a map that maps collection names to maps of
+	 * UIDs and OIDs. Will be filled by this method.
+	 * @param requireMarker true if the cursor must also contain the marker
+	 * saved after all chunks
+	 * @return true if all chunks have been read, false if the
+	 * checkpoint is incomplete
+	 */
+	private static boolean readCheckpointChunks(DBCursor c, Map<String, IdMap> result,
+			boolean requireMarker) {
+		Map<String, Integer> remainingChunks = new HashMap<String, Integer>();
+		boolean complete = false;
+		for (DBObject o : c) {
+			if (o.containsField(COMPLETE)) {
+				complete = true;
+				continue;
+			}
+			String collection = (String)o.get(COLLECTION);
+			IdMap m = result.get(collection);
+			Integer remaining = remainingChunks.get(collection);
+			if (m == null) {
+				m = new IdHashMap((Integer)o.get(SIZE));
+				result.put(collection, m);
+				remaining = (Integer)o.get(CHUNKS);
+			}
+			remainingChunks.put(collection, remaining - 1);
+			IdMapCodec.decode((byte[])o.get(DATA), m);
+		}
+		
+		if (requireMarker && !complete) {
+			//checkpoint does not exist or has not been written completely
+			return false;
+		}
+		for (Integer remaining : remainingChunks.values()) {
+			if (remaining != 0) {
+				//checkpoint is incomplete
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	/**
 	 * Adds a named branch. Always waits for the database to fsync before
 	 * returning. This guarantees all threads will see the change.
+	 * Concurrent calls share a single fsync (see {@link GroupCommitter}).
 	 * @param name the branch's name
 	 * @param headCID the CID of the head commit the branch points to
 	 * @throws VException if there already is a branch with the given name or
@@ -120,8 +488,9 @@ public class Tree implements VHistory {
 			o.put(MongoDBConstants.ID, name);
 			o.put(MongoDBConstants.CID, headCID);
 			o.put(ROOT_CID, headCID);
-			_branches.insert(o, WriteConcern.FSYNC_SAFE);
+			_branches.insert(o, WriteConcern.ACKNOWLEDGED);
 		}
+		_groupCommitter.sync();
 	}
 	
 	/**
@@ -130,14 +499,50 @@ public class Tree implements VHistory {
 	 * This operation will usually be the last one when a commit is made, so
 	 * fsync'ing here is crucial for the database's integrity. Fsync'ing will
 	 * also make the database write all other documents created during the
-	 * commit to the hard disk.
+	 * commit to the hard disk. Concurrent calls share a single fsync
+	 * (see {@link GroupCommitter}).
 	 * @param name the branch's name
 	 * @param headCID the CID of the new head
 	 */
 	public void updateBranchHead(String name, long headCID) {
 		_branches.update(new BasicDBObject(MongoDBConstants.ID, name),
 				new BasicDBObject("$set", new BasicDBObject(MongoDBConstants.CID, headCID)),
-				false, false, WriteConcern.FSYNC_SAFE);
+				false, false, WriteConcern.ACKNOWLEDGED);
+		_groupCommitter.sync();
+	}
+	
+	/**
+	 * Atomically updates the head of a branch if it still points to the
+	 * expected commit. This is a single conditional update in the
+	 * database, so it also detects conflicts with other processes.
+	 * @param name the branch's name
+	 * @param expectedCID the CID of the commit the branch's head must
+	 * currently point to
+	 * @param headCID the CID of the new head
+	 * @param writeConcern the write concern used for the update (must
+	 * be acknowledged)
+	 * @param flush true if this method should wait for the database to
+	 * fsync before returning (see {@link #updateBranchHead(String, long)})
+	 * @return true if the head has been updated, false if it did not
+	 * point to the expected commit
+	 */
+	public boolean compareAndSetBranchHead(String name, long expectedCID,
+			long headCID, WriteConcern writeConcern, boolean flush) {
+		if (!writeConcern.callGetLastError()) {
+			throw new IllegalArgumentException("Branch heads can only be " +
+					"updated with an acknowledged write concern");
+		}
+		WriteResult r = _branches.update(new BasicDBObject(MongoDBConstants.ID, name)
+				.append(MongoDBConstants.CID, expectedCID),
+				new BasicDBObject("$set", new BasicDBObject(MongoDBConstants.CID, headCID)),
+				false, false, writeConcern);
+		if (r.getN() == 0) {
+			return false;
+		}
+		if (flush) {
+			_groupCommitter.sync();
+		}
+		return true;
 	}
 	
 	/**
@@ -210,11 +615,253 @@ public class Tree implements VHistory {
 	 * @throws VException if the commit is unknown
 	 */
 	public Commit resolveCommit(long cid) {
-		DBObject o = _commits.findOne(cid);
-		if (o == null) {
-			throw new VException("Unknown commit: " + cid);
+		Commit r = _cache.get(cid);
+		if (r == null) {
+			DBObject o = _commits.findOne(cid);
+			if (o == null) {
+				throw new VException("Unknown commit: " + cid);
+			}
+			r = deserializeCommit(o);
+			_cache.put(r);
+		}
+		return r;
+	}
+	
+	/**
+	 * <p>Resolves the ancestors of the given commit in bulk. Uses the
+	 * ancestor hint stored in the commit to load as many ancestors as
+	 * possible with a single query. Callers should call this method
+	 * repeatedly with the last commit returned until they reach the
+	 * commit they are looking for or the root commit.</p>
+	 * <p>Falls back to resolving only the parent if the commit does not
+	 * have an ancestor hint (e.g. because it has been created by an older
+	 * version of this library).</p>
+	 * @param c the commit whose ancestors should be resolved
+	 * @param stopCID the CID of an ancestor where the method should stop.
+	 * The ancestor with this CID will be the last one in the returned list.
+	 * Can be 0 (zero) if the method should not stop at a certain ancestor.
+	 * @return the resolved ancestors (parent first). The list will be empty
+	 * if the commit does not have a parent.
+	 * @throws VException if one of the ancestors could not be resolved
+	 */
+	public List<Commit> resolveAncestors(Commit c, long stopCID) {
+		List<Commit> result = new ArrayList<Commit>();
+		if (c.getParentCID() == 0) {
+			return result;
+		}
+		
+		long[] ancestors = c.getAncestors();
+		if (ancestors.length == 0 || ancestors[0] != c.getParentCID()) {
+			//there is no hint
+			result.add(resolveCommit(c.getParentCID()));
+			return result;
+		}
+		
+		//only load commits up to the stop CID
+		int n = ancestors.length;
+		for (int i = 0; i < ancestors.length; ++i) {
+			if (ancestors[i] == stopCID) {
+				n = i + 1;
+				break;
+			}
+		}
+		long[] cids = new long[n];
+		System.arraycopy(ancestors, 0, cids, 0, n);
+		
+		//look for cached commits first
+		Map<Long, Commit> commits = new HashMap<Long, Commit>();
+		long[] missing = new long[n];
+		int m = 0;
+		for (long cid : cids) {
+			Commit a = _cache.get(cid);
+			if (a != null) {
+				commits.put(cid, a);
+			} else {
+				missing[m++] = cid;
+			}
+		}
+		
+		//load all other commits with one query
+		if (m > 0) {
+			if (m < n) {
+				long[] newMissing = new long[m];
+				System.arraycopy(missing, 0, newMissing, 0, m);
+				missing = newMissing;
+			}
+			DBCursor cursor = _commits.find(new BasicDBObject(MongoDBConstants.ID,
+					new BasicDBObject("$in", missing)));
+			for (DBObject o : cursor) {
+				Commit a = deserializeCommit(o);
+				commits.put(a.getCID(), a);
+				_cache.put(a);
+			}
+		}
+		
+		//sort commits
+		for (long cid : cids) {
+			Commit a = commits.get(cid);
+			if (a == null) {
+				throw new VException("Unknown commit: " + cid);
+			}
+			result.add(a);
+		}
+		return result;
+	}
+
+	/**
+	 * Resolves the CIDs of the given commit and its ancestors without
+	 * loading the commits' objects. Uses the ancestor hints stored in
+	 * the commits, so only a fraction of the commits has to be queried.
+	 * @param c the commit
+	 * @param stopCID the CID of an ancestor where the method should stop.
+	 * This CID will be the last one in the returned array. Can be 0 (zero)
+	 * if the method should return all ancestors up to the root.
+	 * @return the CIDs of the commit and its ancestors (the commit's
+	 * CID first)
+	 * @throws VException if one of the ancestors could not be resolved
+	 */
+	public long[] resolveHistory(Commit c, long stopCID) {
+		long[] result = new long[16];
+		int n = 0;
+		result[n++] = c.getCID();
+		long parent = c.getParentCID();
+		long[] hint = c.getAncestors();
+		if (c.getCID() == stopCID) {
+			parent = 0;
 		}
-		return deserializeCommit(o);
+		while (parent != 0) {
+			if (hint.length == 0 || hint[0] != parent) {
+				//there is no hint
+				hint = new long[] { parent };
+			}
+			boolean stop = false;
+			for (long a : hint) {
+				if (n == result.length) {
+					long[] newResult = new long[n * 2];
+					System.arraycopy(result, 0, newResult, 0, n);
+					result = newResult;
+				}
+				result[n++] = a;
+				if (a == stopCID) {
+					stop = true;
+					break;
+				}
+			}
+			if (stop) {
+				break;
+			}
+			long last = hint[hint.length - 1];
+			
+			//continue with the oldest ancestor in the hint
+			Commit cached = _cache.get(last);
+			if (cached != null) {
+				parent = cached.getParentCID();
+				hint = cached.getAncestors();
+			} else {
+				DBObject o = _commits.findOne(new BasicDBObject(MongoDBConstants.ID, last),
+						new BasicDBObject(PARENT_CID, 1).append(ANCESTORS, 1));
+				if (o == null) {
+					throw new VException("Unknown commit: " + last);
+				}
+				parent = (Long)o.get(PARENT_CID);
+				hint = resolveAncestorHint((List<?>)o.get(ANCESTORS));
+				_cache.putParent(last, parent);
+			}
+		}
+		
+		long[] r = new long[n];
+		System.arraycopy(result, 0, r, 0, n);
+		return r;
+	}
+	
+	/**
+	 * Resolves all commits between an ancestor and one of its descendants
+	 * @param ancestorCID the ancestor's CID
+	 * @param descendant the descendant
+	 * @return the commits after the ancestor up to the descendant
+	 * (inclusive), oldest first, or null if the descendant does not
+	 * descend from the given ancestor
+	 * @throws VException if one of the commits could not be resolved
+	 */
+	public List<Commit> resolvePath(long ancestorCID, Commit descendant) {
+		//check ancestry first without loading any objects
+		long[] history = resolveHistory(descendant, ancestorCID);
+		if (history[history.length - 1] != ancestorCID) {
+			return null;
+		}
+		
+		List<Commit> result = new ArrayList<Commit>(history.length);
+		Commit c = descendant;
+		while (c.getCID() != ancestorCID) {
+			result.add(c);
+			List<Commit> ancestors = resolveAncestors(c, ancestorCID);
+			result.addAll(ancestors.subList(0, ancestors.size() - 1));
+			c = ancestors.get(ancestors.size() - 1);
+		}
+		Collections.reverse(result);
+		return result;
+	}
+	
+	/**
+	 * Resolves the objects a number of commits added, changed or deleted
+	 * in a single collection. Only loads the respective part of each commit.
+	 * @param cids the commits' CIDs
+	 * @param collection the collection's name
+	 * @return an array containing maps of UIDs and OIDs for each of the
+	 * given commits (in the same order). An element will be null if the
+	 * respective commit did not touch the collection.
+	 * @throws VException if one of the commits could not be resolved
+	 */
+	public IdMap[] resolveCollection(long[] cids, String collection) {
+		IdMap[] result = new IdMap[cids.length];
+		Map<Long, Integer> missing = new HashMap<Long, Integer>();
+		for (int i = 0; i < cids.length; ++i) {
+			Commit c = _cache.get(cids[i]);
+			if (c != null) {
+				result[i] = c.getObjects().get(collection);
+			} else {
+				missing.put(cids[i], i);
+			}
+		}
+		
+		//load missing parts in slices, so queries do not get too large
+		String key = OBJECTS + "." + collection;
+		long[] slice = new long[Math.min(missing.size(), MAX_QUERY_CIDS)];
+		int n = 0;
+		int remaining = missing.size();
+		for (Long cid : missing.keySet()) {
+			slice[n++] = cid;
+			--remaining;
+			if (n < slice.length && remaining > 0) {
+				continue;
+			}
+			
+			long[] query = slice;
+			if (n < slice.length) {
+				query = new long[n];
+				System.arraycopy(slice, 0, query, 0, n);
+			}
+			DBCursor cursor = _commits.find(new BasicDBObject(MongoDBConstants.ID,
+					new BasicDBObject("$in", query)), new BasicDBObject(key, 1));
+			int found = 0;
+			for (DBObject o : cursor) {
+				++found;
+				int i = missing.get((Long)o.get(MongoDBConstants.ID));
+				DBObject objs = (DBObject)o.get(OBJECTS);
+				if (objs != null) {
+					Object co = objs.get(collection);
+					if (co != null) {
+						result[i] = resolveCollectionObjects(
+								(Long)o.get(MongoDBConstants.ID), collection, co);
+					}
+				}
+			}
+			if (found != n) {
+				throw new VException("Unknown commit in: " + Arrays.toString(query));
+			}
+			n = 0;
+		}
+		return result;
 	}
 
 	/**
@@ -222,23 +869,61 @@ public class Tree implements VHistory {
 	 * @param o the object
 	 * @return the commit
 	 */
-	public static Commit deserializeCommit(DBObject o) {
+	public Commit deserializeCommit(DBObject o) {
 		long cid = (Long)o.get(MongoDBConstants.ID);
 		Long timestampL = (Long)o.get(MongoDBConstants.TIMESTAMP);
 		long timestamp = timestampL != null ? timestampL : 0;
 		long parentCID = (Long)o.get(PARENT_CID);
 		long rootCID = (Long)o.get(ROOT_CID);
+		Long checkpointCID = (Long)o.get(CHECKPOINT_CID);
+		Integer checkpointDistance = (Integer)o.get(CHECKPOINT_DISTANCE);
+		Long checkpointChanges = (Long)o.get(CHECKPOINT_CHANGES);
+		long[] ancestors = resolveAncestorHint((List<?>)o.get(ANCESTORS));
 		DBObject objs = (DBObject)o.get(OBJECTS);
 		Map<String, IdMap> objects = new HashMap<String, IdMap>();
 		for (String k : objs.keySet()) {
 			if (!k.equals(MongoDBConstants.ID)) {
-				objects.put(k, resolveCollectionObjects((DBObject)objs.get(k)));
+				objects.put(k, resolveCollectionObjects(cid, k, objs.get(k)));
 			}
 		}
-		return new Commit(cid, timestamp, parentCID, rootCID, objects);
+		return new Commit(cid, timestamp, parentCID, rootCID, objects,
+				checkpointCID != null ? checkpointCID : 0,
+				checkpointDistance != null ? checkpointDistance : 0,
+				checkpointChanges != null ? checkpointChanges : 0,
+				ancestors);
+	}
+	
+	private static long[] resolveAncestorHint(List<?> l) {
+		if (l == null) {
+			return new long[0];
+		}
+		long[] r = new long[l.size()];
+		for (int i = 0; i < r.length; ++i) {
+			r[i] = (Long)l.get(i);
+		}
+		return r;
 	}
 	
-	private static IdMap resolveCollectionObjects(DBObject o) {
+	/**
+	 * Deserializes the objects a commit added, changed or deleted
+	 * in a collection
+	 * @param cid the commit's CID
+	 * @param collection the collection's name
+	 * @param obj the serialized objects. Either a byte array (see
+	 * {@link IdMapCodec}), the number of chunks stored in a separate
+	 * collection, or a database object whose keys are UIDs and
+	 * whose values are OIDs (written by older versions of this library)
+	 * @return a map of UIDs and OIDs
+	 * @throws VException if the commit's chunks are incomplete
+	 */
+	private IdMap resolveCollectionObjects(long cid, String collection, Object obj) {
+		if (obj instanceof byte[]) {
+			return IdMapCodec.decode((byte[])obj);
+		}
+		if (obj instanceof Number) {
+			return resolveCommitChunks(cid, collection, ((Number)obj).intValue());
+		}
+		DBObject o = (DBObject)obj;
 		Set<String> keys = o.keySet();
 		IdMap r = new IdHashMap(keys.size());
 		for (String k : keys) {
@@ -247,13 +932,44 @@ public class Tree implements VHistory {
 		return r;
 	}
 	
+	/**
+	 * Loads the chunks of a commit's collection and decodes them
+	 * one after the other into a single map
+	 * @param cid the commit's CID
+	 * @param collection the collection's name
+	 * @param chunks the expected number of chunks
+	 * @return a map of UIDs and OIDs
+	 * @throws VException if chunks are missing
+	 */
+	private IdMap resolveCommitChunks(long cid, String collection, int chunks) {
+		DBCursor c = _commitChunks.find(new BasicDBObject(MongoDBConstants.CID, cid)
+			.append(COLLECTION, collection), new BasicDBObject(DATA, 1))
+			.sort(new BasicDBObject(CHUNK, 1));
+		IdMap r = new IdHashMap();
+		int n = 0;
+		for (DBObject o : c) {
+			IdMapCodec.decode((byte[])o.get(DATA), r);
+			++n;
+		}
+		if (n != chunks) {
+			throw new VException("Commit " + cid + " is incomplete. Expected " +
+				chunks + " chunks for collection " + collection + " but found " + n);
+		}
+		return r;
+	}
+	
 	@Override
 	public long getParent(long cid) {
-		DBObject o = _commits.findOne(cid, new BasicDBObject(PARENT_CID, 1));
-		if (o == null) {
-			throw new VException("Unknown commit: " + cid);
+		long r = _cache.getParent(cid);
+		if (r < 0) {
+			DBObject o = _commits.findOne(cid, new BasicDBObject(PARENT_CID, 1));
+			if (o == null) {
+				throw new VException("Unknown commit: " + cid);
+			}
+			r = (Long)o.get(PARENT_CID);
+			_cache.putParent(cid, r);
 		}
-		return (Long)o.get(PARENT_CID);
+		return r;
 	}
 
 	@Override
@@ -252,4 +252,32 @@ public class IdHashMapTest {
 			assertTrue(m.containsKey(i + 5002));
 		}
 	}
+	
+	/**
+	 * Tests if a map can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashMap m = new IdHashMap();
+		for (int i = 1; i <= 100; ++i) {
+			m.put(i, i * 2);
+		}
+		m.remove(50);
+		
+		IdHashMap m2 = new IdHashMap(m);
+		assertEquals(99, m2.size());
+		for (int i = 1; i <= 100; ++i) {
+			assertEquals(i == 50 ? 0 : i * 2, m2.get(i));
+		}
+		
+		m2.put(101, 202);
+		m2.remove(1);
+		assertEquals(99, m.size());
+		assertTrue(m.containsKey(1));
+		assertFalse(m.containsKey(101));
+		assertEquals(99, m2.size());
+		assertFalse(m2.containsKey(1));
+		assertTrue(m2.containsKey(101));
+	}
 }
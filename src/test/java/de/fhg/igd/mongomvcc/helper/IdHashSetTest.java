@@ -215,4 +215,32 @@ public class IdHashSetTest {
 			assertTrue(s.contains(i + 5002));
 		}
 	}
+	
+	/**
+	 * Tests if a set can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashSet s = new IdHashSet();
+		for (int i = 1; i <= 100; ++i) {
+			s.add(i);
+		}
+		s.remove(50);
+		
+		IdHashSet s2 = new IdHashSet(s);
+		assertEquals(99, s2.size());
+		for (int i = 1; i <= 100; ++i) {
+			assertEquals(i != 50, s2.contains(i));
+		}
+		
+		s2.add(101);
+		s2.remove(1);
+		assertEquals(99, s.size());
+		assertTrue(s.contains(1));
+		assertFalse(s.contains(101));
+		assertEquals(99, s2.size());
+		assertFalse(s2.contains(1));
+		assertTrue(s2.contains(101));
+	}
 }
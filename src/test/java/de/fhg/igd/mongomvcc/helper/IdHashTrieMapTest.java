@@ -0,0 +1,274 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link IdHashTrieMap}
+ * @author Michel Kraemer
+ */
+public class IdHashTrieMapTest {
+	/**
+	 * Tests the {@link IdHashTrieMap#put(long, long)} method
+	 */
+	@Test
+	public void put() {
+		IdMap m = new IdHashTrieMap();
+		assertEquals(0, m.put(4711, 1111));
+		assertEquals(1, m.size());
+		assertTrue(m.containsKey(4711));
+		assertEquals(1111, m.put(4711, 2222));
+		assertEquals(1, m.size());
+		assertEquals(2222, m.get(4711));
+		assertEquals(0, m.get(4712));
+	}
+	
+	/**
+	 * Tests if keys that share a lot of bits and keys which are
+	 * reserved in {@link IdHashMap} can be stored
+	 */
+	@Test
+	public void extremeKeys() {
+		IdMap m = new IdHashTrieMap();
+		long[] keys = new long[] { 0, 1, 32, 1L << 60, 1L << 62, -1,
+				Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1 };
+		for (int i = 0; i < keys.length; ++i) {
+			assertEquals(0, m.put(keys[i], i + 1));
+		}
+		assertEquals(keys.length, m.size());
+		for (int i = 0; i < keys.length; ++i) {
+			assertEquals(i + 1, m.get(keys[i]));
+		}
+		for (int i = 0; i < keys.length; ++i) {
+			assertEquals(i + 1, m.remove(keys[i]));
+			assertFalse(m.containsKey(keys[i]));
+		}
+		assertEquals(0, m.size());
+	}
+	
+	/**
+	 * Tests if the keys and values can be converted to arrays
+	 */
+	@Test
+	public void keysValues() {
+		IdMap m = new IdHashTrieMap();
+		for (int i = 0; i < 20; ++i) {
+			m.put(i * i, i);
+		}
+		long[] k = m.keys();
+		long[] v = m.values();
+		assertEquals(20, k.length);
+		assertEquals(20, v.length);
+		Arrays.sort(k);
+		Arrays.sort(v);
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(i * i, k[i]);
+			assertEquals(i, v[i]);
+		}
+	}
+	
+	/**
+	 * Tests if several items can be removed
+	 */
+	@Test
+	public void removeSeveral() {
+		IdMap m = new IdHashTrieMap();
+		for (int i = 0; i < 2000; ++i) {
+			m.put(i, i + 1);
+		}
+		for (int i = 1000; i < 2000; ++i) {
+			assertEquals(i + 1, m.remove(i));
+		}
+		assertEquals(0, m.remove(1000));
+		assertEquals(1000, m.size());
+		for (int i = 0; i < 2000; ++i) {
+			assertEquals(i < 1000 ? i + 1 : 0, m.get(i));
+		}
+		m.clear();
+		assertEquals(0, m.size());
+		assertEquals(0, m.keys().length);
+	}
+	
+	/**
+	 * Tests what happens if we try to access an empty map through an iterator
+	 */
+	@Test(expected = NoSuchElementException.class)
+	public void iteratorEmpty() {
+		IdMap m = new IdHashTrieMap();
+		IdMapIterator i = m.iterator();
+		assertFalse(i.hasNext());
+		i.advance();
+	}
+	
+	/**
+	 * Tests the {@link IdHashTrieMap#iterator()} method
+	 */
+	@Test
+	public void iterator() {
+		IdMap m = new IdHashTrieMap();
+		for (int j = 1; j < 2001; ++j) {
+			m.put(j * 31L, j);
+		}
+		IdMapIterator i = m.iterator();
+		int n = 0;
+		while (i.hasNext()) {
+			i.advance();
+			assertEquals(i.value() * 31L, i.key());
+			++n;
+		}
+		assertEquals(2000, n);
+	}
+	
+	/**
+	 * Tests if a map can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashTrieMap m = new IdHashTrieMap();
+		for (int i = 1; i <= 1000; ++i) {
+			m.put(i, i * 2);
+		}
+		
+		IdHashTrieMap m2 = new IdHashTrieMap(m);
+		IdHashTrieMap m3 = new IdHashTrieMap(m);
+		m2.put(1001, 2002);
+		m2.put(1, 3);
+		m2.remove(500);
+		m.remove(1);
+		m.put(2, 5);
+		
+		assertEquals(999, m.size());
+		assertFalse(m.containsKey(1));
+		assertEquals(5, m.get(2));
+		assertTrue(m.containsKey(500));
+		assertFalse(m.containsKey(1001));
+		
+		assertEquals(1000, m2.size());
+		assertEquals(3, m2.get(1));
+		assertEquals(4, m2.get(2));
+		assertFalse(m2.containsKey(500));
+		assertEquals(2002, m2.get(1001));
+		
+		assertEquals(1000, m3.size());
+		for (int i = 1; i <= 1000; ++i) {
+			assertEquals(i * 2, m3.get(i));
+		}
+	}
+	
+	/**
+	 * Performs random operations on a map and its copies and
+	 * compares the results with {@link HashMap}
+	 */
+	@Test
+	public void random() {
+		Random rnd = new Random(1234);
+		IdHashTrieMap m = new IdHashTrieMap();
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		for (int round = 0; round < 10; ++round) {
+			IdHashTrieMap snapshot = new IdHashTrieMap(m);
+			Map<Long, Long> expectedSnapshot = new HashMap<Long, Long>(expected);
+			for (int i = 0; i < 5000; ++i) {
+				long k = rnd.nextBoolean() ? rnd.nextInt(3000) : rnd.nextLong();
+				if (rnd.nextInt(3) == 0) {
+					Long old = expected.remove(k);
+					assertEquals(old == null ? 0 : old.longValue(), m.remove(k));
+				} else {
+					long v = rnd.nextLong();
+					Long old = expected.put(k, v);
+					assertEquals(old == null ? 0 : old.longValue(), m.put(k, v));
+				}
+			}
+			assertEquals(expected.size(), m.size());
+			assertMapEquals(expected, m);
+			assertMapEquals(expectedSnapshot, snapshot);
+		}
+	}
+	
+	/**
+	 * Tests if multiple threads can read from the same map and copy it
+	 * concurrently without interfering with each other
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void concurrentReads() throws Exception {
+		final IdHashTrieMap m = new IdHashTrieMap();
+		for (int i = 1; i <= 20000; ++i) {
+			m.put(i, i * 3);
+		}
+		
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; ++t) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int round = 0; round < 20; ++round) {
+						IdHashTrieMap copy = new IdHashTrieMap(m);
+						copy.put(offset + 1, -1);
+						for (int i = 1; i <= 20000; ++i) {
+							if (m.get(i) != i * 3 || !m.containsKey(i)) {
+								errors.incrementAndGet();
+							}
+						}
+						if (m.containsKey(20001)) {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(0, errors.get());
+		
+		//the original can still be modified
+		m.put(1, 1);
+		assertEquals(1, m.get(1));
+	}
+	
+	private static void assertMapEquals(Map<Long, Long> expected, IdMap m) {
+		assertEquals(expected.size(), m.size());
+		IdMapIterator it = m.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			it.advance();
+			assertEquals(expected.get(it.key()).longValue(), it.value());
+			++n;
+		}
+		assertEquals(expected.size(), n);
+		for (Map.Entry<Long, Long> e : expected.entrySet()) {
+			assertEquals(e.getValue().longValue(), m.get(e.getKey()));
+		}
+	}
+}
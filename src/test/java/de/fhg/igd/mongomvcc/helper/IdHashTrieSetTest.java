@@ -0,0 +1,99 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link IdHashTrieSet}
+ * @author Michel Kraemer
+ */
+public class IdHashTrieSetTest {
+	/**
+	 * Tests if values can be added, found and removed
+	 */
+	@Test
+	public void addContainsRemove() {
+		IdSet s = new IdHashTrieSet();
+		assertTrue(s.add(4711));
+		assertFalse(s.add(4711));
+		assertTrue(s.add(Long.MAX_VALUE));
+		assertTrue(s.add(Long.MIN_VALUE));
+		assertEquals(3, s.size());
+		assertTrue(s.contains(4711));
+		assertTrue(s.contains(Long.MAX_VALUE));
+		assertFalse(s.contains(4712));
+		assertTrue(s.remove(4711));
+		assertFalse(s.remove(4711));
+		assertEquals(2, s.size());
+	}
+	
+	/**
+	 * Tests if the set can be converted to an array and iterated
+	 */
+	@Test
+	public void toArrayIterator() {
+		IdSet s = new IdHashTrieSet();
+		for (int i = 0; i < 1000; ++i) {
+			s.add(i * 7L);
+		}
+		long[] a = s.toArray();
+		assertEquals(1000, a.length);
+		Arrays.sort(a);
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(i * 7L, a[i]);
+		}
+		IdSetIterator it = s.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			assertEquals(0, it.next() % 7);
+			++n;
+		}
+		assertEquals(1000, n);
+	}
+	
+	/**
+	 * Tests if a set can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashTrieSet s = new IdHashTrieSet();
+		for (int i = 1; i <= 100; ++i) {
+			s.add(i);
+		}
+		IdHashTrieSet s2 = new IdHashTrieSet(s);
+		s2.add(101);
+		s2.remove(1);
+		s.remove(2);
+		assertEquals(99, s.size());
+		assertTrue(s.contains(1));
+		assertFalse(s.contains(2));
+		assertFalse(s.contains(101));
+		assertEquals(100, s2.size());
+		assertFalse(s2.contains(1));
+		assertTrue(s2.contains(2));
+		assertTrue(s2.contains(101));
+	}
+}
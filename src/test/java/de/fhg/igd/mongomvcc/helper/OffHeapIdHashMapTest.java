@@ -0,0 +1,137 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OffHeapIdHashMap}
+ * @author Michel Kraemer
+ */
+public class OffHeapIdHashMapTest {
+	/**
+	 * Inserts, retrieves and removes a lot of numbers (more than expected)
+	 * @param m the map to test
+	 */
+	private static void putGetRemove(IdMap m) {
+		for (int i = 0; i < 5000; ++i) {
+			assertEquals(0, m.put(i * 3L, i));
+		}
+		assertEquals(5000, m.size());
+		assertEquals(1, m.put(3, 4711));
+		assertEquals(4711, m.get(3));
+		for (int i = 2500; i < 5000; ++i) {
+			assertEquals(i, m.remove(i * 3L));
+		}
+		assertEquals(0, m.remove(1));
+		assertEquals(2500, m.size());
+		for (int i = 0; i < 5000; ++i) {
+			assertEquals(i < 2500, m.containsKey(i * 3L));
+		}
+		
+		long[] k = m.keys();
+		assertEquals(2500, k.length);
+		Arrays.sort(k);
+		for (int i = 0; i < 2500; ++i) {
+			assertEquals(i * 3L, k[i]);
+		}
+		
+		IdMapIterator it = m.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			it.advance();
+			assertEquals(m.get(it.key()), it.value());
+			++n;
+		}
+		assertEquals(2500, n);
+		
+		m.clear();
+		assertEquals(0, m.size());
+		assertFalse(m.containsKey(0));
+	}
+	
+	/**
+	 * Tests a map backed by a direct buffer
+	 */
+	@Test
+	public void direct() {
+		putGetRemove(new OffHeapIdHashMap(10));
+	}
+	
+	/**
+	 * Tests a map backed by a memory-mapped file
+	 */
+	@Test
+	public void mapped() {
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		putGetRemove(new OffHeapIdHashMap(10, 0.5f, dir));
+	}
+	
+	/**
+	 * Tests if auto-compaction works correctly
+	 */
+	@Test
+	public void compaction() {
+		IdMap m = new OffHeapIdHashMap(20);
+		for (int i = 0; i < 5000; ++i) {
+			m.put(i + 2, i + 2);
+		}
+		for (int i = 0; i < 5000; ++i) {
+			m.remove(i + 2);
+		}
+		for (int i = 0; i < 5000; ++i) {
+			m.put(i + 5002, i + 5002);
+		}
+		for (int i = 0; i < 5000; ++i) {
+			assertFalse(m.containsKey(i + 2));
+			assertTrue(m.containsKey(i + 5002));
+		}
+	}
+	
+	/**
+	 * Tests if a map can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashMap h = new IdHashMap();
+		for (int i = 1; i <= 100; ++i) {
+			h.put(i, i * 2);
+		}
+		OffHeapIdHashMap m = new OffHeapIdHashMap(h);
+		assertEquals(100, m.size());
+		
+		OffHeapIdHashMap m2 = new OffHeapIdHashMap(m);
+		m2.put(101, 202);
+		m2.remove(1);
+		assertEquals(100, m.size());
+		assertTrue(m.containsKey(1));
+		assertFalse(m.containsKey(101));
+		assertEquals(100, m2.size());
+		assertFalse(m2.containsKey(1));
+		assertEquals(202, m2.get(101));
+		assertEquals(4, m2.get(2));
+	}
+}
@@ -0,0 +1,107 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OffHeapIdHashSet}
+ * @author Michel Kraemer
+ */
+public class OffHeapIdHashSetTest {
+	/**
+	 * Adds, checks and removes a lot of numbers (more than expected)
+	 * @param s the set to test
+	 */
+	private static void addContainsRemove(IdSet s) {
+		for (int i = 0; i < 5000; ++i) {
+			assertTrue(s.add(i * 3L));
+		}
+		assertFalse(s.add(3));
+		assertEquals(5000, s.size());
+		for (int i = 2500; i < 5000; ++i) {
+			assertTrue(s.remove(i * 3L));
+		}
+		assertFalse(s.remove(1));
+		assertEquals(2500, s.size());
+		for (int i = 0; i < 5000; ++i) {
+			assertEquals(i < 2500, s.contains(i * 3L));
+		}
+		
+		long[] a = s.toArray();
+		assertEquals(2500, a.length);
+		Arrays.sort(a);
+		for (int i = 0; i < 2500; ++i) {
+			assertEquals(i * 3L, a[i]);
+		}
+		
+		IdSetIterator it = s.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			assertTrue(s.contains(it.next()));
+			++n;
+		}
+		assertEquals(2500, n);
+	}
+	
+	/**
+	 * Tests a set backed by a direct buffer
+	 */
+	@Test
+	public void direct() {
+		addContainsRemove(new OffHeapIdHashSet(10));
+	}
+	
+	/**
+	 * Tests a set backed by a memory-mapped file
+	 */
+	@Test
+	public void mapped() {
+		File dir = new File(System.getProperty("java.io.tmpdir"));
+		addContainsRemove(new OffHeapIdHashSet(10, 0.5f, dir));
+	}
+	
+	/**
+	 * Tests if a set can be copied and if the copy is independent
+	 * of the original
+	 */
+	@Test
+	public void copy() {
+		IdHashSet h = new IdHashSet();
+		for (int i = 1; i <= 100; ++i) {
+			h.add(i);
+		}
+		OffHeapIdHashSet s = new OffHeapIdHashSet(h);
+		OffHeapIdHashSet s2 = new OffHeapIdHashSet(s);
+		s2.add(101);
+		s2.remove(1);
+		assertEquals(100, s.size());
+		assertTrue(s.contains(1));
+		assertFalse(s.contains(101));
+		assertEquals(100, s2.size());
+		assertFalse(s2.contains(1));
+		assertTrue(s2.contains(101));
+	}
+}
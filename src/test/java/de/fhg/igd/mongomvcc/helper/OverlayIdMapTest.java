@@ -0,0 +1,124 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OverlayIdMap}
+ * @author Michel Kraemer
+ */
+public class OverlayIdMapTest {
+	/**
+	 * Creates an off-heap map with the keys 1 to 100
+	 * @return the map
+	 */
+	private static OffHeapIdHashMap makeBase() {
+		OffHeapIdHashMap base = new OffHeapIdHashMap(100);
+		for (int i = 1; i <= 100; ++i) {
+			base.put(i, i * 10L);
+		}
+		return base;
+	}
+	
+	/**
+	 * Tests if modifications are visible in the overlay but not in the base
+	 */
+	@Test
+	public void putRemove() {
+		OffHeapIdHashMap base = makeBase();
+		OverlayIdMap m = new OverlayIdMap(base);
+		assertEquals(100, m.size());
+		assertEquals(50L, m.put(5, 55));
+		assertEquals(0L, m.put(101, 1010));
+		assertEquals(100L, m.remove(10));
+		assertEquals(0L, m.remove(10));
+		assertEquals(0L, m.remove(1000));
+		assertEquals(1010L, m.remove(101));
+		assertEquals(0L, m.put(10, 11));
+		assertEquals(200L, m.remove(20));
+		
+		assertEquals(99, m.size());
+		assertEquals(55L, m.get(5));
+		assertEquals(11L, m.get(10));
+		assertFalse(m.containsKey(20));
+		assertFalse(m.containsKey(101));
+		assertTrue(m.containsKey(30));
+		
+		assertEquals(100, base.size());
+		assertEquals(50L, base.get(5));
+		assertEquals(200L, base.get(20));
+		assertFalse(base.containsKey(101));
+	}
+	
+	/**
+	 * Tests if the iterator returns the overlay's contents
+	 */
+	@Test
+	public void iterator() {
+		OverlayIdMap m = new OverlayIdMap(makeBase());
+		m.put(5, 55);
+		m.put(101, 1010);
+		m.remove(20);
+		
+		long[] keys = m.keys();
+		assertEquals(100, keys.length);
+		Arrays.sort(keys);
+		assertEquals(1L, keys[0]);
+		assertEquals(101L, keys[99]);
+		
+		IdMapIterator it = m.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			it.advance();
+			assertTrue(it.key() != 20);
+			assertEquals(m.get(it.key()), it.value());
+			++n;
+		}
+		assertEquals(100, n);
+	}
+	
+	/**
+	 * Tests if a copy is independent of the original
+	 */
+	@Test
+	public void copy() {
+		OverlayIdMap m = new OverlayIdMap(makeBase());
+		m.put(101, 1010);
+		OverlayIdMap m2 = new OverlayIdMap(m);
+		m2.remove(101);
+		m2.remove(1);
+		assertEquals(101, m.size());
+		assertTrue(m.containsKey(101));
+		assertTrue(m.containsKey(1));
+		assertEquals(99, m2.size());
+		assertFalse(m2.containsKey(101));
+		assertFalse(m2.containsKey(1));
+		
+		m2.clear();
+		assertEquals(0, m2.size());
+		assertFalse(m2.iterator().hasNext());
+		assertEquals(101, m.size());
+	}
+}
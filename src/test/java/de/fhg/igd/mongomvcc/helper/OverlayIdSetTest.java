@@ -0,0 +1,78 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link OverlayIdSet}
+ * @author Michel Kraemer
+ */
+public class OverlayIdSetTest {
+	/**
+	 * Tests if modifications are visible in the overlay but not in the base
+	 */
+	@Test
+	public void addRemove() {
+		OffHeapIdHashSet base = new OffHeapIdHashSet(100);
+		for (int i = 1; i <= 100; ++i) {
+			base.add(i);
+		}
+		OverlayIdSet s = new OverlayIdSet(base);
+		assertFalse(s.add(5));
+		assertTrue(s.add(101));
+		assertTrue(s.remove(10));
+		assertFalse(s.remove(10));
+		assertTrue(s.add(10));
+		assertTrue(s.remove(20));
+		assertTrue(s.remove(101));
+		assertFalse(s.remove(1000));
+		
+		assertEquals(99, s.size());
+		assertTrue(s.contains(10));
+		assertFalse(s.contains(20));
+		assertFalse(s.contains(101));
+		assertEquals(100, base.size());
+		assertTrue(base.contains(20));
+		
+		long[] a = s.toArray();
+		assertEquals(99, a.length);
+		Arrays.sort(a);
+		assertEquals(1L, a[0]);
+		assertEquals(100L, a[98]);
+		
+		IdSetIterator it = s.iterator();
+		int n = 0;
+		while (it.hasNext()) {
+			assertTrue(s.contains(it.next()));
+			++n;
+		}
+		assertEquals(99, n);
+		
+		OverlayIdSet s2 = new OverlayIdSet(s);
+		s2.add(20);
+		assertTrue(s2.contains(20));
+		assertFalse(s.contains(20));
+	}
+}
@@ -18,19 +18,30 @@
 package de.fhg.igd.mongomvcc.impl;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Map;
 
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+
 import de.fhg.igd.mongomvcc.VBranch;
 import de.fhg.igd.mongomvcc.VCollection;
 import de.fhg.igd.mongomvcc.VConstants;
 import de.fhg.igd.mongomvcc.VException;
+import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
 
 /**
  * Tests {@link MongoDBVBranch}
@@ -80,6 +91,257 @@ public class MongoDBVBranchTest extends AbstractMongoDBVDatabaseTest {
 		assertEquals(6, max2.get("age"));
 	}
 	
+	/**
+	 * Tests if a branch can be fast-forwarded to a new head
+	 * committed by another branch object
+	 */
+	@Test
+	public void refresh() {
+		putPerson("Max", 6);
+		_master.commit();
+		
+		MongoDBVBranch reader = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+		VCollection readerPersons = reader.getCollection("persons");
+		assertEquals(1, readerPersons.find().size());
+		assertFalse(reader.refresh());
+		
+		Map<String, Object> elvis = putPerson("Elvis", 3);
+		long cid = _master.commit();
+		assertEquals(1, readerPersons.find().size());
+		
+		//collections loaded before and after the refresh must be up to date
+		assertTrue(reader.refresh());
+		assertEquals(cid, reader.getHead());
+		assertEquals(2, readerPersons.find().size());
+		assertNotNull(readerPersons.findOne(_factory.createDocument("name", "Elvis")));
+		
+		_master.getCollection("animals").insert(_factory.createDocument("name", "Dog"));
+		_master.commit();
+		assertTrue(reader.refresh());
+		assertEquals(1, reader.getCollection("animals").find().size());
+		
+		//dirty objects changed by another commit cause a conflict
+		elvis.put("age", 4);
+		readerPersons.insert(elvis);
+		elvis.put("age", 5);
+		_master.getCollection("persons").insert(elvis);
+		_master.commit();
+		try {
+			reader.refresh();
+			fail("Refresh should have failed");
+		} catch (VException e) {
+			//this is what we expect here
+		}
+	}
+	
+	/**
+	 * Tests if commits are rebased automatically if they do not
+	 * conflict with commits made in the meantime
+	 */
+	@Test
+	public void autoRebase() {
+		Map<String, Object> max = putPerson("Max", 6);
+		_master.commit();
+		
+		MongoDBVBranch other = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+		other.setAutoRebase(true);
+		VCollection otherPersons = other.getCollection("persons");
+		otherPersons.insert(_factory.createDocument("name", "Peter"));
+		
+		putPerson("Elvis", 3);
+		long cid = _master.commit();
+		
+		long rebased = other.commit();
+		assertEquals(cid, _db.getHistory().getParent(rebased));
+		assertEquals(3, otherPersons.find().size());
+		VBranch master = _db.checkout(VConstants.MASTER);
+		assertEquals(rebased, master.getHead());
+		assertEquals(3, master.getCollection("persons").find().size());
+		
+		//conflicting commits must still fail
+		max.put("age", 7);
+		otherPersons.insert(max);
+		assertTrue(((MongoDBVBranch)_master).refresh());
+		max.put("age", 8);
+		_master.getCollection("persons").insert(max);
+		_master.commit();
+		try {
+			other.commit();
+			fail("Commit should have failed");
+		} catch (VException e) {
+			//this is what we expect here
+		}
+	}
+	
+	/**
+	 * Tests if inserted documents are buffered and written later
+	 */
+	@Test
+	public void writeBehind() {
+		MongoDBVBranch master = (MongoDBVBranch)_master;
+		master.setWriteBehind(100);
+		DBCollection raw = ((MongoDBVDatabase)_db).getDB().getCollection("persons");
+		VCollection persons = _master.getCollection("persons");
+		
+		Map<String, Object> p = _factory.createDocument("name", "Max");
+		for (int i = 0; i < 10; ++i) {
+			p.remove("uid");
+			p.put("age", i);
+			persons.insert(p);
+		}
+		assertEquals(0, raw.count());
+		
+		//queries must see buffered documents
+		assertEquals(10, persons.find().size());
+		assertEquals(10, raw.count());
+		
+		//buffered documents must not be written on rollback
+		for (int i = 0; i < 5; ++i) {
+			persons.insert(_factory.createDocument("name", "Elvis"));
+		}
+		_master.rollback();
+		assertEquals(0, persons.find().size());
+		assertEquals(10, raw.count());
+		
+		//full buffers are written immediately
+		for (int i = 0; i < 250; ++i) {
+			persons.insert(_factory.createDocument("name", "Peter"));
+		}
+		assertEquals(210, raw.count());
+		
+		//replaced documents are never written
+		Map<String, Object> elvis = _factory.createDocument("name", "Elvis");
+		persons.insert(elvis);
+		elvis.put("age", 3);
+		persons.insert(elvis);
+		_master.commit();
+		assertEquals(261, raw.count());
+		
+		VBranch master2 = _db.checkout(VConstants.MASTER);
+		assertEquals(251, master2.getCollection("persons").find().size());
+		assertEquals(3, master2.getCollection("persons").findOne(
+				_factory.createDocument("name", "Elvis")).get("age"));
+	}
+	
+	/**
+	 * Tests if buffered documents can be looked up, if large buffered
+	 * documents are written early and if buffered documents are written
+	 * before batch inserts
+	 */
+	@Test
+	public void writeBehindLimits() {
+		MongoDBVBranch master = (MongoDBVBranch)_master;
+		master.setWriteBehind(1000);
+		DBCollection raw = ((MongoDBVDatabase)_db).getDB().getCollection("persons");
+		VCollection persons = _master.getCollection("persons");
+		
+		//buffered documents can be looked up without writing them
+		Map<String, Object> max = _factory.createDocument("name", "Max");
+		persons.insert(max);
+		long uid = (Long)max.get("uid");
+		assertEquals("Max", persons.get(uid).get("name"));
+		assertEquals("Max", persons.getAll(new long[] { uid }).get(0).get("name"));
+		assertEquals(1, persons.count(new BasicDBObject()));
+		assertEquals(0, raw.count());
+		
+		//buffered documents are written before batch inserts
+		persons.insertAll(Collections.singletonList(_factory.createDocument("name", "Elvis")));
+		assertEquals(2, raw.count());
+		
+		//the buffer is written as soon as it is too large
+		char[] data = new char[1024 * 1024];
+		Arrays.fill(data, 'x');
+		int n = 0;
+		while (raw.count() == 2) {
+			persons.insert(_factory.createDocument("data", new String(data)));
+			++n;
+		}
+		assertTrue(n * data.length >= MongoDBVBranch.MAX_WRITE_BEHIND_BYTES);
+		assertTrue(n < 1000);
+		_master.commit();
+	}
+	
+	/**
+	 * Tests if objects are not marked if the commit could not be saved
+	 */
+	@Test
+	public void failedCommitWritesNoMarkers() {
+		putPerson("Max", 6);
+		_master.commit();
+		
+		//make the next commit fail with a duplicate key
+		DB db = ((MongoDBVDatabase)_db).getDB();
+		DBCollection commits = db.getCollection(MongoDBConstants.COLLECTION_COMMITS);
+		commits.ensureIndex(new BasicDBObject("parent", 1).append("rootcid", 1),
+				new BasicDBObject("unique", true));
+		MongoDBVBranch master = (MongoDBVBranch)_master;
+		commits.insert(new BasicDBObject(MongoDBConstants.ID, -1L)
+			.append("parent", master.getHead())
+			.append("rootcid", master.getRootCid()), WriteConcern.ACKNOWLEDGED);
+		
+		VCollection persons = _master.getCollection("persons");
+		persons.delete(_factory.createDocument("name", "Max"));
+		putPerson("Elvis", 3);
+		try {
+			_master.commit();
+			fail("Commit should have failed");
+		} catch (MongoException e) {
+			//this is what we expect here
+		}
+		
+		DBCollection raw = db.getCollection("persons");
+		String lifetime = MongoDBConstants.LIFETIME + "." + master.getRootCid();
+		assertEquals(0, raw.count(new BasicDBObject(lifetime,
+				new BasicDBObject("$exists", true))));
+		DBObject elvis = raw.findOne(new BasicDBObject("name", "Elvis"));
+		assertNull(elvis.get(MongoDBConstants.LIFETIME));
+	}
+	
+	/**
+	 * Tests if commits work with different durability profiles
+	 */
+	@Test
+	public void durabilityProfiles() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		DurabilityProfile[] profiles = new DurabilityProfile[] {
+				DurabilityProfile.FSYNC, DurabilityProfile.ACKNOWLEDGED,
+				DurabilityProfile.UNACKNOWLEDGED };
+		int n = 0;
+		for (DurabilityProfile p : profiles) {
+			db.setDurabilityProfile(p);
+			for (int i = 0; i < 10; ++i) {
+				putPerson("Max" + n, n);
+				++n;
+			}
+			_master.commit();
+			VBranch master = _db.checkout(VConstants.MASTER);
+			assertEquals(n, master.getCollection("persons").find().size());
+		}
+		
+		//branch profile overrides database profile
+		MongoDBVBranch master = (MongoDBVBranch)_master;
+		master.setDurabilityProfile(DurabilityProfile.ACKNOWLEDGED);
+		assertEquals(DurabilityProfile.ACKNOWLEDGED, master.getDurabilityProfile());
+		master.setDurabilityProfile(null);
+		assertEquals(DurabilityProfile.UNACKNOWLEDGED, master.getDurabilityProfile());
+	}
+	
+	/**
+	 * Tests if a commit fails if unacknowledged inserts have not
+	 * arrived in the database
+	 */
+	@Test(expected = VException.class)
+	public void verifyUnacknowledgedInserts() {
+		((MongoDBVDatabase)_db).setDurabilityProfile(DurabilityProfile.UNACKNOWLEDGED);
+		putPerson("Max", 6);
+		putPerson("Elvis", 3);
+		
+		//simulate a lost insert
+		((MongoDBVDatabase)_db).getDB().getCollection("persons").remove(
+				new BasicDBObject("name", "Max"));
+		_master.commit();
+	}
+	
 	/**
 	 * Tries to create a branch with a name already used
 	 */
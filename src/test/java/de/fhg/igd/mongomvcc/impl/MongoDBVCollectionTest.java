@@ -25,7 +25,9 @@ import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeNotNull;
 import static org.junit.Assume.assumeTrue;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
@@ -37,12 +39,16 @@ import java.util.concurrent.TimeUnit;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 
 import de.fhg.igd.mongomvcc.VBranch;
 import de.fhg.igd.mongomvcc.VCollection;
+import de.fhg.igd.mongomvcc.VConstants;
 import de.fhg.igd.mongomvcc.VCursor;
 import de.fhg.igd.mongomvcc.VException;
+import de.fhg.igd.mongomvcc.impl.internal.MongoDBConstants;
 
 /**
  * Tests the {@link MongoDBVCollection}
@@ -233,7 +239,7 @@ public class MongoDBVCollectionTest extends AbstractMongoDBVDatabaseTest {
 		try {
 			_master.commit();
 		} catch (VException e) {
-			//this is what we expect
+			//this is what we expect here
 			return;
 		}
 		
@@ -436,6 +442,147 @@ public class MongoDBVCollectionTest extends AbstractMongoDBVDatabaseTest {
 		assertEquals(0, persons.find().size());
 	}
 	
+	/**
+	 * Tests if multiple objects can be inserted at once
+	 */
+	@Test
+	public void insertAll() {
+		Map<String, Object> max = putPerson("Max", 6);
+		_master.commit();
+		
+		List<Map<String, Object>> objs = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 2500; ++i) {
+			objs.add(_factory.createDocument("name", "Person" + i));
+		}
+		//replace an existing object
+		max.put("age", 7);
+		objs.add(max);
+		
+		VCollection persons = _master.getCollection("persons");
+		persons.insertAll(objs);
+		assertEquals(2501, persons.find().size());
+		for (Map<String, Object> o : objs) {
+			assertNotNull(o.get("uid"));
+			assertNull(o.get(MongoDBConstants.TIMESTAMP));
+		}
+		assertEquals(max.get("uid"), objs.get(2500).get("uid"));
+		assertEquals(7, persons.findOne(_factory.createDocument("name", "Max")).get("age"));
+		
+		_master.commit();
+		VBranch master = _db.checkout(VConstants.MASTER);
+		assertEquals(2501, master.getCollection("persons").find().size());
+	}
+	
+	/**
+	 * Tests if objects can be retrieved by their UIDs
+	 */
+	@Test
+	public void getByUid() {
+		Map<String, Object> max = putPerson("Max", 6);
+		Map<String, Object> elvis = putPerson("Elvis", 3);
+		Map<String, Object> pax = putPerson("Pax", 8);
+		_master.commit();
+		
+		VCollection persons = _master.getCollection("persons");
+		long maxUid = (Long)max.get("uid");
+		long elvisUid = (Long)elvis.get("uid");
+		long paxUid = (Long)pax.get("uid");
+		assertEquals("Max", persons.get(maxUid).get("name"));
+		assertNull(persons.get(12345));
+		
+		persons.delete(paxUid);
+		assertNull(persons.get(paxUid));
+		
+		//replace an object
+		elvis.put("age", 4);
+		persons.insert(elvis);
+		assertEquals(4, persons.get(elvisUid).get("age"));
+		
+		List<Map<String, Object>> r = persons.getAll(new long[] {
+				elvisUid, 12345, paxUid, maxUid, elvisUid });
+		assertEquals(5, r.size());
+		assertEquals("Elvis", r.get(0).get("name"));
+		assertEquals(4, r.get(0).get("age"));
+		assertNull(r.get(1));
+		assertNull(r.get(2));
+		assertEquals("Max", r.get(3).get("name"));
+		assertEquals("Elvis", r.get(4).get("name"));
+		
+		//older commits still contain the old objects
+		long cid = _master.commit();
+		VBranch oldMaster = _db.checkout(_db.getHistory().getParent(cid));
+		persons = oldMaster.getCollection("persons");
+		assertEquals(3, persons.get(elvisUid).get("age"));
+		assertEquals("Pax", persons.get(paxUid).get("name"));
+	}
+	
+	/**
+	 * Tests if many objects can be retrieved by their UIDs
+	 */
+	@Test
+	public void getAllMany() {
+		List<Map<String, Object>> objs = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 2500; ++i) {
+			objs.add(_factory.createDocument("num", i));
+		}
+		VCollection persons = _master.getCollection("persons");
+		persons.insertAll(objs);
+		_master.commit();
+		
+		long[] uids = new long[objs.size()];
+		for (int i = 0; i < uids.length; ++i) {
+			uids[uids.length - i - 1] = (Long)objs.get(i).get("uid");
+		}
+		List<Map<String, Object>> r = persons.getAll(uids);
+		assertEquals(2500, r.size());
+		for (int i = 0; i < uids.length; ++i) {
+			assertEquals(uids.length - i - 1, r.get(i).get("num"));
+		}
+	}
+	
+	/**
+	 * Tests if objects can be counted without loading them
+	 */
+	@Test
+	public void count() {
+		putPerson("Max", 6);
+		putPerson("Elvis", 3);
+		putPerson("Pax", 6);
+		_master.commit();
+		
+		VCollection persons = _master.getCollection("persons");
+		assertEquals(3, persons.count(new BasicDBObject()));
+		assertEquals(2, persons.count(_factory.createDocument("age", 6)));
+		assertEquals(0, persons.count(_factory.createDocument("age", 100)));
+		assertEquals(3, persons.find().size());
+		assertEquals(2, persons.find(_factory.createDocument("age", 6)).size());
+		assertEquals(2, persons.find(_factory.createDocument("age", 6), "name").size());
+		
+		//uncommitted changes must be counted as well
+		persons.delete(_factory.createDocument("name", "Max"));
+		putPerson("Bax", 6);
+		assertEquals(3, persons.count(new BasicDBObject()));
+		assertEquals(2, persons.count(_factory.createDocument("age", 6)));
+		assertEquals(3, persons.find().size());
+		VCursor c = persons.find(_factory.createDocument("age", 6));
+		assertEquals(2, c.size());
+		int n = 0;
+		for (Map<String, Object> o : c) {
+			assertEquals(6, o.get("age"));
+			++n;
+		}
+		assertEquals(2, n);
+		
+		//other branches must not be counted
+		long cid = _master.commit();
+		VBranch oldMaster = _db.checkout(_db.getHistory().getParent(cid));
+		VCollection oldPersons = oldMaster.getCollection("persons");
+		assertEquals(3, oldPersons.count(new BasicDBObject()));
+		assertEquals(2, oldPersons.count(_factory.createDocument("age", 6)));
+		assertEquals(1, oldPersons.count(_factory.createDocument("name", "Max")));
+		assertEquals(0, persons.count(_factory.createDocument("name", "Max")));
+	}
+	
 	/**
 	 * Tests if lifetime optimization takes effect. Objects that have
 	 * been deleted should not be loaded but filtered out on the
@@ -476,6 +623,208 @@ public class MongoDBVCollectionTest extends AbstractMongoDBVDatabaseTest {
 		assertEquals(2, dbcursor.size());
 	}
 	
+	/**
+	 * Tests if the query planner chooses the expected plans
+	 */
+	@Test
+	public void queryPlans() {
+		VCollection c = _master.getCollection("persons");
+		MongoDBVCollection persons = (MongoDBVCollection)c;
+		assertEquals(0, persons.find().size());
+		assertEquals(QueryPlan.SINGLE, persons.getLastQueryPlan());
+		
+		//most objects are visible
+		List<Map<String, Object>> objs = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 5000; ++i) {
+			objs.add(_factory.createDocument("group", i % 10));
+		}
+		persons.insertAll(objs);
+		_master.commit();
+		assertEquals(5000, persons.find().size());
+		assertEquals(QueryPlan.LIFETIME, persons.getLastQueryPlan());
+		
+		//only a few objects are visible
+		persons.delete(_factory.createDocument("group", 1));
+		for (int i = 2; i < 10; ++i) {
+			persons.delete(_factory.createDocument("group", i));
+		}
+		_master.commit();
+		VCursor cursor = persons.find();
+		assertEquals(QueryPlan.OID_IN, persons.getLastQueryPlan());
+		assertEquals(500, cursor.size());
+		for (Map<String, Object> o : cursor) {
+			assertEquals(0, o.get("group"));
+		}
+		assertEquals(500, persons.find(_factory.createDocument("group", 0)).size());
+		assertEquals(QueryPlan.OID_IN, persons.getLastQueryPlan());
+		
+		//all visible objects have been inserted recently
+		persons.delete(_factory.createDocument("group", 0));
+		objs.clear();
+		for (int i = 0; i < 2000; ++i) {
+			objs.add(_factory.createDocument("group", 10));
+		}
+		persons.insertAll(objs);
+		_master.commit();
+		assertEquals(2000, persons.find().size());
+		assertEquals(QueryPlan.HYBRID, persons.getLastQueryPlan());
+	}
+	
+	/**
+	 * Tests if counting uses the query planner and if objects deleted
+	 * since the last commit are not taken into account
+	 */
+	@Test
+	public void queryPlansUncommittedDeletes() {
+		VCollection c = _master.getCollection("persons");
+		MongoDBVCollection persons = (MongoDBVCollection)c;
+		List<Map<String, Object>> objs = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 5000; ++i) {
+			objs.add(_factory.createDocument("group", i % 10));
+		}
+		persons.insertAll(objs);
+		_master.commit();
+		assertEquals(500, persons.count(_factory.createDocument("group", 0)));
+		assertEquals(QueryPlan.LIFETIME, persons.getLastQueryPlan());
+		
+		//only a few objects are visible but the deletions are not committed
+		for (int i = 1; i < 10; ++i) {
+			persons.delete(_factory.createDocument("group", i));
+		}
+		assertEquals(500, persons.find().size());
+		assertEquals(QueryPlan.OID_IN, persons.getLastQueryPlan());
+		assertEquals(500, persons.count(_factory.createDocument("group", 0)));
+		assertEquals(QueryPlan.OID_IN, persons.getLastQueryPlan());
+		assertEquals(0, persons.count(_factory.createDocument("group", 1)));
+	}
+	
+	/**
+	 * Tests if lifetime information can be stored in a separate collection
+	 */
+	@Test
+	public void lifetimeSideCollection() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.setLifetimeLayout(LifetimeLayout.SIDE_COLLECTION);
+		
+		putPerson("Max", 6);
+		putPerson("Pax", 8);
+		long firstCID = _master.commit();
+		putPerson("Elvis", 3);
+		VCollection persons = _master.getCollection("persons");
+		persons.delete(_factory.createDocument("name", "Max"));
+		_master.commit();
+		
+		//documents must not have been updated
+		DBCollection dbc = db.getDB().getCollection("persons");
+		assertEquals(3, dbc.count());
+		assertEquals(0, dbc.count(new BasicDBObject(MongoDBConstants.LIFETIME,
+				new BasicDBObject("$exists", true))));
+		long root = ((MongoDBVBranch)_master).getRootCid();
+		DBCollection lc = db.getDB().getCollection(MongoDBConstants.LIFETIME + ".persons");
+		assertEquals(3, lc.count(new BasicDBObject("r", root)));
+		assertEquals(1, lc.count(new BasicDBObject("r", root).append("d",
+				new BasicDBObject("$exists", true))));
+		
+		//deleted document must be excluded on the database level
+		persons = _master.getCollection("persons");
+		VCursor cursor = persons.find();
+		DBCursor dbcursor = extractDBCursor(cursor);
+		assertEquals(2, cursor.size());
+		assertEquals(2, dbcursor.size());
+		assertNull(persons.findOne(_factory.createDocument("name", "Max")));
+		assertEquals(1, persons.find(_factory.createDocument("name", "Pax"), "age").size());
+		
+		//old commits must still see their documents
+		VBranch oldMaster = _db.checkout(firstCID);
+		persons = oldMaster.getCollection("persons");
+		assertEquals(2, persons.find().size());
+		assertNotNull(persons.findOne(_factory.createDocument("name", "Max")));
+		assertNull(persons.findOne(_factory.createDocument("name", "Elvis")));
+	}
+	
+	/**
+	 * Tests if the lifetime layout is saved in the database and cannot
+	 * be changed after objects have been committed
+	 */
+	@Test
+	public void lifetimeLayoutSaved() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.setLifetimeLayout(LifetimeLayout.SIDE_COLLECTION);
+		putPerson("Max", 6);
+		_master.commit();
+		
+		MongoDBVDatabase db2 = (MongoDBVDatabase)_factory.createDatabase();
+		db2.connect("mvcctest");
+		assertEquals(LifetimeLayout.SIDE_COLLECTION, db2.getLifetimeLayout());
+		try {
+			db2.setLifetimeLayout(LifetimeLayout.EMBEDDED);
+			fail("Changing the layout must fail");
+		} catch (VException e) {
+			//this is what we expect here
+		}
+		assertEquals(LifetimeLayout.SIDE_COLLECTION, db2.getLifetimeLayout());
+		
+		MongoDBVDatabase db3 = (MongoDBVDatabase)_factory.createDatabase();
+		db3.setLifetimeLayout(LifetimeLayout.EMBEDDED);
+		try {
+			db3.connect("mvcctest");
+			fail("Connecting with another layout must fail");
+		} catch (VException e) {
+			//this is what we expect here
+		}
+	}
+	
+	/**
+	 * Tests if lifetime attributes are written for all objects of a
+	 * commit even if there are more objects than fit in one update
+	 */
+	@Test
+	public void lifetimeMarkersInBulk() {
+		long initialCID = _master.getHead();
+		VCollection persons = _master.getCollection("persons");
+		for (int i = 0; i < 2500; ++i) {
+			persons.insert(_factory.createDocument("group", i % 2));
+		}
+		long firstCID = _master.commit();
+		persons.delete(_factory.createDocument("group", 1));
+		_master.commit();
+		
+		long root = ((MongoDBVBranch)_master).getRootCid();
+		DBCollection dbc = ((MongoDBVDatabase)_db).getDB().getCollection("persons");
+		assertEquals(2500, dbc.count(new BasicDBObject(MongoDBConstants.LIFETIME +
+				".i" + root, initialCID)));
+		assertEquals(1250, dbc.count(new BasicDBObject(MongoDBConstants.LIFETIME +
+				"." + root, firstCID)));
+		assertEquals(1250, persons.find().size());
+	}
+	
+	/**
+	 * Tests if lifetime attributes are written correctly if a commit
+	 * spans multiple collections, with and without parallel threads
+	 */
+	@Test
+	public void lifetimeMarkersInParallel() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		long root = ((MongoDBVBranch)_master).getRootCid();
+		for (int threads = 0; threads <= 4; threads += 4) {
+			db.setCommitThreads(threads);
+			long initialCID = _master.getHead();
+			for (int i = 0; i < 10; ++i) {
+				VCollection coll = _master.getCollection("coll" + threads + "_" + i);
+				for (int j = 0; j < 10; ++j) {
+					coll.insert(_factory.createDocument("value", j));
+				}
+			}
+			_master.commit();
+			for (int i = 0; i < 10; ++i) {
+				DBCollection dbc = db.getDB().getCollection("coll" + threads + "_" + i);
+				assertEquals(10, dbc.count(new BasicDBObject(MongoDBConstants.LIFETIME +
+						".i" + root, initialCID)));
+				assertEquals(10, _master.getCollection("coll" + threads + "_" + i).find().size());
+			}
+		}
+	}
+	
 	/**
 	 * Tests if lifetime optimization takes effect. Objects that have
 	 * been inserted in a later commit should not be loaded but filtered
@@ -0,0 +1,118 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+
+package de.fhg.igd.mongomvcc.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.fhg.igd.mongomvcc.VCounter;
+import de.fhg.igd.mongomvcc.helper.IdHashSet;
+import de.fhg.igd.mongomvcc.helper.IdSet;
+
+/**
+ * Tests {@link MongoDBVCounter}
+ * @author Michel Kraemer
+ */
+public class MongoDBVCounterTest extends AbstractMongoDBVDatabaseTest {
+	/**
+	 * Tests if reserved blocks of IDs do not overlap with each other
+	 * and with single IDs
+	 */
+	@Test
+	public void reserveIds() {
+		VCounter counter = _db.getCounter();
+		VCounter counter2 = new MongoDBVCounter(((MongoDBVDatabase)_db).getDB());
+		IdSet ids = new IdHashSet();
+		int[] sizes = new int[] { 1, 10, 1000, 65535, 65536, 200000, 3 };
+		for (int size : sizes) {
+			for (VCounter c : new VCounter[] { counter, counter2 }) {
+				long first = c.reserveIds(size);
+				for (long id = first; id < first + size; ++id) {
+					assertTrue(id != 0);
+					assertTrue(ids.add(id));
+				}
+				for (int i = 0; i < 100; ++i) {
+					assertTrue(ids.add(c.getNextId()));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Tests if concurrent threads get unique IDs
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void concurrent() throws Exception {
+		final VCounter counter = _db.getCounter();
+		final int threads = 8;
+		final long[][] ids = new long[threads][];
+		Thread[] ts = new Thread[threads];
+		for (int i = 0; i < threads; ++i) {
+			final int n = i;
+			ts[i] = new Thread() {
+				@Override
+				public void run() {
+					long[] r = new long[100000 + 100 * 10];
+					int k = 0;
+					for (int j = 0; j < 100000; ++j) {
+						r[k++] = counter.getNextId();
+						if (j % 1000 == 0) {
+							long first = counter.reserveIds(10);
+							for (int l = 0; l < 10; ++l) {
+								r[k++] = first + l;
+							}
+						}
+					}
+					ids[n] = r;
+				}
+			};
+			ts[i].start();
+		}
+		IdSet all = new IdHashSet();
+		for (int i = 0; i < threads; ++i) {
+			ts[i].join();
+			for (long id : ids[i]) {
+				assertTrue(id != 0);
+				assertTrue(all.add(id));
+			}
+		}
+	}
+	
+	/**
+	 * Tests if the pool size grows if IDs are used quickly
+	 */
+	@Test
+	public void adaptivePoolSize() {
+		MongoDBVCounter counter = new MongoDBVCounter(((MongoDBVDatabase)_db).getDB());
+		assertEquals(MongoDBVCounter.DEFAULT_MIN_POOL_SIZE, counter.getPoolSize());
+		long last = 0;
+		for (int i = 0; i < 100000; ++i) {
+			long id = counter.getNextId();
+			assertTrue(id > last);
+			last = id;
+		}
+		assertTrue(counter.getPoolSize() > MongoDBVCounter.DEFAULT_MIN_POOL_SIZE);
+		
+		counter.setPoolSizeBounds(16, 32);
+		assertEquals(32, counter.getPoolSize());
+	}
+}
@@ -19,6 +19,8 @@ package de.fhg.igd.mongomvcc.impl;
 
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.After;
@@ -126,6 +128,23 @@ public class MongoDBVDatabaseBenchmark extends AbstractBenchmark {
 		mvccInsert(0);
 	}
 	
+	/**
+	 * Inserts a lot of documents in batches using MongoMVCC
+	 */
+	@Test
+	@BenchmarkOptions(benchmarkRounds = 2, warmupRounds = 1)
+	public void mvccInsertAll() {
+		List<Map<String, Object>> objs = new ArrayList<Map<String, Object>>(DOCUMENTS);
+		for (long i = 0; i < DOCUMENTS; ++i) {
+			Map<String, Object> obj = _factory.createDocument();
+			obj.put("name", String.valueOf(i));
+			obj.put("age", i);
+			obj.put("uid", 1 + i);
+			objs.add(obj);
+		}
+		_master.getCollection("persons").insertAll(objs);
+	}
+	
 	/**
 	 * Inserts a lot of documents using plain old MongoDB and then deletes them
 	 */
@@ -0,0 +1,115 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.fhg.igd.mongomvcc.helper.IdHashMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+
+/**
+ * Tests {@link CommitCache}
+ * @author Michel Kraemer
+ */
+public class CommitCacheTest {
+	/**
+	 * Creates a commit referencing the given number of objects
+	 * @param cid the commit's CID
+	 * @param parentCID the parent's CID
+	 * @param objects the number of objects
+	 * @return the commit
+	 */
+	private static Commit makeCommit(long cid, long parentCID, int objects) {
+		IdMap m = new IdHashMap();
+		for (int i = 0; i < objects; ++i) {
+			m.put(i + 1, i + 1);
+		}
+		Map<String, IdMap> objs = Collections.singletonMap("persons", m);
+		return new Commit(cid, parentCID, 0, objs);
+	}
+
+	/**
+	 * Tests if commits can be put into the cache and retrieved again
+	 */
+	@Test
+	public void putGet() {
+		CommitCache cache = new CommitCache();
+		Commit c = makeCommit(1, 0, 5);
+		cache.put(c);
+		assertSame(c, cache.get(1));
+		assertNull(cache.get(2));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertEquals(6, cache.getWeight());
+	}
+
+	/**
+	 * Tests if the least recently used commits are evicted
+	 */
+	@Test
+	public void evict() {
+		CommitCache cache = new CommitCache(20, 100);
+		cache.put(makeCommit(1, 0, 10));
+		cache.put(makeCommit(2, 1, 4));
+
+		//touch first commit, so the second one becomes the eldest
+		assertNotNull(cache.get(1));
+
+		cache.put(makeCommit(3, 2, 4));
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get(1));
+		assertNull(cache.get(2));
+		assertNotNull(cache.get(3));
+		assertEquals(16, cache.getWeight());
+
+		//commits larger than the whole cache should not be cached
+		cache.put(makeCommit(4, 3, 100));
+		assertNull(cache.get(4));
+		assertEquals(2, cache.size());
+	}
+
+	/**
+	 * Tests if parent pointers are cached
+	 */
+	@Test
+	public void parents() {
+		CommitCache cache = new CommitCache(1, 2);
+		assertEquals(-1, cache.getParent(5));
+		cache.putParent(5, 4);
+		cache.putParent(4, 0);
+		assertEquals(4, cache.getParent(5));
+		assertEquals(0, cache.getParent(4));
+
+		//commits themselves are too large for this cache, but their
+		//parent pointers should be saved anyhow
+		cache.put(makeCommit(6, 5, 10));
+		assertNull(cache.get(6));
+		assertEquals(5, cache.getParent(6));
+
+		cache.invalidate(new long[] { 6 });
+		assertEquals(-1, cache.getParent(6));
+	}
+}
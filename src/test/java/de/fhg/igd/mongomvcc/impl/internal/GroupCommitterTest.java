@@ -0,0 +1,124 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link GroupCommitter}
+ * @author Michel Kraemer
+ */
+public class GroupCommitterTest {
+	/**
+	 * A group committer that does not access a database
+	 */
+	private static class SlowGroupCommitter extends GroupCommitter {
+		private final AtomicInteger _calls = new AtomicInteger();
+		
+		public SlowGroupCommitter() {
+			super(null);
+		}
+		
+		@Override
+		protected void flush() {
+			_calls.incrementAndGet();
+			try {
+				Thread.sleep(20);
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Tests if a single thread flushes on every call
+	 */
+	@Test
+	public void singleThread() {
+		SlowGroupCommitter gc = new SlowGroupCommitter();
+		gc.sync();
+		gc.sync();
+		assertEquals(2, gc._calls.get());
+		assertEquals(2, gc.getFlushes());
+	}
+	
+	/**
+	 * Tests if concurrent threads share flushes
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void coalesce() throws Exception {
+		final SlowGroupCommitter gc = new SlowGroupCommitter();
+		gc.setWindow(10);
+		final int n = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(n);
+		for (int i = 0; i < n; ++i) {
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						gc.sync();
+					} catch (InterruptedException e) {
+						//ignore
+					}
+					done.countDown();
+				}
+			};
+			t.start();
+		}
+		start.countDown();
+		done.await();
+		assertTrue(gc._calls.get() >= 1);
+		assertTrue(gc._calls.get() < n);
+	}
+	
+	/**
+	 * Tests if a failing flush is retried by waiting threads
+	 */
+	@Test
+	public void failure() {
+		GroupCommitter gc = new GroupCommitter(null) {
+			private boolean _failed;
+			
+			@Override
+			protected void flush() {
+				if (!_failed) {
+					_failed = true;
+					throw new IllegalStateException();
+				}
+			}
+		};
+		try {
+			gc.sync();
+		} catch (IllegalStateException e) {
+			//expected
+		}
+		assertEquals(0, gc.getFlushes());
+		gc.sync();
+		assertEquals(1, gc.getFlushes());
+	}
+}
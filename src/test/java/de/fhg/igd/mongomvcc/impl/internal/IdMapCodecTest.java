@@ -0,0 +1,177 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.fhg.igd.mongomvcc.VException;
+import de.fhg.igd.mongomvcc.helper.IdHashMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+
+/**
+ * Tests {@link IdMapCodec}
+ * @author Michel Kraemer
+ */
+public class IdMapCodecTest {
+	/**
+	 * Encodes a map, decodes it again and compares the result
+	 * @param m the map
+	 * @return the encoded map
+	 */
+	private static byte[] roundTrip(IdMap m) {
+		byte[] data = IdMapCodec.encode(m);
+		IdMap r = IdMapCodec.decode(data);
+		assertEquals(m.size(), r.size());
+		for (long k : m.keys()) {
+			assertTrue(r.containsKey(k));
+			assertEquals(m.get(k), r.get(k));
+		}
+		return data;
+	}
+	
+	/**
+	 * Tests if an empty map can be encoded
+	 */
+	@Test
+	public void empty() {
+		byte[] data = roundTrip(new IdHashMap());
+		assertEquals(2, data.length);
+	}
+	
+	/**
+	 * Tests if IDs allocated close to each other are encoded compactly
+	 */
+	@Test
+	public void compact() {
+		IdMap m = new IdHashMap();
+		for (int i = 0; i < 1000; ++i) {
+			m.put(1000000 + i, 2000000 + i);
+		}
+		//deleted object
+		m.put(5, -1);
+		byte[] data = roundTrip(m);
+		assertTrue(data.length < 1001 * 3);
+	}
+	
+	/**
+	 * Tests if extreme values can be encoded
+	 */
+	@Test
+	public void extremes() {
+		IdMap m = new IdHashMap();
+		m.put(Integer.MAX_VALUE, Long.MIN_VALUE);
+		m.put(0, Long.MAX_VALUE);
+		m.put(1, -1);
+		roundTrip(m);
+	}
+	
+	/**
+	 * Tests random maps
+	 */
+	@Test
+	public void random() {
+		Random rnd = new Random(1234);
+		for (int i = 0; i < 20; ++i) {
+			IdMap m = new IdHashMap();
+			int n = rnd.nextInt(500);
+			for (int j = 0; j < n; ++j) {
+				m.put(rnd.nextInt(Integer.MAX_VALUE), rnd.nextLong());
+			}
+			roundTrip(m);
+		}
+	}
+	
+	/**
+	 * Tests if maps can be encoded in chunks and decoded into a single map
+	 */
+	@Test
+	public void chunks() {
+		IdMap m = new IdHashMap();
+		for (int i = 0; i < 1050; ++i) {
+			m.put(i * 3, i * 7);
+		}
+		//each entry needs two bytes, the header needs at most 11 bytes
+		byte[][] chunks = IdMapCodec.encodeBySize(m, 11 + 100 * 2);
+		assertEquals(11, chunks.length);
+		IdMap r = new IdHashMap();
+		for (byte[] c : chunks) {
+			IdMapCodec.decode(c, r);
+		}
+		assertEquals(m.size(), r.size());
+		for (long k : m.keys()) {
+			assertEquals(m.get(k), r.get(k));
+		}
+		
+		//empty maps should still result in one chunk
+		assertEquals(1, IdMapCodec.encodeBySize(new IdHashMap(), 100).length);
+	}
+	
+	/**
+	 * Tests if maps can be encoded in chunks of limited size
+	 */
+	@Test
+	public void chunksBySize() {
+		Random rnd = new Random(1234);
+		IdMap m = new IdHashMap();
+		for (int i = 0; i < 5000; ++i) {
+			m.put(rnd.nextInt(Integer.MAX_VALUE), rnd.nextLong());
+		}
+		byte[][] chunks = IdMapCodec.encodeBySize(m, 1000);
+		assertTrue(chunks.length > 1);
+		IdMap r = new IdHashMap();
+		for (byte[] c : chunks) {
+			assertTrue(c.length <= 1000);
+			IdMapCodec.decode(c, r);
+		}
+		assertEquals(m.size(), r.size());
+		for (long k : m.keys()) {
+			assertEquals(m.get(k), r.get(k));
+		}
+		
+		//small maps should result in one chunk
+		assertEquals(1, IdMapCodec.encodeBySize(m, Integer.MAX_VALUE).length);
+	}
+	
+	/**
+	 * Tests if corrupt data is detected
+	 */
+	@Test(expected = VException.class)
+	public void corrupt() {
+		IdMap m = new IdHashMap();
+		m.put(1, 2);
+		m.put(300, 400);
+		byte[] data = IdMapCodec.encode(m);
+		byte[] truncated = new byte[data.length - 1];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		IdMapCodec.decode(truncated);
+	}
+	
+	/**
+	 * Tests if unknown versions are rejected
+	 */
+	@Test(expected = VException.class)
+	public void unknownVersion() {
+		IdMapCodec.decode(new byte[] { 99, 0 });
+	}
+}
@@ -0,0 +1,115 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.fhg.igd.mongomvcc.VConstants;
+import de.fhg.igd.mongomvcc.helper.IdHashTrieMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+import de.fhg.igd.mongomvcc.impl.AbstractMongoDBVDatabaseTest;
+import de.fhg.igd.mongomvcc.impl.MongoDBVBranch;
+
+/**
+ * Tests {@link IndexCache}
+ * @author Michel Kraemer
+ */
+public class IndexCacheTest extends AbstractMongoDBVDatabaseTest {
+	/**
+	 * Tests if threads checking out the same commit share their index
+	 * and if modifications are not visible to other threads
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void shareIndex() throws Exception {
+		putPerson("Max", 6);
+		putPerson("Elvis", 3);
+		_master.commit();
+
+		final MongoDBVBranch master = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+		IdMap m1 = master.getIndex().find("persons");
+		assertEquals(2, m1.size());
+
+		final IdMap[] m2 = new IdMap[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				m2[0] = master.getIndex().find("persons");
+			}
+		};
+		t.start();
+		t.join();
+		assertSame(m1, m2[0]);
+
+		//modify index. the map must be copied now.
+		master.getIndex().insert("persons", 1000L, 1001L);
+		IdMap m3 = master.getIndex().find("persons");
+		assertNotSame(m1, m3);
+		assertEquals(3, m3.size());
+		assertEquals(2, m1.size());
+
+		//after a rollback the shared index should be used again
+		master.rollback();
+		assertSame(m1, master.getIndex().find("persons"));
+	}
+
+	/**
+	 * Tests if the index of a commit is derived from the cached
+	 * index of its parent
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void deriveFromAncestor() throws Exception {
+		putPerson("Max", 6);
+		_master.commit();
+		MongoDBVBranch b1 = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+		IdMap m1 = b1.getIndex().find("persons");
+		assertEquals(1, m1.size());
+		assertTrue(m1 instanceof IdHashTrieMap);
+
+		putPerson("Elvis", 3);
+		_master.commit();
+		MongoDBVBranch b2 = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+		IdMap m2 = b2.getIndex().find("persons");
+		assertEquals(2, m2.size());
+		assertEquals(1, m1.size());
+		assertEquals(1, b1.getIndex().find("persons").size());
+	}
+
+	/**
+	 * Tests if the chain of base indexes derived from each other is
+	 * bounded even if the derived indexes never load all collections
+	 * @throws Exception if something goes wrong
+	 */
+	@Test
+	public void boundedDerivationDepth() throws Exception {
+		for (int i = 0; i < IndexCache.MAX_DERIVATION_DEPTH * 2; ++i) {
+			putPerson("Max" + i, i);
+			_master.commit();
+			MongoDBVBranch b = (MongoDBVBranch)_db.checkout(VConstants.MASTER);
+			assertEquals(i + 1, b.getIndex().find("persons").size());
+			assertTrue(b.getIndex().getDerivationDepth() <=
+					IndexCache.MAX_DERIVATION_DEPTH + 1);
+		}
+	}
+}
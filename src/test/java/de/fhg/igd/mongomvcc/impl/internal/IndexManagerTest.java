@@ -0,0 +1,124 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import de.fhg.igd.mongomvcc.VBranch;
+import de.fhg.igd.mongomvcc.VConstants;
+import de.fhg.igd.mongomvcc.impl.AbstractMongoDBVDatabaseTest;
+import de.fhg.igd.mongomvcc.impl.MongoDBVBranch;
+import de.fhg.igd.mongomvcc.impl.MongoDBVDatabase;
+
+/**
+ * Tests {@link IndexManager}
+ * @author Michel Kraemer
+ */
+public class IndexManagerTest extends AbstractMongoDBVDatabaseTest {
+	/**
+	 * Gets the names of the indexed attributes of all indexes of a collection
+	 * @param dbc the collection
+	 * @return the attribute names
+	 */
+	private static Set<String> getIndexedAttributes(DBCollection dbc) {
+		Set<String> r = new HashSet<String>();
+		for (DBObject info : dbc.getIndexInfo()) {
+			r.addAll(((DBObject)info.get("key")).keySet());
+		}
+		return r;
+	}
+	
+	/**
+	 * Tests if indexes are created when the database is connected and
+	 * when a collection is accessed
+	 */
+	@Test
+	public void provision() {
+		putPerson("Max", 6);
+		_master.commit();
+		
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		Set<String> attrs = getIndexedAttributes(db.getDB().getCollection(
+				MongoDBConstants.COLLECTION_COMMITS));
+		assertTrue(attrs.contains("parent"));
+		assertTrue(attrs.contains(MongoDBConstants.TIMESTAMP));
+		attrs = getIndexedAttributes(db.getDB().getCollection(
+				MongoDBConstants.COLLECTION_BRANCHES));
+		assertTrue(attrs.contains("rootcid"));
+		attrs = getIndexedAttributes(db.getDB().getCollection(
+				MongoDBConstants.COLLECTION_CHECKPOINTS));
+		assertTrue(attrs.contains(MongoDBConstants.CID));
+		attrs = getIndexedAttributes(db.getDB().getCollection(
+				MongoDBConstants.COLLECTION_COMMIT_CHUNKS));
+		assertTrue(attrs.contains(MongoDBConstants.CID));
+		
+		long root = ((MongoDBVBranch)_master).getRootCid();
+		attrs = getIndexedAttributes(db.getDB().getCollection("persons"));
+		assertTrue(attrs.contains(VConstants.UID));
+		assertTrue(attrs.contains(MongoDBConstants.TIMESTAMP));
+		assertTrue(attrs.contains(MongoDBConstants.LIFETIME + ".i" + root));
+		assertTrue(attrs.contains(MongoDBConstants.LIFETIME + "." + root));
+		
+		assertTrue(db.findMissingIndexes().isEmpty());
+	}
+	
+	/**
+	 * Tests if each branch root gets its own lifetime index
+	 */
+	@Test
+	public void branchRoots() {
+		putPerson("Max", 6);
+		long cid = _master.commit();
+		VBranch b = _db.createBranch("other", cid);
+		b.getCollection("persons");
+		
+		long root = ((MongoDBVBranch)b).getRootCid();
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		Set<String> attrs = getIndexedAttributes(db.getDB().getCollection("persons"));
+		assertTrue(attrs.contains(MongoDBConstants.LIFETIME + ".i" + root));
+		assertTrue(attrs.contains(MongoDBConstants.LIFETIME + "." + root));
+	}
+	
+	/**
+	 * Tests if missing indexes are reported
+	 */
+	@Test
+	public void missing() {
+		putPerson("Max", 6);
+		_master.commit();
+		
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.getDB().getCollection("persons").dropIndex(
+				new BasicDBObject(VConstants.UID, 1));
+		List<String> missing = db.findMissingIndexes();
+		assertEquals(1, missing.size());
+		assertTrue(missing.get(0).startsWith("persons"));
+		assertTrue(missing.get(0).contains(VConstants.UID));
+	}
+}
@@ -21,6 +21,9 @@ import de.fhg.igd.mongomvcc.VBranch;
 import de.fhg.igd.mongomvcc.VCollection;
 import de.fhg.igd.mongomvcc.VConstants;
 import de.fhg.igd.mongomvcc.VDatabase;
+import de.fhg.igd.mongomvcc.helper.IdMap;
+import de.fhg.igd.mongomvcc.helper.OffHeapIdHashMap;
+import de.fhg.igd.mongomvcc.helper.OverlayIdMap;
 import de.fhg.igd.mongomvcc.impl.AbstractMongoDBVDatabaseTest;
 import de.fhg.igd.mongomvcc.impl.MongoDBVDatabase;
 import java.util.ArrayList;
@@ -28,6 +31,10 @@ import java.util.Map;
 import org.junit.Ignore;
 import org.junit.Test;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Tests {@link de.fhg.igd.mongomvcc.impl.internal.Index}
@@ -92,6 +99,108 @@ public class IndexTest extends AbstractMongoDBVDatabaseTest {
 		assertArrayEquals(afterInSession.toArray(), afterOutOfSession.toArray());
 	}
 	
+	/**
+	 * This test checks if indexes are correctly built from checkpoints
+	 */
+	@Test
+	public void checkpoint() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.setCheckpointInterval(2, 0);
+		
+		VCollection persons = _master.getCollection("persons");
+		Map<String, Object> elvis = _factory.createDocument("name", "elvis");
+		persons.insert(elvis);
+		_master.commit();
+		
+		Map<String, Object> max = _factory.createDocument("name", "max");
+		persons.insert(max);
+		persons.delete((Long)elvis.get("uid"));
+		long second = _master.commit();
+		
+		Tree tree = new Tree(db.getDB());
+		Map<String, IdMap> cp = tree.resolveCheckpoint(second);
+		assertNotNull(cp);
+		assertEquals(1, cp.get("persons").size());
+		assertEquals(second, tree.resolveCommit(second).getCheckpointCID());
+		
+		Map<String, Object> peter = _factory.createDocument("name", "peter");
+		persons.insert(peter);
+		long third = _master.commit();
+		assertNull(tree.resolveCheckpoint(third));
+		assertEquals(second, tree.resolveCommit(third).getCheckpointCID());
+		
+		//build index from checkpoint
+		VBranch master = _db.checkout(third);
+		VCollection persons2 = master.getCollection("persons");
+		assertEquals(2, persons2.find().size());
+		assertNotNull(persons2.findOne(_factory.createDocument("name", "max")));
+		assertNotNull(persons2.findOne(_factory.createDocument("name", "peter")));
+		assertNull(persons2.findOne(_factory.createDocument("name", "elvis")));
+	}
+	
+	/**
+	 * This test checks if collections are loaded lazily
+	 */
+	@Test
+	public void lazyCollections() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.setCheckpointInterval(3, 0);
+		
+		VCollection persons = _master.getCollection("persons");
+		VCollection animals = _master.getCollection("animals");
+		for (int i = 0; i < 5; ++i) {
+			persons.insert(_factory.createDocument("name", "person" + i));
+			animals.insert(_factory.createDocument("name", "animal" + i));
+			_master.commit();
+		}
+		Map<String, Object> p0 = persons.findOne(_factory.createDocument("name", "person0"));
+		persons.delete((Long)p0.get("uid"));
+		long cid = _master.commit();
+		
+		Tree tree = db.getTree();
+		Index idx = new Index(tree.resolveCommit(cid), tree);
+		assertEquals(4, idx.find("persons").size());
+		assertEquals(5, idx.find("animals").size());
+		
+		//a derived index should load collections from its base
+		Index derived = new Index(new Index(tree.resolveCommit(cid), tree), cid);
+		assertEquals(5, derived.find("animals").size());
+		assertEquals(2, derived.getObjects().size());
+		assertEquals(4, derived.getObjects().get("persons").size());
+	}
+	
+	/**
+	 * This test checks if large collections are moved off the heap
+	 */
+	@Test
+	public void offHeap() {
+		MongoDBVDatabase db = (MongoDBVDatabase)_db;
+		db.setOffHeapThreshold(3);
+		
+		VCollection persons = _master.getCollection("persons");
+		for (int i = 0; i < 5; ++i) {
+			persons.insert(_factory.createDocument("name", "person" + i));
+		}
+		long cid = _master.commit();
+		
+		Index idx = new Index(db.getTree().resolveCommit(cid), db.getTree(), false, 3);
+		assertTrue(idx.find("persons") instanceof OffHeapIdHashMap);
+		assertEquals(5, idx.find("persons").size());
+		
+		//derived indexes must not copy the off-heap map
+		Index derived = new Index(idx, cid);
+		derived.insert("persons", Long.MAX_VALUE - 1, Long.MAX_VALUE - 1);
+		assertTrue(derived.find("persons") instanceof OverlayIdMap);
+		assertEquals(6, derived.size("persons"));
+		assertEquals(5, idx.size("persons"));
+		assertTrue(idx.find("persons") instanceof OffHeapIdHashMap);
+		
+		VBranch master = _db.checkout(cid);
+		assertEquals(5, master.getCollection("persons").find().size());
+		assertNotNull(master.getCollection("persons").findOne(
+				_factory.createDocument("name", "person3")));
+	}
+	
 	/**
 	 * This test checks if a stack overflows when there are too many commits in the database.
 	 * See https://github.com/igd-geo/mongomvcc/pull/2 for more information.
@@ -0,0 +1,73 @@
+// This file is part of MongoMVCC.
+//
+// Copyright (c) 2012 Fraunhofer IGD
+//
+// MongoMVCC is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as
+// published by the Free Software Foundation, either version 3 of the
+// License, or (at your option) any later version.
+//
+// MongoMVCC is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+// GNU Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with MongoMVCC. If not, see <http://www.gnu.org/licenses/>.
+
+package de.fhg.igd.mongomvcc.impl.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import de.fhg.igd.mongomvcc.impl.QueryPlan;
+
+/**
+ * Tests {@link QueryPlanner}
+ * @author Michel Kraemer
+ */
+public class QueryPlannerTest {
+	/**
+	 * Tests if the lifetime query is chosen for small collections and
+	 * if most objects are visible
+	 */
+	@Test
+	public void lifetime() {
+		assertEquals(QueryPlan.LIFETIME, QueryPlanner.plan(2, 2, -1));
+		assertEquals(QueryPlan.LIFETIME, QueryPlanner.plan(2, 3, -1));
+		assertEquals(QueryPlan.LIFETIME, QueryPlanner.plan(5000, 5000, -1));
+		assertEquals(QueryPlan.LIFETIME, QueryPlanner.plan(100000, 150000, -1));
+		assertFalse(QueryPlanner.considerHybrid(5000, 5000));
+	}
+	
+	/**
+	 * Tests if OIDs are sent to the database if only a few objects
+	 * are visible
+	 */
+	@Test
+	public void oidIn() {
+		assertEquals(QueryPlan.OID_IN, QueryPlanner.plan(500, 5000, -1));
+		assertEquals(QueryPlan.OID_IN, QueryPlanner.plan(100000, 1000000, -1));
+		assertFalse(QueryPlanner.considerHybrid(500, 5000));
+		
+		//range contains too many objects
+		assertTrue(QueryPlanner.considerHybrid(100000, 1000000));
+		assertEquals(QueryPlan.OID_IN, QueryPlanner.plan(100000, 1000000, 900000));
+	}
+	
+	/**
+	 * Tests if the hybrid plan is chosen if the visible objects lie
+	 * in a small range
+	 */
+	@Test
+	public void hybrid() {
+		assertTrue(QueryPlanner.considerHybrid(2000, 7000));
+		assertEquals(QueryPlan.HYBRID, QueryPlanner.plan(2000, 7000, 2000));
+		
+		//not enough gain compared to the lifetime query
+		assertFalse(QueryPlanner.considerHybrid(100000, 150000));
+	}
+}
@@ -19,15 +19,29 @@ package de.fhg.igd.mongomvcc.impl.internal;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Test;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.WriteConcern;
+
 import de.fhg.igd.mongomvcc.VBranch;
 import de.fhg.igd.mongomvcc.VCollection;
+import de.fhg.igd.mongomvcc.VConstants;
 import de.fhg.igd.mongomvcc.VException;
 import de.fhg.igd.mongomvcc.VHistory;
+import de.fhg.igd.mongomvcc.helper.IdHashMap;
+import de.fhg.igd.mongomvcc.helper.IdMap;
 import de.fhg.igd.mongomvcc.impl.AbstractMongoDBVDatabaseTest;
+import de.fhg.igd.mongomvcc.impl.MongoDBVDatabase;
 
 /**
  * Tests the database {@link Tree}
@@ -75,6 +89,171 @@ public class TreeTest extends AbstractMongoDBVDatabaseTest {
 		assertArrayEquals(new long[0], h.getChildren(c3));
 	}
 	
+	/**
+	 * Tests if ancestors can be resolved in bulk
+	 */
+	@Test
+	public void resolveAncestors() {
+		long root = _master.getHead();
+		long[] cids = new long[50];
+		for (int i = 0; i < cids.length; ++i) {
+			putPerson("Max" + i, i);
+			cids[i] = _master.commit();
+		}
+		
+		Tree tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		Commit head = tree.resolveCommit(cids[cids.length - 1]);
+		List<Commit> ancestors = tree.resolveAncestors(head, 0);
+		assertTrue(ancestors.size() > 1);
+		
+		//walk through all ancestors and check their order
+		int i = cids.length - 2;
+		while (!ancestors.isEmpty()) {
+			for (Commit c : ancestors) {
+				assertEquals(i >= 0 ? cids[i] : root, c.getCID());
+				--i;
+			}
+			ancestors = tree.resolveAncestors(ancestors.get(ancestors.size() - 1), 0);
+		}
+		assertEquals(-2, i);
+		
+		//stop at a given ancestor
+		ancestors = tree.resolveAncestors(head, cids[cids.length - 4]);
+		assertEquals(3, ancestors.size());
+		assertEquals(cids[cids.length - 4], ancestors.get(2).getCID());
+	}
+	
+	/**
+	 * Tests if the CIDs of ancestors and single collections of
+	 * commits can be resolved
+	 */
+	@Test
+	public void resolveHistoryAndCollection() {
+		long root = _master.getHead();
+		long[] cids = new long[40];
+		for (int i = 0; i < cids.length; ++i) {
+			putPerson("Max" + i, i);
+			if (i % 2 == 0) {
+				_master.getCollection("animals").insert(_factory.createDocument("name", "Dog" + i));
+			}
+			cids[i] = _master.commit();
+		}
+		
+		Tree tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		Commit head = tree.resolveCommit(cids[cids.length - 1]);
+		long[] history = tree.resolveHistory(head, 0);
+		assertEquals(cids.length + 1, history.length);
+		for (int i = 0; i < cids.length; ++i) {
+			assertEquals(cids[cids.length - 1 - i], history[i]);
+		}
+		assertEquals(root, history[cids.length]);
+		
+		long[] partial = tree.resolveHistory(head, cids[cids.length - 3]);
+		assertArrayEquals(new long[] { cids[cids.length - 1], cids[cids.length - 2],
+				cids[cids.length - 3] }, partial);
+		
+		IdMap[] animals = tree.resolveCollection(cids, "animals");
+		IdMap[] persons = tree.resolveCollection(cids, "persons");
+		for (int i = 0; i < cids.length; ++i) {
+			assertEquals(1, persons[i].size());
+			if (i % 2 == 0) {
+				assertEquals(1, animals[i].size());
+			} else {
+				assertNull(animals[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Tests if commits larger than the maximum document size are
+	 * split up into chunks and reassembled correctly
+	 */
+	@Test
+	public void largeCommit() {
+		long root = _master.getHead();
+		IdMap persons = new IdHashMap();
+		for (int i = 0; i < 250000; ++i) {
+			persons.put(i + 1, i + 1000000);
+		}
+		IdMap animals = new IdHashMap();
+		animals.put(1, -1);
+		Map<String, IdMap> objs = new HashMap<String, IdMap>();
+		objs.put("persons", persons);
+		objs.put("animals", animals);
+		
+		Tree tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		tree.addCommit(new Commit(1000000L, root, root, objs));
+		
+		//use a new tree, so nothing is read from the cache
+		tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		Commit c = tree.resolveCommit(1000000L);
+		IdMap p = c.getObjects().get("persons");
+		assertEquals(persons.size(), p.size());
+		for (int i = 0; i < 250000; ++i) {
+			assertEquals(i + 1000000, p.get(i + 1));
+		}
+		assertEquals(-1, c.getObjects().get("animals").get(1));
+		
+		tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		IdMap[] r = tree.resolveCollection(new long[] { 1000000L }, "persons");
+		assertEquals(persons.size(), r[0].size());
+	}
+	
+	/**
+	 * Tests if checkpoints can be read and if incomplete checkpoints
+	 * are detected
+	 */
+	@Test
+	public void checkpoints() {
+		IdMap persons = new IdHashMap();
+		for (int i = 0; i < 1000; ++i) {
+			persons.put(i + 1, i + 1000);
+		}
+		persons.put(5000, -1);
+		Map<String, IdMap> objs = new HashMap<String, IdMap>();
+		objs.put("persons", persons);
+		objs.put("animals", new IdHashMap());
+		
+		DB db = ((MongoDBVDatabase)_db).getDB();
+		Tree tree = new Tree(db);
+		tree.setMaxDocumentSize(1024);
+		tree.addCheckpoint(1000000L, objs, WriteConcern.ACKNOWLEDGED);
+		assertTrue(db.getCollection(MongoDBConstants.COLLECTION_CHECKPOINTS).count() > 2);
+		
+		Map<String, IdMap> cp = tree.resolveCheckpoint(1000000L);
+		assertEquals(1000, cp.get("persons").size());
+		assertEquals(1999, cp.get("persons").get(1000));
+		assertEquals(1000, tree.resolveCheckpoint(1000000L, "persons").size());
+		assertEquals(0, tree.resolveCheckpoint(1000000L, "animals").size());
+		
+		//remove the marker written after all chunks
+		db.getCollection(MongoDBConstants.COLLECTION_CHECKPOINTS).remove(
+				new BasicDBObject(MongoDBConstants.CID, 1000000L)
+				.append("complete", true), WriteConcern.ACKNOWLEDGED);
+		assertNull(tree.resolveCheckpoint(1000000L));
+		assertNull(tree.resolveCheckpoint(1000000L, "persons"));
+		assertNull(tree.resolveCheckpoint(1000000L, "animals"));
+	}
+	
+	/**
+	 * Tests if branch heads are only updated if they point to
+	 * the expected commit
+	 */
+	@Test
+	public void compareAndSetBranchHead() {
+		long root = _master.getHead();
+		putPerson("Max", 3);
+		long c1 = _master.commit();
+		
+		Tree tree = new Tree(((MongoDBVDatabase)_db).getDB());
+		assertFalse(tree.compareAndSetBranchHead(VConstants.MASTER, root, c1 + 1000,
+				WriteConcern.ACKNOWLEDGED, false));
+		assertEquals(c1, tree.resolveBranch(VConstants.MASTER).getCID());
+		assertTrue(tree.compareAndSetBranchHead(VConstants.MASTER, c1, root,
+				WriteConcern.ACKNOWLEDGED, false));
+		assertEquals(root, tree.resolveBranch(VConstants.MASTER).getCID());
+	}
+	
 	/**
 	 * Tests if the history throws an exception if we try to
 	 * resolve a non-existent commit